@@ -0,0 +1,462 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * Desktop benchmarks for CPU side of rendering, one per frame loop hot path
+ * plus whole frames against LBGLNull, at several box counts. Reports time and
+ * allocated bytes per operation, and time per box for seeing how cost scales
+ * with box count. Needs no device; app classes are built as usual and
+ * benchmarks are run on desktop JVM with android.jar on class path, no
+ * Android method is called while running.
+ *
+ * <pre>
+ * javac -cp bin/classes:$ANDROID_JAR -d bench/bin \
+ *     bench/src/fi/harism/wallpaper/lovebeat/LBBench.java
+ * java -cp bench/bin:bin/classes:$ANDROID_JAR \
+ *     fi.harism.wallpaper.lovebeat.LBBench [-f forks] [-wi warmups] \
+ *     [-i iterations] [-t millis] [benchmark...]
+ * </pre>
+ *
+ * Harness follows JMH's model without depending on it, JMH jars and its
+ * annotation processor would need dependency management this Ant built
+ * project doesn't have, and jars under libs/ are packaged into the APK.
+ * Every benchmark and box count runs in freshly forked JVMs, so that JIT
+ * profiles of one don't leak into another. Each fork runs warmup iterations
+ * first and then measured ones, an iteration running operations in batches
+ * for given time. Results are averaged over measured iterations of every
+ * fork and given with their standard deviation. Operation results are
+ * consumed into a sink field so that JIT can't drop them.
+ *
+ * Allocations are measured on benchmark thread only, which requires HotSpot
+ * thread allocation counters. Box store worker threads aren't included.
+ */
+public final class LBBench {
+
+	// Benchmark names, in order they're run.
+	private static final String BENCHMARKS[] = { "update", "interpolate",
+			"keyframe", "handles", "frame" };
+	// Box counts measured.
+	private static final int BOX_COUNTS[] = { 16, 256, 1024, 4096, 16384 };
+	// Foreground batch vertex layout, same as LBRenderer's.
+	private static final int FG_VERTEX_COUNT = 6, FG_VERTEX_SIZE = 8;
+	// Default number of forks per benchmark and box count.
+	private static final int FORK_COUNT_DEFAULT = 2;
+	// Frame interval in nanos, 60 frames per second.
+	private static final long FRAME_INTERVAL = 1000000000L / 60;
+	// Default number of measured iterations per fork.
+	private static final int ITERATION_COUNT_DEFAULT = 5;
+	// Default iteration time in millis.
+	private static final long ITERATION_TIME_DEFAULT = 500;
+	// Prefix of result lines forks print.
+	private static final String RESULT_PREFIX = "#result ";
+	// Animation seed, every run measures same frames.
+	private static final long SEED = 0x4C6F7665L;
+	// Surface size frames are rendered at.
+	private static final int SURFACE_WIDTH = 1080, SURFACE_HEIGHT = 1920;
+	// Default number of warmup iterations per fork.
+	private static final int WARMUP_COUNT_DEFAULT = 3;
+
+	// Operation results are consumed here.
+	private static volatile long sSink;
+	// Thread allocation counters, null if JVM doesn't provide them.
+	private static com.sun.management.ThreadMXBean sThreadBean;
+
+	/**
+	 * Helper method for creating benchmark by name.
+	 */
+	private static Benchmark createBenchmark(String name) {
+		if (name.equals("update")) {
+			return new UpdateBenchmark();
+		} else if (name.equals("interpolate")) {
+			return new InterpolateBenchmark();
+		} else if (name.equals("keyframe")) {
+			return new KeyframeBenchmark();
+		} else if (name.equals("handles")) {
+			return new HandlesBenchmark();
+		} else if (name.equals("frame")) {
+			return new FrameBenchmark();
+		}
+		throw new RuntimeException("Unknown benchmark: " + name);
+	}
+
+	/**
+	 * Helper method for getting bytes allocated by calling thread so far, -1
+	 * if not available.
+	 */
+	private static long getAllocatedBytes() {
+		if (sThreadBean == null) {
+			return -1;
+		}
+		return sThreadBean.getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+	}
+
+	/**
+	 * Entry point. Options are number of forks, warmup and measured
+	 * iterations per fork and iteration time, followed by names of
+	 * benchmarks to run, every one if none are given.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("-fork")) {
+			runFork(args[1], Integer.parseInt(args[2]),
+					Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					Long.parseLong(args[5]));
+			// Box store workers aren't daemon threads.
+			System.exit(0);
+		}
+
+		int forkCount = FORK_COUNT_DEFAULT;
+		int warmupCount = WARMUP_COUNT_DEFAULT;
+		int iterationCount = ITERATION_COUNT_DEFAULT;
+		long iterationTime = ITERATION_TIME_DEFAULT;
+		ArrayList<String> names = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-f")) {
+				forkCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-wi")) {
+				warmupCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				iterationCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t")) {
+				iterationTime = Long.parseLong(args[++i]);
+			} else {
+				createBenchmark(args[i]);
+				names.add(args[i]);
+			}
+		}
+		if (names.isEmpty()) {
+			for (String name : BENCHMARKS) {
+				names.add(name);
+			}
+		}
+
+		System.out.printf("%d forks, %d warmup and %d measured iterations "
+				+ "of %d ms, %dx%d surface%n", forkCount, warmupCount,
+				iterationCount, iterationTime, SURFACE_WIDTH, SURFACE_HEIGHT);
+		System.out.printf("%-12s %6s %14s %10s %12s %10s%n", "benchmark",
+				"boxes", "ns/op", "+-", "B/op", "ns/box");
+		for (String name : names) {
+			for (int boxCount : BOX_COUNTS) {
+				double nanos[] = new double[forkCount * iterationCount];
+				double bytes[] = new double[forkCount * iterationCount];
+				int count = 0;
+				for (int fork = 0; fork < forkCount; ++fork) {
+					count = runParent(name, boxCount, warmupCount,
+							iterationCount, iterationTime, nanos, bytes,
+							count);
+				}
+				double mean = mean(nanos, count);
+				boolean scales = createBenchmark(name).scalesWithBoxes();
+				System.out.printf("%-12s %6s %14.1f %10.1f %12.0f %10s%n",
+						name, scales ? Integer.toString(boxCount) : "-",
+						mean, stddev(nanos, count, mean), mean(bytes, count),
+						scales ? String.format("%.2f", mean / boxCount)
+								: "-");
+				// Operations not depending on box count are run once.
+				if (!scales) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method for calculating mean of first count values.
+	 */
+	private static double mean(double[] values, int count) {
+		double sum = 0;
+		for (int i = 0; i < count; ++i) {
+			sum += values[i];
+		}
+		return count > 0 ? sum / count : 0;
+	}
+
+	/**
+	 * Runs benchmark in this JVM and prints result line per measured
+	 * iteration, nanos and allocated bytes per operation.
+	 */
+	private static void runFork(String name, int boxCount, int warmupCount,
+			int iterationCount, long iterationTime) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			sThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+			sThreadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		Benchmark benchmark = createBenchmark(name);
+		benchmark.setup(boxCount);
+		long iterationNanos = iterationTime * 1000000;
+		for (int i = 0; i < warmupCount + iterationCount; ++i) {
+			// Operations are run in batches, batch growing until it takes
+			// long enough for nanoTime() overhead not to matter.
+			long ops = 0, batch = 1, elapsed = 0;
+			long allocated = getAllocatedBytes();
+			long start = System.nanoTime();
+			while (elapsed < iterationNanos) {
+				long batchStart = System.nanoTime();
+				for (long op = ops; op < ops + batch; ++op) {
+					sSink += benchmark.run(op);
+				}
+				ops += batch;
+				long now = System.nanoTime();
+				if (now - batchStart < 100000) {
+					batch *= 2;
+				}
+				elapsed = now - start;
+			}
+			long allocatedEnd = getAllocatedBytes();
+			if (i >= warmupCount) {
+				long bytes = -1;
+				if (allocated >= 0 && allocatedEnd >= 0) {
+					bytes = (allocatedEnd - allocated) / ops;
+				}
+				System.out.println(RESULT_PREFIX + (elapsed / (double) ops)
+						+ " " + bytes);
+			}
+		}
+	}
+
+	/**
+	 * Runs one fork of given benchmark and box count in a new JVM and
+	 * stores its results from given index on. Returns index following
+	 * stored results.
+	 */
+	private static int runParent(String name, int boxCount, int warmupCount,
+			int iterationCount, long iterationTime, double[] nanos,
+			double[] bytes, int index) throws IOException,
+			InterruptedException {
+		String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"),
+				LBBench.class.getName(), "-fork", name,
+				Integer.toString(boxCount), Integer.toString(warmupCount),
+				Integer.toString(iterationCount), Long.toString(iterationTime));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith(RESULT_PREFIX)) {
+				String values[] = line.substring(RESULT_PREFIX.length())
+						.split(" ");
+				nanos[index] = Double.parseDouble(values[0]);
+				bytes[index] = Double.parseDouble(values[1]);
+				++index;
+			} else {
+				System.out.println(line);
+			}
+		}
+		if (process.waitFor() != 0) {
+			throw new RuntimeException("Fork of " + name + " failed");
+		}
+		return index;
+	}
+
+	/**
+	 * Helper method for calculating sample standard deviation of first count
+	 * values.
+	 */
+	private static double stddev(double[] values, int count, double mean) {
+		if (count < 2) {
+			return 0;
+		}
+		double sum = 0;
+		for (int i = 0; i < count; ++i) {
+			sum += (values[i] - mean) * (values[i] - mean);
+		}
+		return Math.sqrt(sum / (count - 1));
+	}
+
+	/**
+	 * Single benchmarked operation with its state.
+	 */
+	private static abstract class Benchmark {
+
+		/**
+		 * Runs operation once. Returned value is consumed by harness.
+		 *
+		 * @param op
+		 *            Operation index within iteration.
+		 * @return Any value depending on operation result.
+		 */
+		public abstract long run(long op);
+
+		/**
+		 * Returns false if operation doesn't depend on box count, it is run
+		 * with first box count only.
+		 */
+		public boolean scalesWithBoxes() {
+			return true;
+		}
+
+		/**
+		 * Creates benchmark state for given box count.
+		 *
+		 * @param boxCount
+		 *            Number of foreground boxes.
+		 */
+		public abstract void setup(int boxCount);
+	}
+
+	/**
+	 * Whole frame of LBRenderer against LBGLNull on virtual clock, CPU side
+	 * of onDrawFrame with every pass.
+	 */
+	private static final class FrameBenchmark extends Benchmark {
+		// Renderer drawing frames.
+		private LBRenderer mRenderer;
+
+		@Override
+		public long run(long op) {
+			mRenderer.onDrawFrame(0);
+			return mRenderer.getGLIssuedCount();
+		}
+
+		@Override
+		public void setup(int boxCount) {
+			// LBGLNull accepts any source, programs are never really built.
+			LBRenderContext renderContext = new LBRenderContext(null,
+					new String[] { "", "", "", "", "", "" });
+			renderContext.getGLState().setBackend(new LBGLNull());
+			mRenderer = new LBRenderer(null, renderContext, SEED);
+			mRenderer.setClock(new LBClockVirtual(0, FRAME_INTERVAL));
+			mRenderer.setBoxCount(boxCount);
+			mRenderer.onSurfaceCreated();
+			mRenderer.onSurfaceChanged(SURFACE_WIDTH, SURFACE_HEIGHT);
+		}
+	}
+
+	/**
+	 * Handle slot lookups of a shader with as many handles as foreground
+	 * shader, once per slot as foreground pass does every frame.
+	 */
+	private static final class HandlesBenchmark extends Benchmark {
+		// Shader handles are looked up from.
+		private LBShader mShader;
+
+		@Override
+		public long run(long op) {
+			long sum = 0;
+			for (int slot = 0; slot < 12; ++slot) {
+				sum += mShader.getHandle(slot);
+			}
+			return sum;
+		}
+
+		@Override
+		public boolean scalesWithBoxes() {
+			return false;
+		}
+
+		@Override
+		public void setup(int boxCount) {
+			LBGLState gl = new LBGLState();
+			gl.setBackend(new LBGLNull());
+			mShader = new LBShader(gl, "uAspectRatio", "uVectorUp",
+					"uDisplacement", "uTouchPos", "uNoiseRow", "uVignette",
+					"sNoise", "sVignette", "aPosition", "aCenterPos",
+					"aScale", "aColor");
+			mShader.setProgram("", "");
+			mShader.useProgram();
+		}
+	}
+
+	/**
+	 * Per frame box interpolation into foreground batch vertex array, with
+	 * time interpolator changing every operation.
+	 */
+	private static final class InterpolateBenchmark extends Benchmark {
+		// Batch vertex array.
+		private float mBatch[];
+		// Boxes interpolated.
+		private LBBoxStore mBoxes;
+
+		@Override
+		public long run(long op) {
+			float timeT = (op & 1023) / 1024f;
+			return mBoxes.writeInterpolated(timeT, mBatch, 2,
+					FG_VERTEX_SIZE, FG_VERTEX_COUNT);
+		}
+
+		@Override
+		public void setup(int boxCount) {
+			LBAnimation animation = new LBAnimation(SEED);
+			animation.setBoxCount(boxCount);
+			// Step over a tick so that source and target values differ.
+			animation.step(0f, true);
+			animation.step(0f, true);
+			mBoxes = animation.getBoxes();
+			mBatch = new float[boxCount * FG_VERTEX_SIZE * FG_VERTEX_COUNT];
+		}
+	}
+
+	/**
+	 * Tick boundary, generating next keyframe inline with its box targets
+	 * and fill areas and taking it into use.
+	 */
+	private static final class KeyframeBenchmark extends Benchmark {
+		// Animation stepped over tick boundaries.
+		private LBAnimation mAnimation;
+
+		@Override
+		public long run(long op) {
+			mAnimation.step(0.5f, true);
+			return mAnimation.getFillDataCount();
+		}
+
+		@Override
+		public void setup(int boxCount) {
+			mAnimation = new LBAnimation(SEED);
+			mAnimation.setBoxCount(boxCount);
+		}
+	}
+
+	/**
+	 * LBAnimation advanced frame by frame at 60 frames per second, tick
+	 * boundaries included once every 240 frames.
+	 */
+	private static final class UpdateBenchmark extends Benchmark {
+		// Animation advanced.
+		private LBAnimation mAnimation;
+		// Time of next update in nanos.
+		private long mTime;
+
+		@Override
+		public long run(long op) {
+			mAnimation.update(mTime, false);
+			mTime += FRAME_INTERVAL;
+			return Float.floatToRawIntBits(mAnimation.getTimeT());
+		}
+
+		@Override
+		public void setup(int boxCount) {
+			mAnimation = new LBAnimation(SEED);
+			mAnimation.setBoxCount(boxCount);
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Animation state without any rendering. Holds background fill areas,
+ * foreground boxes, rotation angles and animation tick timer. All randomness
+ * comes from keyframes generated ahead from a seeded generator so that same
+ * seed and same sequence of calls always produce same animation. Nothing is
+ * allocated once instance has been created, apart from growing box count.
+ */
+public final class LBAnimation {
+
+	// Animation tick time length in millis.
+	public static final long TICK_TIME = 4000;
+
+	// Background band interpolants for current step.
+	private float mBandSourceT, mBandTargetT;
+	// Foreground box storage.
+	private final LBBoxStore mBoxes;
+	// Fill data elements array.
+	private final StructFillData mFillData[] = new StructFillData[4];
+	// Number of active fill data elements.
+	private int mFillDataCount;
+	// Keyframe with fill data taken into use on next step, null if none.
+	private LBKeyframes.Keyframe mFillPending;
+	// Keyframes generated ahead.
+	private final LBKeyframes mKeyframes;
+	// Last time interpolator.
+	private float mLastTimeT;
+	// Rotation angle and rotation animation target (= int * PI / 4).
+	private int mRotationAngle, mRotationAngleTarget;
+	// Last update time in nanos, -1 before first update.
+	private long mTimeLast = -1;
+	// Time interpolator for current step.
+	private float mTimeT;
+	// Animation tick timer start time in nanos.
+	private long mTimeTickStart = -1;
+
+	/**
+	 * Constructor for animation with given random seed.
+	 *
+	 * @param seed
+	 *            Random seed.
+	 */
+	public LBAnimation(long seed) {
+		mKeyframes = new LBKeyframes(seed);
+		mBoxes = mKeyframes.getBoxes();
+		// Instantiate fill data array.
+		for (int i = 0; i < mFillData.length; ++i) {
+			mFillData[i] = new StructFillData();
+		}
+		// Take first animation into use.
+		LBKeyframes.Keyframe keyframe = mKeyframes.getCurrent();
+		mRotationAngleTarget = keyframe.mRotationAngleTarget;
+		setFillData(keyframe);
+	}
+
+	/**
+	 * Getter for background band source interpolant. Band between source and
+	 * target interpolants is the part of fill areas changed on current step.
+	 *
+	 * @return Source interpolant.
+	 */
+	public float getBandSourceT() {
+		return mBandSourceT;
+	}
+
+	/**
+	 * Getter for background band target interpolant.
+	 *
+	 * @return Target interpolant.
+	 */
+	public float getBandTargetT() {
+		return mBandTargetT;
+	}
+
+	/**
+	 * Getter for foreground box storage.
+	 *
+	 * @return Box storage.
+	 */
+	public LBBoxStore getBoxes() {
+		return mBoxes;
+	}
+
+	/**
+	 * Getter for fill data element.
+	 *
+	 * @param index
+	 *            Index of fill data, [0, getFillDataCount()).
+	 * @return Fill data element.
+	 */
+	public StructFillData getFillData(int index) {
+		return mFillData[index];
+	}
+
+	/**
+	 * Getter for number of active fill data elements.
+	 *
+	 * @return Fill data count.
+	 */
+	public int getFillDataCount() {
+		return mFillDataCount;
+	}
+
+	/**
+	 * Getter for current rotation angle boxes are aligned with.
+	 *
+	 * @return Rotation angle in radians.
+	 */
+	public double getRotationAngle() {
+		double sourceAngle = (Math.PI * mRotationAngle) / 4;
+		double targetAngle = (Math.PI * mRotationAngleTarget) / 4;
+		return sourceAngle + (targetAngle - sourceAngle) * mTimeT;
+	}
+
+	/**
+	 * Getter for time interpolator of current step.
+	 *
+	 * @return Time interpolator, float between [0f, 1f].
+	 */
+	public float getTimeT() {
+		return mTimeT;
+	}
+
+	/**
+	 * Sets number of foreground boxes.
+	 *
+	 * @param count
+	 *            New box count.
+	 */
+	public void setBoxCount(int count) {
+		mKeyframes.setBoxCount(count);
+	}
+
+	/**
+	 * Sets whether keyframes of coming ticks are generated ahead on
+	 * background thread, see LBKeyframes. Disabled by default.
+	 *
+	 * @param prefetch
+	 *            True for generating keyframes ahead.
+	 */
+	public void setPrefetch(boolean prefetch) {
+		mKeyframes.setPrefetch(prefetch);
+	}
+
+	/**
+	 * Copies fill data of given keyframe into fill data array.
+	 */
+	private void setFillData(LBKeyframes.Keyframe keyframe) {
+		mFillDataCount = keyframe.mFillDataCount;
+		for (int i = 0; i < mFillDataCount; ++i) {
+			StructFillData src = keyframe.mFillData[i];
+			StructFillData dst = mFillData[i];
+			System.arraycopy(src.mColor, 0, dst.mColor, 0, 3);
+			System.arraycopy(src.mFillNormal, 0, dst.mFillNormal, 0, 2);
+			System.arraycopy(src.mFillPositions, 0, dst.mFillPositions, 0, 4);
+		}
+	}
+
+	/**
+	 * Advances animation to given time interpolator. Background band for
+	 * current step is calculated and on new time span the ending tick is
+	 * finished and next keyframe is taken. New fill areas are taken into use
+	 * on step following it, so that band of the ending tick can still be
+	 * rendered with current ones.
+	 *
+	 * @param timeT
+	 *            Time interpolator, float between [0f, 1f].
+	 * @param newTime
+	 *            True once new [0f, 1f] timeT range is started.
+	 */
+	public void step(float timeT, boolean newTime) {
+		// Take fill areas selected on previous step into use.
+		if (mFillPending != null) {
+			setFillData(mFillPending);
+			mFillPending = null;
+		}
+
+		// Calculate source and target interpolant t values.
+		mBandSourceT = mLastTimeT;
+		mBandTargetT = newTime ? 1 : timeT;
+		mTimeT = timeT;
+
+		// Finally update mLastTimeT and select new animation if needed.
+		if (newTime) {
+			// Take next keyframe, box targets are swapped with it.
+			LBKeyframes.Keyframe keyframe = mKeyframes.next();
+			mRotationAngle = keyframe.mRotationAngle;
+			mRotationAngleTarget = keyframe.mRotationAngleTarget;
+			if (keyframe.mFillPattern >= 0) {
+				mFillPending = keyframe;
+			}
+			// Clear last time variable.
+			mLastTimeT = 0;
+		} else {
+			mLastTimeT = timeT;
+		}
+	}
+
+	/**
+	 * Advances animation tick timer to given time and steps animation.
+	 *
+	 * @param time
+	 *            Current time in nanos.
+	 * @param paused
+	 *            If true, tick timer is stopped for the time passed since
+	 *            previous update.
+	 */
+	public void update(long time, boolean paused) {
+		boolean newTime = false;
+
+		// If paused, stop animation timer.
+		if (paused && mTimeLast >= 0) {
+			mTimeTickStart += time - mTimeLast;
+		}
+		mTimeLast = time;
+
+		// If we're out of tick timer bounds.
+		if (time - mTimeTickStart > TICK_TIME * 1000000
+				|| mTimeTickStart < 0) {
+			mTimeTickStart = time;
+			newTime = true;
+		}
+
+		// Calculate time interpolator, a value between [0, 1].
+		float timeT = (time - mTimeTickStart) / (TICK_TIME * 1e6f);
+		// We need only smooth Hermite interpolator.
+		timeT = timeT * timeT * (3 - 2 * timeT);
+
+		step(timeT, newTime);
+	}
+
+	/**
+	 * Fill data structure for storing source position, target position,
+	 * normal and color. Normal is stored as {x,y} tuple and positions as two
+	 * {x,y} tuples.
+	 */
+	public static final class StructFillData {
+		// Fill color RGB values.
+		public final float mColor[] = new float[3];
+		// Normal direction.
+		public final float mFillNormal[] = new float[2];
+		// Source and target positions.
+		public final float mFillPositions[] = new float[4];
+	}
+
+}
@@ -0,0 +1,443 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Structure-of-arrays storage for foreground boxes. Every box value is kept in
+ * a packed primitive column instead of per box objects so that interpolation
+ * and regeneration are plain loops over arrays, even for tens of thousands of
+ * boxes. Source and target columns are those of current LBKeyframes source
+ * and target keyframes, new targets are generated into keyframes ahead of
+ * time by keyframe generator.
+ */
+public final class LBBoxStore {
+
+	// Number of chunks large box counts are regenerated in, each with its
+	// own random number generator. Fixed so that generated boxes don't depend
+	// on number of cores.
+	private static final int CHUNK_COUNT = 8;
+	// Minimum box count for regenerating in chunks.
+	private static final int PARALLEL_THRESHOLD = 8192;
+	// Shared worker threads for parallel regeneration.
+	private static ExecutorService sExecutor;
+	// Number of threads chunks are spread over, at most one per core.
+	private static final int THREAD_COUNT = Math.min(CHUNK_COUNT, Runtime
+			.getRuntime().availableProcessors());
+
+	// Box source color RGB values, {r, g, b} tuple per box.
+	public float mColorSource[] = {};
+	// Box target color RGB values, {r, g, b} tuple per box.
+	public float mColorTarget[] = {};
+	// Box source position values, {x, y} tuple per box.
+	public float mPosSource[] = {};
+	// Box target position values, {x, y} tuple per box.
+	public float mPosTarget[] = {};
+	// Box scale source values.
+	public float mScaleSource[] = {};
+	// Box scale target values.
+	public float mScaleTarget[] = {};
+
+	// Random number generators for chunks.
+	private final LBRandom mChunkRandoms[] = new LBRandom[CHUNK_COUNT];
+	// Number of active boxes.
+	private int mCount;
+	// Keyframe columns being generated, accessed from generator only.
+	private float mGenColor[], mGenPos[], mGenScale[];
+	// Lock object for waiting parallel regeneration tasks.
+	private final Object mLock = new Object();
+	// Value for counting The LoveBeat.
+	private int mLoveBeat;
+	// Flag for allowing parallel regeneration.
+	private boolean mParallel = true;
+	// Random number generator for generator thread.
+	private final LBRandom mRandom;
+	// Number of boxes being regenerated in chunks.
+	private int mRegenCount;
+	// Per box flag for boxes which got new target values on last tick.
+	private boolean mRegenerated[] = {};
+	// Preallocated regeneration tasks, one per thread.
+	private final RegenTask mTasks[] = new RegenTask[THREAD_COUNT];
+	// Number of regeneration tasks still running.
+	private int mTasksPending;
+
+	/**
+	 * Constructor for box store with given random seed. Same seed and same
+	 * sequence of calls always produce same box values.
+	 *
+	 * @param seed
+	 *            Random seed.
+	 */
+	public LBBoxStore(long seed) {
+		mRandom = new LBRandom(seed);
+		for (int i = 0; i < CHUNK_COUNT; ++i) {
+			mChunkRandoms[i] = new LBRandom(mRandom.nextLong());
+		}
+		for (int i = 0; i < mTasks.length; ++i) {
+			mTasks[i] = new RegenTask(i);
+		}
+	}
+
+	/**
+	 * Initializes boxes within given index range with random target values.
+	 * Should be called from generator only.
+	 *
+	 * @param keyframe
+	 *            Keyframe to store target values into, large enough already.
+	 * @param start
+	 *            First box index, inclusive.
+	 * @param end
+	 *            Last box index, exclusive.
+	 */
+	public void genBoxes(LBKeyframes.Keyframe keyframe, int start, int end) {
+		mGenColor = keyframe.mColor;
+		mGenPos = keyframe.mPos;
+		mGenScale = keyframe.mScale;
+		for (int i = start; i < end; ++i) {
+			genRandBox(i, mRandom);
+		}
+	}
+
+	/**
+	 * Generates box targets of next keyframe. Previous target values are
+	 * copied and new target values are generated for randomly chosen boxes.
+	 * Should be called from generator only.
+	 *
+	 * @param prev
+	 *            Previous keyframe.
+	 * @param next
+	 *            Keyframe to generate, grown to count if needed.
+	 * @param count
+	 *            Number of boxes to generate.
+	 */
+	public void genKeyframe(LBKeyframes.Keyframe prev,
+			LBKeyframes.Keyframe next, int count) {
+		// Increase the beat.
+		++mLoveBeat;
+
+		// Copy previous target values.
+		next.setCapacity(count);
+		System.arraycopy(prev.mPos, 0, next.mPos, 0, count * 2);
+		System.arraycopy(prev.mScale, 0, next.mScale, 0, count);
+		System.arraycopy(prev.mColor, 0, next.mColor, 0, count * 3);
+		mGenColor = next.mColor;
+		mGenPos = next.mPos;
+		mGenScale = next.mScale;
+		if (mRegenerated.length < count) {
+			mRegenerated = new boolean[count];
+		}
+
+		// Generate new target values, in chunks for large box counts.
+		if (count >= PARALLEL_THRESHOLD) {
+			regenChunks(count);
+		} else {
+			genRandBoxes(0, count, mRandom);
+		}
+
+		// If we've hit The LoveBeat limit and are feeling lucky turn first
+		// regenerated box into LoveBeat colored one.
+		for (int i = 0; i < count && mLoveBeat > 10; ++i) {
+			if (mRegenerated[i] && mRandom.nextFloat() > 0.2f) {
+				mLoveBeat = 0;
+				mGenColor[i * 3 + 0] = 0.9f;
+				mGenColor[i * 3 + 1] = 0.4f;
+				mGenColor[i * 3 + 2] = 0.4f;
+			}
+		}
+	}
+
+	/**
+	 * Fills box at given index with random target values. LoveBeat coloring is
+	 * handled separately once all boxes are generated.
+	 *
+	 * @param index
+	 *            Index of box.
+	 * @param random
+	 *            Random number generator to use.
+	 */
+	private void genRandBox(int index, LBRandom random) {
+		// Set random target position.
+		float x = (random.nextFloat() * 1.6f) - 0.8f;
+		float y = (random.nextFloat() * 1.6f) - 0.8f;
+		// Round position to 10x10 grid.
+		mGenPos[index * 2 + 0] = Math.round(x * 5) / 5f;
+		mGenPos[index * 2 + 1] = Math.round(y * 5) / 5f;
+		mGenScale[index] = (random.nextFloat() * 0.05f) + 0.05f;
+		// Select random gray color.
+		float rgb = (random.nextFloat() * 0.7f) + 0.3f;
+		mGenColor[index * 3 + 0] = rgb;
+		mGenColor[index * 3 + 1] = rgb;
+		mGenColor[index * 3 + 2] = rgb;
+	}
+
+	/**
+	 * Regenerates boxes within given index range. Given some probability box
+	 * gets new target values, otherwise it is being paused.
+	 *
+	 * @param start
+	 *            First box index, inclusive.
+	 * @param end
+	 *            Last box index, exclusive.
+	 * @param random
+	 *            Random number generator to use.
+	 */
+	private void genRandBoxes(int start, int end, LBRandom random) {
+		for (int i = start; i < end; ++i) {
+			mRegenerated[i] = random.nextFloat() > 0.4f;
+			if (mRegenerated[i]) {
+				genRandBox(i, random);
+			}
+		}
+	}
+
+	/**
+	 * Getter for box count.
+	 *
+	 * @return Number of active boxes.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Getter for number of values stored by saveState(long[], int).
+	 *
+	 * @return Generator state length.
+	 */
+	public int getStateLength() {
+		return 2 + CHUNK_COUNT;
+	}
+
+	/**
+	 * Regenerates chunk at given index. Chunks split box count evenly.
+	 */
+	private void regenChunk(int index) {
+		int start = (int) ((long) mRegenCount * index / CHUNK_COUNT);
+		int end = (int) ((long) mRegenCount * (index + 1) / CHUNK_COUNT);
+		genRandBoxes(start, end, mChunkRandoms[index]);
+	}
+
+	/**
+	 * Regenerates boxes in fixed number of chunks. If parallel regeneration
+	 * is enabled chunks are spread over worker threads and calling thread,
+	 * and this method waits for them to finish. Result is same either way.
+	 */
+	private void regenChunks(int count) {
+		mRegenCount = count;
+		if (!mParallel || THREAD_COUNT == 1) {
+			for (int i = 0; i < CHUNK_COUNT; ++i) {
+				regenChunk(i);
+			}
+			return;
+		}
+
+		synchronized (LBBoxStore.class) {
+			if (sExecutor == null) {
+				sExecutor = Executors.newFixedThreadPool(THREAD_COUNT - 1,
+						new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "LBBoxStore");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+		}
+
+		synchronized (mLock) {
+			mTasksPending = mTasks.length - 1;
+		}
+		for (int i = 1; i < mTasks.length; ++i) {
+			sExecutor.execute(mTasks[i]);
+		}
+		mTasks[0].runChunks();
+		synchronized (mLock) {
+			while (mTasksPending > 0) {
+				try {
+					mLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores generator state, random number generators and LoveBeat
+	 * counter. Should be called from generator only.
+	 *
+	 * @param state
+	 *            Array to read state from.
+	 * @param offset
+	 *            Offset of first value.
+	 */
+	public void restoreState(long[] state, int offset) {
+		mLoveBeat = (int) state[offset];
+		mRandom.setState(state[offset + 1]);
+		for (int i = 0; i < CHUNK_COUNT; ++i) {
+			mChunkRandoms[i].setState(state[offset + 2 + i]);
+		}
+	}
+
+	/**
+	 * Stores generator state into given array. Should be called from
+	 * generator only.
+	 *
+	 * @param state
+	 *            Array to write state into, getStateLength() values.
+	 * @param offset
+	 *            Offset of first value.
+	 */
+	public void saveState(long[] state, int offset) {
+		state[offset] = mLoveBeat;
+		state[offset + 1] = mRandom.getState();
+		for (int i = 0; i < CHUNK_COUNT; ++i) {
+			state[offset + 2 + i] = mChunkRandoms[i].getState();
+		}
+	}
+
+	/**
+	 * Sets number of boxes. Count must not exceed number of boxes keyframes
+	 * have been generated for.
+	 *
+	 * @param count
+	 *            New box count.
+	 */
+	public void setCount(int count) {
+		mCount = count;
+	}
+
+	/**
+	 * Sets source and target values to those of given keyframes. Arrays are
+	 * referenced, not copied.
+	 *
+	 * @param source
+	 *            Source keyframe.
+	 * @param target
+	 *            Target keyframe.
+	 */
+	public void setKeyframes(LBKeyframes.Keyframe source,
+			LBKeyframes.Keyframe target) {
+		mColorSource = source.mColor;
+		mColorTarget = target.mColor;
+		mPosSource = source.mPos;
+		mPosTarget = target.mPos;
+		mScaleSource = source.mScale;
+		mScaleTarget = target.mScale;
+	}
+
+	/**
+	 * Enables or disables splitting regeneration across cores. Generated
+	 * boxes are the same either way.
+	 *
+	 * @param parallel
+	 *            If true, large box counts are regenerated in parallel.
+	 */
+	public void setParallel(boolean parallel) {
+		mParallel = parallel;
+	}
+
+	/**
+	 * Writes interpolated box values into given array. Values are stored as
+	 * {x, y, scale, r, g, b} tuples at dst[offset + n * stride] and every box
+	 * is repeated vertexCount times.
+	 *
+	 * @param timeT
+	 *            Time interpolator, float between [0f, 1f].
+	 * @param dst
+	 *            Destination array.
+	 * @param offset
+	 *            Offset of first value.
+	 * @param stride
+	 *            Distance between two tuples in floats.
+	 * @param vertexCount
+	 *            Number of times each box is repeated.
+	 * @return Number of floats spanned in destination array.
+	 */
+	public int writeInterpolated(float timeT, float[] dst, int offset,
+			int stride, int vertexCount) {
+		final float posSource[] = mPosSource, posTarget[] = mPosTarget;
+		final float scaleSource[] = mScaleSource, scaleTarget[] = mScaleTarget;
+		final float colorSource[] = mColorSource, colorTarget[] = mColorTarget;
+		int idx = offset;
+		for (int i = 0; i < mCount; ++i) {
+			// Interpolate scale value.
+			float scale = scaleSource[i] + (scaleTarget[i] - scaleSource[i])
+					* timeT;
+			// Interpolate position values.
+			int i2 = i * 2;
+			float x = posSource[i2] + (posTarget[i2] - posSource[i2]) * timeT;
+			float y = posSource[i2 + 1]
+					+ (posTarget[i2 + 1] - posSource[i2 + 1]) * timeT;
+			// Interpolate color values.
+			int i3 = i * 3;
+			float r = colorSource[i3] + (colorTarget[i3] - colorSource[i3])
+					* timeT;
+			float g = colorSource[i3 + 1]
+					+ (colorTarget[i3 + 1] - colorSource[i3 + 1]) * timeT;
+			float b = colorSource[i3 + 2]
+					+ (colorTarget[i3 + 2] - colorSource[i3 + 2]) * timeT;
+
+			for (int v = 0; v < vertexCount; ++v) {
+				dst[idx + 0] = x;
+				dst[idx + 1] = y;
+				dst[idx + 2] = scale;
+				dst[idx + 3] = r;
+				dst[idx + 4] = g;
+				dst[idx + 5] = b;
+				idx += stride;
+			}
+		}
+		return idx - offset;
+	}
+
+	/**
+	 * Regeneration task for single thread, runs every THREAD_COUNT'th chunk
+	 * starting from its own index.
+	 */
+	private final class RegenTask implements Runnable {
+		// Index of first chunk.
+		private final int mIndex;
+
+		public RegenTask(int index) {
+			mIndex = index;
+		}
+
+		@Override
+		public void run() {
+			runChunks();
+			synchronized (mLock) {
+				--mTasksPending;
+				mLock.notify();
+			}
+		}
+
+		/**
+		 * Regenerates chunks of this task.
+		 */
+		public void runChunks() {
+			for (int i = mIndex; i < CHUNK_COUNT; i += THREAD_COUNT) {
+				regenChunk(i);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Helper class for handling vertex buffer objects. Static buffers keep their
+ * data and upload it once, dynamic buffers are streamed per frame orphaning
+ * previous storage so that driver doesn't have to wait for draws still using
+ * it. Once context is lost buffer is invalidated and recreated on next use.
+ */
+public final class LBBuffer {
+
+	// Static buffer data, null for dynamic buffers.
+	private Buffer mData;
+	// GL state all calls go through.
+	private final LBGLState mGL;
+	// Buffer handle, -1 if not created for current context.
+	private int mHandle = -1;
+	// Size of buffer storage in bytes.
+	private int mSize;
+	// Usage hint, e.g. GL_STATIC_DRAW or GL_STREAM_DRAW.
+	private final int mUsage;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param usage
+	 *            Usage hint for buffer storage.
+	 */
+	public LBBuffer(LBGLState gl, int usage) {
+		mGL = gl;
+		mUsage = usage;
+	}
+
+	/**
+	 * Binds this buffer as current array buffer. Static buffer is recreated
+	 * from its data if needed.
+	 */
+	public void bind() {
+		if (mHandle == -1) {
+			int handle[] = { 0 };
+			mGL.glGenBuffers(1, handle, 0);
+			mHandle = handle[0];
+			mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mHandle);
+			if (mData != null) {
+				mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, mSize, mData, mUsage);
+			} else {
+				mSize = 0;
+			}
+		}
+		mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mHandle);
+	}
+
+	/**
+	 * Initializes static buffer with given data. Data is kept for recreating
+	 * buffer after context loss and should not be modified afterwards.
+	 *
+	 * @param data
+	 *            Buffer data, read from position 0.
+	 * @param size
+	 *            Data size in bytes.
+	 */
+	public void init(Buffer data, int size) {
+		mData = data;
+		mSize = size;
+		if (mHandle == -1) {
+			bind();
+		} else {
+			mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mHandle);
+			mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, mSize, mData, mUsage);
+		}
+	}
+
+	/**
+	 * Drops buffer handle without deleting it. Should be called once context
+	 * this buffer was created with has gone away.
+	 */
+	public void invalidate() {
+		mHandle = -1;
+	}
+
+	/**
+	 * Resets this buffer into its initial state, releasing buffer object.
+	 * Static data is kept.
+	 */
+	public void reset() {
+		if (mHandle != -1) {
+			int handle[] = { mHandle };
+			mGL.glDeleteBuffers(1, handle, 0);
+			mHandle = -1;
+		}
+	}
+
+	/**
+	 * Streams new contents into dynamic buffer and leaves it bound. Previous
+	 * storage is orphaned first, it's grown if given data doesn't fit in.
+	 *
+	 * @param data
+	 *            Buffer data, read from position 0.
+	 * @param size
+	 *            Data size in bytes.
+	 */
+	public void update(Buffer data, int size) {
+		bind();
+		mSize = Math.max(mSize, size);
+		mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, mSize, null, mUsage);
+		mGL.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, size, data);
+	}
+
+}
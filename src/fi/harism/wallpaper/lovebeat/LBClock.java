@@ -0,0 +1,44 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Time source for rendering. Renderer takes time of every frame from its
+ * clock and touch samples are passed through it on their way to renderer,
+ * so that frame timestamps and touch input can be recorded and replayed
+ * exactly, or animation run on virtual time. Frame and sample times are in
+ * nanos and share same time base.
+ */
+public interface LBClock {
+
+	/**
+	 * Returns time of next frame and moves touch samples for it from queued
+	 * input into frame queue. Called from render thread once per frame.
+	 * 
+	 * @param time
+	 *            System time frame is presented at in nanos, same time base
+	 *            with System.nanoTime() and motion event times.
+	 * @param touches
+	 *            Touch samples queued from main thread.
+	 * @param frameTouches
+	 *            Queue to add touch samples for this frame into.
+	 * @return Frame time in nanos, never less than previous one.
+	 */
+	public long nextFrame(long time, LBTouchQueue touches,
+			LBTouchQueue frameTouches);
+
+}
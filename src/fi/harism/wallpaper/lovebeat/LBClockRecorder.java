@@ -0,0 +1,130 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Clock recording frame times and touch samples of target clock into a
+ * compact binary log. Each frame is stored as its time followed by number of
+ * touch samples and the samples, {action, x, y, time} each, in big-endian
+ * order; ints and floats take four bytes and times eight bytes. Logs are
+ * replayed with LBClockReplay, together with same animation seed and surface
+ * size they reproduce rendered frames exactly. Log can be read from other
+ * threads while recording.
+ */
+public final class LBClockRecorder implements LBClock {
+
+	// Number of frames recorded.
+	private int mFrameCount;
+	// Frame log, grown on demand.
+	private byte mLog[] = new byte[16384];
+	// Number of bytes used in frame log.
+	private int mLogLength;
+	// Clock frame times and touch samples are taken from.
+	private final LBClock mTarget;
+	// Touch samples of current frame.
+	private final LBTouchQueue mTouches = new LBTouchQueue();
+
+	/**
+	 * Constructor for recorder taking frames from given clock.
+	 * 
+	 * @param target
+	 *            Target clock.
+	 */
+	public LBClockRecorder(LBClock target) {
+		mTarget = target;
+	}
+
+	/**
+	 * Helper method for growing frame log.
+	 */
+	private void ensureCapacity(int size) {
+		if (mLogLength + size > mLog.length) {
+			byte log[] = new byte[Math.max(mLog.length * 2, mLogLength + size)];
+			System.arraycopy(mLog, 0, log, 0, mLogLength);
+			mLog = log;
+		}
+	}
+
+	/**
+	 * Getter for number of frames recorded.
+	 * 
+	 * @return Frame count.
+	 */
+	public synchronized int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * Returns copy of frame log recorded so far.
+	 * 
+	 * @return Frame log.
+	 */
+	public synchronized byte[] getLog() {
+		byte log[] = new byte[mLogLength];
+		System.arraycopy(mLog, 0, log, 0, mLogLength);
+		return log;
+	}
+
+	@Override
+	public synchronized long nextFrame(long time, LBTouchQueue touches,
+			LBTouchQueue frameTouches) {
+		long frameTime = mTarget.nextFrame(time, touches, mTouches);
+		writeLong(frameTime);
+		// Sample count is written once samples have been.
+		int countPosition = mLogLength;
+		writeInt(0);
+		int count = 0;
+		while (!mTouches.isEmpty()) {
+			int action = mTouches.getAction();
+			float x = mTouches.getX(), y = mTouches.getY();
+			long sampleTime = mTouches.getTime();
+			mTouches.remove();
+			writeInt(action);
+			writeInt(Float.floatToIntBits(x));
+			writeInt(Float.floatToIntBits(y));
+			writeLong(sampleTime);
+			frameTouches.add(action, x, y, sampleTime);
+			++count;
+		}
+		int length = mLogLength;
+		mLogLength = countPosition;
+		writeInt(count);
+		mLogLength = length;
+		++mFrameCount;
+		return frameTime;
+	}
+
+	/**
+	 * Writes int value into frame log.
+	 */
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		mLog[mLogLength++] = (byte) (value >>> 24);
+		mLog[mLogLength++] = (byte) (value >>> 16);
+		mLog[mLogLength++] = (byte) (value >>> 8);
+		mLog[mLogLength++] = (byte) value;
+	}
+
+	/**
+	 * Writes long value into frame log.
+	 */
+	private void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+}
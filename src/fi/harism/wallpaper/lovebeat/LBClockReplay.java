@@ -0,0 +1,77 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Clock replaying frame log recorded with LBClockRecorder. Every frame gets
+ * its recorded time and touch samples regardless of system time, live touch
+ * input is dropped. Once log has been replayed clock keeps advancing with
+ * last recorded frame interval.
+ */
+public final class LBClockReplay implements LBClock {
+
+	// Last frame interval in nanos.
+	private long mFrameInterval;
+	// Frame log being replayed.
+	private final ByteBuffer mLog;
+	// Previous frame time, -1 before first frame.
+	private long mTimeLast = -1;
+
+	/**
+	 * Constructor for replaying given frame log.
+	 * 
+	 * @param log
+	 *            Frame log from LBClockRecorder.getLog().
+	 */
+	public LBClockReplay(byte[] log) {
+		mLog = ByteBuffer.wrap(log);
+	}
+
+	/**
+	 * Checks whether every recorded frame has been replayed.
+	 * 
+	 * @return True once log has been replayed.
+	 */
+	public boolean isFinished() {
+		return !mLog.hasRemaining();
+	}
+
+	@Override
+	public long nextFrame(long time, LBTouchQueue touches,
+			LBTouchQueue frameTouches) {
+		touches.clear();
+		if (isFinished()) {
+			mTimeLast += mFrameInterval;
+			return mTimeLast;
+		}
+		long frameTime = mLog.getLong();
+		for (int count = mLog.getInt(); count > 0; --count) {
+			int action = mLog.getInt();
+			float x = mLog.getFloat();
+			float y = mLog.getFloat();
+			frameTouches.add(action, x, y, mLog.getLong());
+		}
+		if (mTimeLast >= 0) {
+			mFrameInterval = frameTime - mTimeLast;
+		}
+		mTimeLast = frameTime;
+		return frameTime;
+	}
+
+}
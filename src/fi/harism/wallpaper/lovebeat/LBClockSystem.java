@@ -0,0 +1,50 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Clock following system time. Frame intervals are limited so that after a
+ * pause, or an exceptionally long frame, animation continues where it was
+ * instead of jumping ahead. Time skipped is subtracted from touch sample
+ * times too, keeping them in frame time base.
+ */
+public final class LBClockSystem implements LBClock {
+
+	// Longest frame interval in nanos, longer gaps are skipped.
+	private static final long MAX_FRAME_INTERVAL = 100000000;
+
+	// Time skipped so far in nanos.
+	private long mSkipped;
+	// Previous system frame time, -1 before first frame.
+	private long mTimeLast = -1;
+
+	@Override
+	public long nextFrame(long time, LBTouchQueue touches,
+			LBTouchQueue frameTouches) {
+		if (mTimeLast >= 0 && time - mTimeLast > MAX_FRAME_INTERVAL) {
+			mSkipped += time - mTimeLast - MAX_FRAME_INTERVAL;
+		}
+		mTimeLast = Math.max(mTimeLast, time);
+		while (!touches.isEmpty()) {
+			frameTouches.add(touches.getAction(), touches.getX(),
+					touches.getY(), touches.getTime() - mSkipped);
+			touches.remove();
+		}
+		return mTimeLast - mSkipped;
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Clock advancing a fixed interval per frame regardless of system time. Meant
+ * for running animation headless, e.g. against LBGLNull, as fast as frames
+ * can be rendered while getting same frame times on every run. Touch input
+ * is dropped.
+ */
+public final class LBClockVirtual implements LBClock {
+
+	// Frame interval in nanos.
+	private final long mFrameInterval;
+	// Time of next frame in nanos.
+	private long mTime;
+
+	/**
+	 * Constructor for clock starting from given time.
+	 * 
+	 * @param startTime
+	 *            Time of first frame in nanos.
+	 * @param frameInterval
+	 *            Time between frames in nanos.
+	 */
+	public LBClockVirtual(long startTime, long frameInterval) {
+		mTime = startTime;
+		mFrameInterval = frameInterval;
+	}
+
+	@Override
+	public long nextFrame(long time, LBTouchQueue touches,
+			LBTouchQueue frameTouches) {
+		touches.clear();
+		long frameTime = mTime;
+		mTime += mFrameInterval;
+		return frameTime;
+	}
+
+}
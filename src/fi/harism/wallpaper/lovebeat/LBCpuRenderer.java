@@ -0,0 +1,481 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Software renderer producing the same image as shaders do into an ARGB int
+ * pixel array. Background bands are swept into a persistent background
+ * buffer, which is then composited with touch displacement, grain and
+ * vignette and finally rounded foreground boxes are drawn on top of it.
+ * Pixel rows are rendered in interleaved bands across cores. There are no
+ * Android dependencies, pixels are stored top row first.
+ */
+public final class LBCpuRenderer {
+
+	// Number of pixel rows in a band rendered by one task at a time.
+	private static final int BAND_HEIGHT = 16;
+	// Composite rendering phase.
+	private static final int PHASE_COMPOSITE = 1;
+	// Background band rendering phase.
+	private static final int PHASE_FILL = 0;
+	// Shared worker threads for rendering.
+	private static ExecutorService sExecutor;
+	// Number of available cores.
+	private static final int THREAD_COUNT = Runtime.getRuntime()
+			.availableProcessors();
+
+	// Animation being rendered.
+	private LBAnimation mAnimation;
+	// Render area aspect ratio.
+	private final float mAspectRatio[] = new float[2];
+	// Background pixels, overdrawn with band sweeps only.
+	private int mBackground[] = {};
+	// Box pixel bounds, {left, top, right, bottom} tuple per box.
+	private int mBoxBounds[] = {};
+	// Number of boxes.
+	private int mBoxCount;
+	// Interpolated boxes, {x, y, scale, r, g, b} tuple per box.
+	private float mBoxes[] = {};
+	// Maximum touch displacement in normalized device coordinates.
+	private float mDisplacement;
+	// Flag for rendering grain.
+	private boolean mGrain = true;
+	// Lock object for waiting render tasks.
+	private final Object mLock = new Object();
+	// Grain lookup table, one row per random seed.
+	private byte mNoise[] = {};
+	// Grain lookup table row for current frame.
+	private int mNoiseRow;
+	// Output pixels.
+	private int mPixels[] = {};
+	// Preallocated render tasks, one per core.
+	private final RenderTask mTasks[] = new RenderTask[THREAD_COUNT];
+	// Number of render tasks still running.
+	private int mTasksPending;
+	// Touch start and current position for current frame.
+	private final float mTouchPositions[] = new float[4];
+	// Normalized up and right vectors for current frame.
+	private float mUpX, mUpY, mRightX, mRightY;
+	// Flag for rendering border vignette.
+	private boolean mVignette = true;
+	// Vignette lookup table, first value is for inside border.
+	private byte mVignetteTable[] = {};
+	// Render area width and height.
+	private int mWidth, mHeight;
+
+	/**
+	 * Default constructor.
+	 */
+	public LBCpuRenderer() {
+		for (int i = 0; i < mTasks.length; ++i) {
+			mTasks[i] = new RenderTask(i);
+		}
+	}
+
+	/**
+	 * Calculates pixel bounds for box at given index. Bounds are grown by
+	 * maximum touch displacement.
+	 */
+	private void calculateBoxBounds(int index) {
+		float cx = mBoxes[index * 6 + 0];
+		float cy = mBoxes[index * 6 + 1];
+		float scale = mBoxes[index * 6 + 2];
+		float centerX = cx * mRightX + cy * mUpX;
+		float centerY = cx * mRightY + cy * mUpY;
+		float extentX = mAspectRatio[0] * scale
+				* (Math.abs(mRightX) + Math.abs(mUpX)) + mDisplacement;
+		float extentY = mAspectRatio[1] * scale
+				* (Math.abs(mRightY) + Math.abs(mUpY)) + mDisplacement;
+		int bounds[] = mBoxBounds;
+		bounds[index * 4 + 0] = Math.max(0,
+				(int) ((centerX - extentX + 1) * 0.5f * mWidth));
+		bounds[index * 4 + 2] = Math.min(mWidth,
+				(int) ((centerX + extentX + 1) * 0.5f * mWidth) + 1);
+		bounds[index * 4 + 1] = Math.max(0,
+				(int) ((1 - centerY - extentY) * 0.5f * mHeight));
+		bounds[index * 4 + 3] = Math.min(mHeight,
+				(int) ((1 - centerY + extentY) * 0.5f * mHeight) + 1);
+	}
+
+	/**
+	 * Getter for render area height.
+	 *
+	 * @return Height in pixels.
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Getter for rendered pixels. Pixels are ARGB values, stored top row first
+	 * with stride equal to width.
+	 *
+	 * @return Pixel array.
+	 */
+	public int[] getPixels() {
+		return mPixels;
+	}
+
+	/**
+	 * Getter for render area width.
+	 *
+	 * @return Width in pixels.
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * Renders current state of given animation.
+	 *
+	 * @param animation
+	 *            Animation to render, stepped already for current frame.
+	 * @param touchPositions
+	 *            Touch start and current position as two {x, y} tuples in
+	 *            texture coordinates.
+	 * @param noiseSeed
+	 *            Grain random seed, [0, LBLookup.NOISE_SEED_COUNT).
+	 */
+	public void render(LBAnimation animation, float[] touchPositions,
+			int noiseSeed) {
+		mAnimation = animation;
+		System.arraycopy(touchPositions, 0, mTouchPositions, 0, 4);
+		mNoiseRow = noiseSeed;
+
+		// Calculate up vector same way renderer does.
+		double angle = animation.getRotationAngle() - Math.PI / 2;
+		float upX = (float) Math.cos(angle) * mAspectRatio[0];
+		float upY = (float) Math.sin(angle) * mAspectRatio[1];
+		float upLen = (float) Math.sqrt(upX * upX + upY * upY);
+		mUpX = upX / upLen;
+		mUpY = upY / upLen;
+		mRightX = mUpY;
+		mRightY = -mUpX;
+
+		// Maximum displacement in normalized device coordinates.
+		float dx = mTouchPositions[0] - mTouchPositions[2];
+		float dy = mTouchPositions[1] - mTouchPositions[3];
+		mDisplacement = (float) Math.sqrt(dx * dx + dy * dy) * 2;
+
+		// Fetch interpolated boxes and calculate their pixel bounds.
+		LBBoxStore boxes = animation.getBoxes();
+		mBoxCount = boxes.getCount();
+		if (mBoxes.length < mBoxCount * 6) {
+			mBoxes = new float[mBoxCount * 6];
+			mBoxBounds = new int[mBoxCount * 4];
+		}
+		boxes.writeInterpolated(animation.getTimeT(), mBoxes, 0, 6, 1);
+		for (int i = 0; i < mBoxCount; ++i) {
+			calculateBoxBounds(i);
+		}
+
+		// Background needs to be complete before it's sampled with
+		// displacement, hence two phases.
+		runTasks(PHASE_FILL);
+		runTasks(PHASE_COMPOSITE);
+		mAnimation = null;
+	}
+
+	/**
+	 * Renders composite pixels for given row.
+	 *
+	 * @param row
+	 *            Pixel row, top row being 0.
+	 */
+	private void renderComposite(int row) {
+		final int width = mWidth, height = mHeight;
+		final float touch[] = mTouchPositions;
+		final boolean displace = touch[0] != touch[2] || touch[1] != touch[3];
+		final float vignetteScale = (mVignetteTable.length - 1)
+				/ (float) mVignetteTable.length;
+		final float vignetteBias = 1f / mVignetteTable.length;
+		final float aspectX = mAspectRatio[0], aspectY = mAspectRatio[1];
+		final int noiseWidth = height;
+		final int noiseOffset = mNoiseRow * noiseWidth;
+
+		float ty = 1f - (row + 0.5f) / height;
+		for (int x = 0, idx = row * width; x < width; ++x, ++idx) {
+			float tx = (x + 0.5f) / width;
+
+			// Displacement mapping calculations.
+			float texX = tx, texY = ty;
+			if (displace) {
+				float dx = tx - touch[2], dy = ty - touch[3];
+				float c = 1f - (float) Math.sqrt(Math.sqrt(dx * dx + dy * dy));
+				texX += c * (touch[0] - touch[2]);
+				texY += c * (touch[1] - touch[3]);
+			}
+
+			// Fetch background.
+			int sx = clamp((int) Math.floor(texX * width), width);
+			int sy = clamp((int) Math.floor((1f - texY) * height), height);
+			int color = mBackground[sy * width + sx];
+
+			// Find topmost foreground box covering displaced position.
+			float posX = texX * 2 - 1, posY = texY * 2 - 1;
+			for (int i = 0; i < mBoxCount; ++i) {
+				int b = i * 4;
+				if (x < mBoxBounds[b] || x >= mBoxBounds[b + 2]
+						|| row < mBoxBounds[b + 1]
+						|| row >= mBoxBounds[b + 3]) {
+					continue;
+				}
+				int v = i * 6;
+				float cx = mBoxes[v], cy = mBoxes[v + 1];
+				float scale = Math.max(mBoxes[v + 2], 0.0001f);
+				float px = (posX - (cx * mRightX + cy * mUpX))
+						/ (aspectX * scale);
+				float py = (posY - (cx * mRightY + cy * mUpY))
+						/ (aspectY * scale);
+				// Crop portion of box for border and rounded corners.
+				float bx = Math.max(0f,
+						(Math.abs(px * mRightX + py * mRightY) - 0.8f) * 5f);
+				float by = Math.max(0f,
+						(Math.abs(px * mUpX + py * mUpY) - 0.8f) * 5f);
+				if (bx * bx + by * by <= 1f) {
+					color = 0xFF000000
+							| (toColor(mBoxes[v + 3]) << 16)
+							| (toColor(mBoxes[v + 4]) << 8)
+							| toColor(mBoxes[v + 5]);
+				}
+			}
+
+			// Adjust pixel color with grain and _rounded_ corners.
+			int coeff = 255 * 255;
+			if (mGrain) {
+				int nx = clamp((int) Math.floor(texY * noiseWidth),
+						noiseWidth);
+				coeff = (mNoise[noiseOffset + nx] & 0xFF) * 255;
+			}
+			if (mVignette) {
+				float ux = (tx - 0.5f) * 2, uy = (ty - 0.5f) * 2;
+				float shade = LBLookup.shade((float) Math.sqrt(ux * ux + uy
+						* uy));
+				int vx = clamp((int) Math.floor((shade * vignetteScale
+						+ vignetteBias) * mVignetteTable.length),
+						mVignetteTable.length);
+				coeff = coeff * (mVignetteTable[vx] & 0xFF) / 255;
+			}
+			int r = ((color >> 16) & 0xFF) * coeff / (255 * 255);
+			int g = ((color >> 8) & 0xFF) * coeff / (255 * 255);
+			int b = (color & 0xFF) * coeff / (255 * 255);
+			mPixels[idx] = 0xFF000000 | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/**
+	 * Sweeps background bands changed on current animation step into given
+	 * background row.
+	 *
+	 * @param row
+	 *            Pixel row, top row being 0.
+	 */
+	private void renderFill(int row) {
+		final LBAnimation animation = mAnimation;
+		final float sourceT = animation.getBandSourceT();
+		final float targetT = animation.getBandTargetT();
+		if (sourceT == targetT) {
+			return;
+		}
+		final int width = mWidth;
+		final float qy = 1f - (row + 0.5f) / mHeight * 2;
+
+		for (int i = 0; i < animation.getFillDataCount(); ++i) {
+			LBAnimation.StructFillData fillData = animation.getFillData(i);
+			float pos[] = fillData.mFillPositions;
+			float nx = fillData.mFillNormal[0], ny = fillData.mFillNormal[1];
+			// Band is a parallelogram a + u * (b - a) + v * normal.
+			float ax = pos[0] + (pos[2] - pos[0]) * sourceT;
+			float ay = pos[1] + (pos[3] - pos[1]) * sourceT;
+			float dx = (pos[2] - pos[0]) * (targetT - sourceT);
+			float dy = (pos[3] - pos[1]) * (targetT - sourceT);
+			float det = dx * ny - dy * nx;
+			if (det == 0) {
+				continue;
+			}
+			int color = 0xFF000000 | (toColor(fillData.mColor[0]) << 16)
+					| (toColor(fillData.mColor[1]) << 8)
+					| toColor(fillData.mColor[2]);
+
+			// Solve u and v for first pixel on row, both are linear in x.
+			float qx = 1f / width - 1f;
+			float u = ((qx - ax) * ny - (qy - ay) * nx) / det;
+			float v = (dx * (qy - ay) - dy * (qx - ax)) / det;
+			float du = (2f / width) * ny / det;
+			float dv = -(2f / width) * dy / det;
+			for (int x = 0, idx = row * width; x < width; ++x, ++idx) {
+				// Half open u range so that consecutive bands don't overlap.
+				if (u >= 0 && u < 1 && v >= 0 && v <= 1) {
+					mBackground[idx] = color;
+				}
+				u += du;
+				v += dv;
+			}
+		}
+	}
+
+	/**
+	 * Runs given phase for all pixel rows across worker threads and waits for
+	 * them to finish. First task is executed on calling thread.
+	 */
+	private void runTasks(int phase) {
+		synchronized (LBCpuRenderer.class) {
+			if (sExecutor == null && THREAD_COUNT > 1) {
+				sExecutor = Executors.newFixedThreadPool(THREAD_COUNT - 1,
+						new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r,
+										"LBCpuRenderer");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+		}
+
+		synchronized (mLock) {
+			mTasksPending = mTasks.length - 1;
+		}
+		for (int i = 0; i < mTasks.length; ++i) {
+			mTasks[i].mPhase = phase;
+		}
+		for (int i = 1; i < mTasks.length; ++i) {
+			sExecutor.execute(mTasks[i]);
+		}
+		mTasks[0].renderRows();
+		synchronized (mLock) {
+			while (mTasksPending > 0) {
+				try {
+					mLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enables or disables grain.
+	 *
+	 * @param grain
+	 *            If true, grain is rendered.
+	 */
+	public void setGrain(boolean grain) {
+		mGrain = grain;
+	}
+
+	/**
+	 * Sets render area size. Pixel buffers and lookup tables are reallocated
+	 * and background is cleared.
+	 *
+	 * @param width
+	 *            Width in pixels.
+	 * @param height
+	 *            Height in pixels.
+	 */
+	public void setSize(int width, int height) {
+		if (width == mWidth && height == mHeight) {
+			return;
+		}
+		mWidth = width;
+		mHeight = height;
+		mAspectRatio[0] = Math.max(width, height) / (float) width;
+		mAspectRatio[1] = Math.max(width, height) / (float) height;
+
+		mBackground = new int[width * height];
+		Arrays.fill(mBackground, 0xFF000000);
+		mPixels = new int[width * height];
+
+		mNoise = new byte[height * LBLookup.NOISE_SEED_COUNT];
+		LBLookup.genNoise(mNoise, height);
+		mVignetteTable = new byte[LBLookup.getVignetteWidth(width, height)];
+		LBLookup.genVignette(mVignetteTable, mVignetteTable.length);
+	}
+
+	/**
+	 * Enables or disables rounded corner border vignette.
+	 *
+	 * @param vignette
+	 *            If true, border vignette is rendered.
+	 */
+	public void setVignette(boolean vignette) {
+		mVignette = vignette;
+	}
+
+	/**
+	 * Helper method for clamping index to [0, size).
+	 */
+	private static int clamp(int index, int size) {
+		return index < 0 ? 0 : index >= size ? size - 1 : index;
+	}
+
+	/**
+	 * Helper method for converting [0, 1] color value to unsigned byte.
+	 */
+	private static int toColor(float value) {
+		return Math.max(0, Math.min(255, Math.round(value * 255)));
+	}
+
+	/**
+	 * Render task for interleaved bands of pixel rows.
+	 */
+	private final class RenderTask implements Runnable {
+		// Index of this task.
+		public final int mIndex;
+		// Phase to render.
+		public int mPhase;
+
+		public RenderTask(int index) {
+			mIndex = index;
+		}
+
+		/**
+		 * Renders every mTasks.length'th band of rows starting from band
+		 * mIndex.
+		 */
+		public void renderRows() {
+			final int bandStep = mTasks.length * BAND_HEIGHT;
+			for (int band = mIndex * BAND_HEIGHT; band < mHeight;
+					band += bandStep) {
+				int end = Math.min(mHeight, band + BAND_HEIGHT);
+				for (int row = band; row < end; ++row) {
+					if (mPhase == PHASE_FILL) {
+						renderFill(row);
+					} else {
+						renderComposite(row);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			renderRows();
+			synchronized (mLock) {
+				--mTasksPending;
+				mLock.notify();
+			}
+		}
+	}
+
+}
@@ -16,15 +16,38 @@
 
 package fi.harism.wallpaper.lovebeat;
 
+import java.io.PrintWriter;
+
 import android.opengl.GLES20;
 
 /**
- * Helper class for handling frame buffer objects.
+ * Helper class for handling frame buffer objects. Each texture can have its
+ * own color format, 16 bit formats halve memory bandwidth compared to RGBA8.
+ * Formats which can't be rendered into fall back to RGBA8.
  */
 public final class LBFbo {
 
+	// Bytes per pixel for each format.
+	private static final int FORMAT_BYTES[] = { 4, 2, 2 };
+	// GL format for each format, used as internal format too.
+	private static final int FORMAT_GL[] = { GLES20.GL_RGBA, GLES20.GL_RGB,
+			GLES20.GL_RGBA };
+	// Format names for dumping.
+	private static final String FORMAT_NAMES[] = { "RGBA8", "RGB565",
+			"RGBA4444" };
+	// Texture formats.
+	public static final int FORMAT_RGBA8 = 0, FORMAT_RGB565 = 1,
+			FORMAT_RGBA4444 = 2;
+	// GL type for each format.
+	private static final int FORMAT_TYPES[] = { GLES20.GL_UNSIGNED_BYTE,
+			GLES20.GL_UNSIGNED_SHORT_5_6_5, GLES20.GL_UNSIGNED_SHORT_4_4_4_4 };
+
 	// Optional depth buffer handle.
 	private int mDepthBufferHandle = -1;
+	// GL state all calls go through.
+	private final LBGLState mGL;
+	// Texture formats in use, after fallbacks.
+	private int[] mFormats = {};
 	// FBO handle.
 	private int mFrameBufferHandle = -1;
 	// Optional stencil buffer handle.
@@ -34,12 +57,22 @@ public final class LBFbo {
 	// FBO textures and depth buffer size.
 	private int mWidth, mHeight;
 
+	/**
+	 * Default constructor.
+	 * 
+	 * @param gl
+	 *            GL state for current context.
+	 */
+	public LBFbo(LBGLState gl) {
+		mGL = gl;
+	}
+
 	/**
 	 * Binds this FBO into use and adjusts viewport to FBO size.
 	 */
 	public void bind() {
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
-		GLES20.glViewport(0, 0, mWidth, mHeight);
+		mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		mGL.glViewport(0, 0, mWidth, mHeight);
 	}
 
 	/**
@@ -50,11 +83,80 @@ public final class LBFbo {
 	 *            Index of texture to bind.
 	 */
 	public void bindTexture(int index) {
-		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+		mGL.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
 				GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
 				mTextureHandles[index], 0);
 	}
 
+	/**
+	 * Prints size and format of every attachment plus total bytes allocated.
+	 * Can be called from any thread, values may be partially updated then.
+	 * 
+	 * @param out
+	 *            Writer to print to.
+	 * @param prefix
+	 *            Prefix for every line.
+	 */
+	public void dump(PrintWriter out, String prefix) {
+		int formats[] = mFormats;
+		for (int i = 0; i < formats.length; ++i) {
+			out.printf("%stexture %d: %dx%d %s, %d bytes%n", prefix, i,
+					mWidth, mHeight, FORMAT_NAMES[formats[i]],
+					mWidth * mHeight * FORMAT_BYTES[formats[i]]);
+		}
+		if (mDepthBufferHandle != -1) {
+			out.printf("%sdepth: %d bytes%n", prefix, mWidth * mHeight * 2);
+		}
+		if (mStencilBufferHandle != -1) {
+			out.printf("%sstencil: %d bytes%n", prefix, mWidth * mHeight);
+		}
+		out.println(prefix + "total: " + getBytes() + " bytes");
+	}
+
+	/**
+	 * Getter for total number of bytes allocated for textures and render
+	 * buffers.
+	 * 
+	 * @return Allocated size in bytes.
+	 */
+	public int getBytes() {
+		int bytes = 0;
+		int formats[] = mFormats;
+		for (int i = 0; i < formats.length; ++i) {
+			bytes += mWidth * mHeight * FORMAT_BYTES[formats[i]];
+		}
+		if (mDepthBufferHandle != -1) {
+			bytes += mWidth * mHeight * 2;
+		}
+		if (mStencilBufferHandle != -1) {
+			bytes += mWidth * mHeight;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Getter for number of bytes allocated for given texture.
+	 * 
+	 * @param index
+	 *            Index of texture.
+	 * @return Allocated size in bytes.
+	 */
+	public int getBytes(int index) {
+		return mWidth * mHeight * FORMAT_BYTES[mFormats[index]];
+	}
+
+	/**
+	 * Getter for format of given texture. Format may differ from requested
+	 * one if it wasn't supported.
+	 * 
+	 * @param index
+	 *            Index of texture.
+	 * @return Texture format, one of FORMAT_* values.
+	 */
+	public int getFormat(int index) {
+		return mFormats[index];
+	}
+
 	/**
 	 * Getter for FBO height.
 	 * 
@@ -84,9 +186,24 @@ public final class LBFbo {
 		return mWidth;
 	}
 
+	/**
+	 * Initializes FBO with given parameters. Calls simply init(int, int,
+	 * int[], boolean, boolean) without render buffer generations.
+	 * 
+	 * @param width
+	 *            Width in pixels.
+	 * @param height
+	 *            Height in pixels.
+	 * @param formats
+	 *            Format of each texture to generate, FORMAT_* values.
+	 */
+	public void init(int width, int height, int[] formats) {
+		init(width, height, formats, false, false);
+	}
+
 	/**
 	 * Initializes FBO with given parameters. Calls simply init(int, int, int,
-	 * boolean) without render buffer generations.
+	 * boolean, boolean) without render buffer generations.
 	 * 
 	 * @param width
 	 *            Width in pixels.
@@ -100,9 +217,8 @@ public final class LBFbo {
 	}
 
 	/**
-	 * Initializes FBO with given parameters. Width and height are used to
-	 * generate textures out of which all are sized same to this FBO. If you
-	 * give genRenderBuffer a value 'true', depth buffer will be generated also.
+	 * Initializes FBO with given parameters and RGBA8 textures. Calls simply
+	 * init(int, int, int[], boolean, boolean).
 	 * 
 	 * @param width
 	 *            FBO width in pixels
@@ -117,6 +233,32 @@ public final class LBFbo {
 	 */
 	public void init(int width, int height, int textureCount,
 			boolean genDepthBuffer, boolean genStencilBuffer) {
+		init(width, height, new int[textureCount], genDepthBuffer,
+				genStencilBuffer);
+	}
+
+	/**
+	 * Initializes FBO with given parameters. Width and height are used to
+	 * generate textures out of which all are sized same to this FBO. If you
+	 * give genRenderBuffer a value 'true', depth buffer will be generated also.
+	 * Every texture is checked for completeness, those with formats which
+	 * can't be rendered into are reallocated as RGBA8.
+	 * 
+	 * @param width
+	 *            FBO width in pixels
+	 * @param height
+	 *            FBO height in pixels
+	 * @param formats
+	 *            Format of each texture to generate, FORMAT_* values
+	 * @param genDepthBuffer
+	 *            If true, depth buffer is allocated for this FBO
+	 * @param genStencilBuffer
+	 *            If true, stencil buffer is allocated for this FBO
+	 * @throws RuntimeException
+	 *             If FBO is incomplete even with RGBA8 textures.
+	 */
+	public void init(int width, int height, int[] formats,
+			boolean genDepthBuffer, boolean genStencilBuffer) {
 
 		// Just in case.
 		reset();
@@ -127,52 +269,73 @@ public final class LBFbo {
 
 		// Genereta FBO.
 		int handle[] = { 0 };
-		GLES20.glGenFramebuffers(1, handle, 0);
+		mGL.glGenFramebuffers(1, handle, 0);
 		mFrameBufferHandle = handle[0];
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
 
 		// Generate textures.
+		int textureCount = formats.length;
+		int textureFormats[] = formats.clone();
 		mTextureHandles = new int[textureCount];
-		GLES20.glGenTextures(textureCount, mTextureHandles, 0);
-		for (int texture : mTextureHandles) {
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+		mGL.glGenTextures(textureCount, mTextureHandles, 0);
+		for (int i = 0; i < textureCount; ++i) {
+			mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[i]);
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+			// Linear magnification for FBOs sized below surface resolution.
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
-					mWidth, mHeight, 0, GLES20.GL_RGBA,
-					GLES20.GL_UNSIGNED_BYTE, null);
+			texImage(textureFormats[i]);
 		}
 
 		// Generate depth buffer.
 		if (genDepthBuffer) {
-			GLES20.glGenRenderbuffers(1, handle, 0);
+			mGL.glGenRenderbuffers(1, handle, 0);
 			mDepthBufferHandle = handle[0];
-			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
+			mGL.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
 					mDepthBufferHandle);
-			GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
+			mGL.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
 					GLES20.GL_DEPTH_COMPONENT16, width, height);
-			GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
+			mGL.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
 					GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_RENDERBUFFER,
 					mDepthBufferHandle);
 		}
 		// Generate stencil buffer.
 		if (genStencilBuffer) {
-			GLES20.glGenRenderbuffers(1, handle, 0);
+			mGL.glGenRenderbuffers(1, handle, 0);
 			mStencilBufferHandle = handle[0];
-			GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
+			mGL.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,
 					mStencilBufferHandle);
-			GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
+			mGL.glRenderbufferStorage(GLES20.GL_RENDERBUFFER,
 					GLES20.GL_STENCIL_INDEX8, width, height);
-			GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
+			mGL.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,
 					GLES20.GL_STENCIL_ATTACHMENT, GLES20.GL_RENDERBUFFER,
 					mStencilBufferHandle);
 		}
+
+		// Check completeness with every texture attached, falling back to
+		// RGBA8 which every implementation renders into.
+		for (int i = 0; i < textureCount; ++i) {
+			bindTexture(i);
+			int status = mGL.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+			if (status != GLES20.GL_FRAMEBUFFER_COMPLETE
+					&& textureFormats[i] != FORMAT_RGBA8) {
+				textureFormats[i] = FORMAT_RGBA8;
+				mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[i]);
+				texImage(FORMAT_RGBA8);
+				status = mGL.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+			}
+			if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+				reset();
+				throw new RuntimeException("Framebuffer incomplete: 0x"
+						+ Integer.toHexString(status));
+			}
+		}
+		mFormats = textureFormats;
 	}
 
 	/**
@@ -181,14 +344,23 @@ public final class LBFbo {
 	 */
 	public void reset() {
 		int[] handle = { mFrameBufferHandle };
-		GLES20.glDeleteFramebuffers(1, handle, 0);
+		mGL.glDeleteFramebuffers(1, handle, 0);
 		handle[0] = mDepthBufferHandle;
-		GLES20.glDeleteRenderbuffers(1, handle, 0);
+		mGL.glDeleteRenderbuffers(1, handle, 0);
 		handle[0] = mStencilBufferHandle;
-		GLES20.glDeleteRenderbuffers(1, handle, 0);
-		GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
+		mGL.glDeleteRenderbuffers(1, handle, 0);
+		mGL.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
 		mFrameBufferHandle = mDepthBufferHandle = mStencilBufferHandle = -1;
 		mTextureHandles = new int[0];
+		mFormats = new int[0];
+	}
+
+	/**
+	 * Helper method for allocating bound texture with given format.
+	 */
+	private void texImage(int format) {
+		mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, FORMAT_GL[format], mWidth,
+				mHeight, 0, FORMAT_GL[format], FORMAT_TYPES[format], null);
 	}
 
 }
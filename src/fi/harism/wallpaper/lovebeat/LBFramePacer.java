@@ -0,0 +1,234 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Frame rate governor for render thread target. Caps rendering to chosen
+ * frame rate by requesting renders at fixed intervals, raises the rate for the
+ * time touch interaction lasts and measures achieved frame intervals. All
+ * methods except onFrameRendered() and getFrameIntervals() should be called
+ * from main thread.
+ */
+public final class LBFramePacer implements Runnable {
+
+	// Frame rate value for rendering at display refresh rate.
+	public static final int FRAME_RATE_NATIVE = 0;
+	// Time interactive frame rate is kept after touch ends, in millis. Covers
+	// displacement fading away.
+	private static final long INTERACTIVE_HOLD_TIME = 500;
+	// Number of frame intervals kept for measurements.
+	private static final int INTERVAL_COUNT = 128;
+
+	// Frame rates when idle and during touch interaction.
+	private int mFrameRate, mFrameRateInteractive;
+	// Handler for posting render requests.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Ring buffer of measured frame intervals in nanos, guarded by
+	// mIntervalsLock.
+	private final long mIntervals[] = new long[INTERVAL_COUNT];
+	// Number of measured intervals in total, guarded by mIntervalsLock.
+	private int mIntervalsCount;
+	// Lock for measurements written on render thread.
+	private final Object mIntervalsLock = new Object();
+	// Time interaction ends in uptime millis, zero if not interacting.
+	private long mInteractiveEndTime;
+	// Flag for touch being down.
+	private boolean mInteractiveTouch;
+	// Time of last rendered frame in nanos, guarded by mIntervalsLock.
+	private long mLastFrameTime = -1;
+	// Time of next render request in uptime nanos.
+	private long mNextRequestTime;
+	// Flag for pacing being active.
+	private boolean mRunning;
+	// Target render requests are made on.
+	private final LBRenderThread.Target mTarget;
+	// Frame rate target has been set to, starts in continuous render mode.
+	private int mTargetFrameRate = FRAME_RATE_NATIVE;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param target
+	 *            Render thread target to request renders from.
+	 * @param frameRate
+	 *            Idle frame rate, FRAME_RATE_NATIVE for no limit.
+	 * @param frameRateInteractive
+	 *            Frame rate during touch interaction.
+	 */
+	public LBFramePacer(LBRenderThread.Target target, int frameRate,
+			int frameRateInteractive) {
+		mTarget = target;
+		mFrameRate = frameRate;
+		mFrameRateInteractive = frameRateInteractive;
+	}
+
+	/**
+	 * Getter for currently targeted frame rate.
+	 *
+	 * @return Frame rate or FRAME_RATE_NATIVE.
+	 */
+	public int getFrameRate() {
+		if (mInteractiveTouch
+				|| SystemClock.uptimeMillis() < mInteractiveEndTime) {
+			return mFrameRateInteractive;
+		}
+		return mFrameRate;
+	}
+
+	/**
+	 * Takes a snapshot of measured frame intervals. Can be called from any
+	 * thread.
+	 *
+	 * @param intervals
+	 *            Array to store average and longest frame interval into, in
+	 *            nanos, zeros if nothing has been measured.
+	 */
+	public void getFrameIntervals(long[] intervals) {
+		synchronized (mIntervalsLock) {
+			int count = Math.min(mIntervalsCount, INTERVAL_COUNT);
+			long sum = 0, max = 0;
+			for (int i = 0; i < count; ++i) {
+				sum += mIntervals[i];
+				max = Math.max(max, mIntervals[i]);
+			}
+			intervals[0] = count > 0 ? sum / count : 0;
+			intervals[1] = max;
+		}
+	}
+
+	/**
+	 * Should be called from render thread once frame has been rendered.
+	 */
+	public void onFrameRendered() {
+		long time = System.nanoTime();
+		synchronized (mIntervalsLock) {
+			if (mLastFrameTime >= 0) {
+				mIntervals[mIntervalsCount++ % INTERVAL_COUNT] = time
+						- mLastFrameTime;
+			}
+			mLastFrameTime = time;
+		}
+	}
+
+	/**
+	 * Pauses pacing.
+	 */
+	public void onPause() {
+		mRunning = false;
+		mHandler.removeCallbacks(this);
+		synchronized (mIntervalsLock) {
+			mLastFrameTime = -1;
+		}
+	}
+
+	/**
+	 * Resumes pacing.
+	 */
+	public void onResume() {
+		mRunning = true;
+		reschedule();
+	}
+
+	/**
+	 * Restarts render requests from current time.
+	 */
+	private void reschedule() {
+		mHandler.removeCallbacks(this);
+		mNextRequestTime = SystemClock.uptimeMillis() * 1000000;
+		run();
+	}
+
+	@Override
+	public void run() {
+		if (!mRunning) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		if (!mInteractiveTouch && mInteractiveEndTime > 0
+				&& now >= mInteractiveEndTime) {
+			mInteractiveEndTime = 0;
+		}
+
+		// Switch target render mode and frame interval if needed.
+		int frameRate = getFrameRate();
+		boolean continuous = frameRate == FRAME_RATE_NATIVE;
+		if (frameRate != mTargetFrameRate) {
+			mTargetFrameRate = frameRate;
+			mTarget.setRenderMode(continuous
+					? GLSurfaceView.RENDERMODE_CONTINUOUSLY
+					: GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+			mTarget.setFrameInterval(continuous ? 0
+					: 1000000000L / frameRate);
+		}
+
+		// Target renders continuously, come back once interaction ends.
+		if (continuous) {
+			if (!mInteractiveTouch && mInteractiveEndTime > 0) {
+				mHandler.postAtTime(this, mInteractiveEndTime);
+			}
+			return;
+		}
+
+		mTarget.requestRender();
+
+		// Advance to next request time. If we've fallen behind more than one
+		// frame start over from current time instead of catching up.
+		long interval = 1000000000L / frameRate;
+		mNextRequestTime += interval;
+		if (mNextRequestTime < now * 1000000) {
+			mNextRequestTime = now * 1000000 + interval;
+		}
+		mHandler.postAtTime(this, mNextRequestTime / 1000000);
+	}
+
+	/**
+	 * Sets frame rates.
+	 *
+	 * @param frameRate
+	 *            Idle frame rate, FRAME_RATE_NATIVE for no limit.
+	 * @param frameRateInteractive
+	 *            Frame rate during touch interaction.
+	 */
+	public void setFrameRate(int frameRate, int frameRateInteractive) {
+		mFrameRate = frameRate;
+		mFrameRateInteractive = frameRateInteractive;
+		reschedule();
+	}
+
+	/**
+	 * Marks touch interaction start or end. Interactive frame rate is used
+	 * while touch is down and a short while after it.
+	 *
+	 * @param interactive
+	 *            True on touch down, false on touch up.
+	 */
+	public void setInteractive(boolean interactive) {
+		if (interactive == mInteractiveTouch) {
+			return;
+		}
+		mInteractiveTouch = interactive;
+		mInteractiveEndTime = interactive ? 0 : SystemClock.uptimeMillis()
+				+ INTERACTIVE_HOLD_TIME;
+		reschedule();
+	}
+
+}
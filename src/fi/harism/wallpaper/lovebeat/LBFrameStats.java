@@ -0,0 +1,358 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * Per pass frame timing. Render thread records pass durations into
+ * preallocated ring buffers and histograms without locking or allocating,
+ * other threads can read percentiles and jank counts at any time. Samples
+ * are published with a volatile sequence counter, readers may see a sample
+ * being overwritten at most which is fine for statistics.
+ * 
+ * CPU time spent issuing GL calls is measured always. Where
+ * GL_EXT_disjoint_timer_query is available on an OpenGL ES 3.0 context, GPU
+ * time of passes before PASS_FRAME is measured with timer queries too, GPU
+ * frame time being their sum. Query results are read once GPU has finished
+ * them, a few frames later, and frames are left unmeasured on GPU while
+ * every query set is pending so that render thread never waits for GPU.
+ * Results are discarded if a disjoint event, e.g. GPU clock change, has
+ * occurred meanwhile.
+ */
+public final class LBFrameStats {
+
+	// Number of histogram buckets, last one collects everything above.
+	private static final int BUCKET_COUNT = 400;
+	// Histogram bucket width in nanos.
+	private static final long BUCKET_WIDTH = 250000;
+	// GL_EXT_disjoint_timer_query enums.
+	private static final int GL_GPU_DISJOINT_EXT = 0x8FBB,
+			GL_TIME_ELAPSED_EXT = 0x88BF;
+	// Frame durations counted as jank, one and two missed 60Hz vsyncs.
+	private static final long JANK_THRESHOLDS[] = { 16666667, 33333333 };
+	// Pass indices.
+	public static final int PASS_BACKGROUND = 0, PASS_COMPOSITE = 1,
+			PASS_FOREGROUND = 2, PASS_FRAME = 3;
+	// Number of passes.
+	private static final int PASS_COUNT = 4;
+	// Pass names for dumping.
+	private static final String PASS_NAMES[] = { "background", "composite",
+			"foreground", "frame" };
+	// Number of timer query sets, GPU may be this many frames behind.
+	private static final int QUERY_SET_COUNT = 4;
+	// Number of recent samples kept per series.
+	private static final int RING_SIZE = 256;
+	// Sample series, CPU time of every pass followed by GPU time of every
+	// pass.
+	private static final int SERIES_COUNT = PASS_COUNT * 2;
+
+	// GL state timer queries are issued with, null if GPU isn't timed.
+	// Accessed from render thread only.
+	private LBGLState mGL;
+	// Lifetime duration histograms, BUCKET_COUNT buckets per series.
+	private final int mHistogram[] = new int[SERIES_COUNT * BUCKET_COUNT];
+	// Number of frames above each jank threshold.
+	private final int mJankCounts[] = new int[JANK_THRESHOLDS.length];
+	// Pass start times in nanos.
+	private final long mPassStart[] = new long[PASS_COUNT];
+	// Timer query ids, one per pass before PASS_FRAME in every set.
+	private final int mQueries[] = new int[QUERY_SET_COUNT * PASS_FRAME];
+	// Query set of current frame, -1 if frame isn't timed on GPU.
+	private int mQueryCurrent = -1;
+	// Number of query sets issued and read, sets in between are pending.
+	private long mQueryIssued, mQueryRead;
+	// Bit mask of passes queried per set.
+	private final int mQueryPasses[] = new int[QUERY_SET_COUNT];
+	// Query result value.
+	private final int mQueryResult[] = new int[1];
+	// Recent durations in nanos, RING_SIZE samples per series.
+	private final long mRing[] = new long[SERIES_COUNT * RING_SIZE];
+	// Number of samples recorded per series.
+	private final int mRingCount[] = new int[SERIES_COUNT];
+	// Incremented once sample is recorded, publishes sample to readers.
+	private volatile int mSequence;
+
+	/**
+	 * Marks start of given pass. Should be called from render thread, passes
+	 * timed on GPU with context current.
+	 *
+	 * @param pass
+	 *            Pass index.
+	 */
+	public void beginPass(int pass) {
+		if (pass == PASS_FRAME) {
+			readQueries();
+		} else if (mQueryCurrent >= 0) {
+			mGL.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mQueryCurrent
+					* PASS_FRAME + pass]);
+			mQueryPasses[mQueryCurrent] |= 1 << pass;
+		}
+		mPassStart[pass] = System.nanoTime();
+	}
+
+	/**
+	 * Prints recent and lifetime percentiles for every pass plus jank counts.
+	 * Can be called from any thread.
+	 *
+	 * @param out
+	 *            Writer to print to.
+	 * @param prefix
+	 *            Prefix for every line.
+	 */
+	public void dump(PrintWriter out, String prefix) {
+		// Volatile read makes samples published so far visible.
+		if (mSequence == 0) {
+			out.println(prefix + "no frames rendered");
+			return;
+		}
+		out.println(prefix + "CPU time per pass in ms, "
+				+ mRingCount[PASS_FRAME] + " frames");
+		dumpSeries(out, prefix, 0);
+		if (mRingCount[PASS_COUNT + PASS_FRAME] > 0) {
+			out.println(prefix + "GPU time per pass in ms, "
+					+ mRingCount[PASS_COUNT + PASS_FRAME] + " frames");
+			dumpSeries(out, prefix, PASS_COUNT);
+		} else {
+			out.println(prefix + "GPU time not measured");
+		}
+		for (int i = 0; i < JANK_THRESHOLDS.length; ++i) {
+			out.printf("%sframes over %.1f ms: %d%n", prefix,
+					JANK_THRESHOLDS[i] / 1e6, mJankCounts[i]);
+		}
+	}
+
+	/**
+	 * Helper method for printing recent and lifetime percentiles of every
+	 * pass, CPU or GPU series starting from given one.
+	 */
+	private void dumpSeries(PrintWriter out, String prefix, int first) {
+		out.printf("%s%-12s %8s %8s %8s %8s %8s %8s %8s%n", prefix, "pass",
+				"p50", "p95", "p99", "max", "all p50", "all p95", "all p99");
+		long recent[] = new long[RING_SIZE];
+		for (int pass = 0; pass < PASS_COUNT; ++pass) {
+			int series = first + pass;
+			int count = Math.min(mRingCount[series], RING_SIZE);
+			System.arraycopy(mRing, series * RING_SIZE, recent, 0, count);
+			Arrays.sort(recent, 0, count);
+			out.printf("%s%-12s %8.3f %8.3f %8.3f %8.3f %8.3f %8.3f %8.3f%n",
+					prefix, PASS_NAMES[pass],
+					getRecentPercentile(recent, count, 0.50),
+					getRecentPercentile(recent, count, 0.95),
+					getRecentPercentile(recent, count, 0.99),
+					getRecentPercentile(recent, count, 1.00),
+					getSeriesPercentile(series, 0.50),
+					getSeriesPercentile(series, 0.95),
+					getSeriesPercentile(series, 0.99));
+		}
+	}
+
+	/**
+	 * Marks end of given pass and records its CPU duration. Should be called
+	 * from render thread, passes timed on GPU with context current.
+	 *
+	 * @param pass
+	 *            Pass index.
+	 */
+	public void endPass(int pass) {
+		long duration = System.nanoTime() - mPassStart[pass];
+		if (pass != PASS_FRAME && mQueryCurrent >= 0) {
+			mGL.glEndQuery(GL_TIME_ELAPSED_EXT);
+		}
+		record(pass, duration);
+		if (pass == PASS_FRAME) {
+			for (int i = 0; i < JANK_THRESHOLDS.length; ++i) {
+				if (duration > JANK_THRESHOLDS[i]) {
+					++mJankCounts[i];
+				}
+			}
+			mQueryCurrent = -1;
+		}
+	}
+
+	/**
+	 * Calculates lifetime GPU time percentile of given pass. Zero if GPU
+	 * isn't timed.
+	 *
+	 * @param pass
+	 *            Pass index.
+	 * @param percentile
+	 *            Percentile, [0, 1].
+	 * @return Upper bound of percentile bucket in millis.
+	 */
+	public double getGpuPercentile(int pass, double percentile) {
+		return getSeriesPercentile(PASS_COUNT + pass, percentile);
+	}
+
+	/**
+	 * Calculates lifetime CPU time percentile of given pass.
+	 *
+	 * @param pass
+	 *            Pass index.
+	 * @param percentile
+	 *            Percentile, [0, 1].
+	 * @return Upper bound of percentile bucket in millis.
+	 */
+	public double getPercentile(int pass, double percentile) {
+		return getSeriesPercentile(pass, percentile);
+	}
+
+	/**
+	 * Helper method for picking percentile from sorted samples in millis.
+	 */
+	private static double getRecentPercentile(long[] sorted, int count,
+			double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		int idx = (int) Math.ceil(count * percentile) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, idx))] / 1e6;
+	}
+
+	/**
+	 * Helper method for calculating lifetime percentile from histogram of
+	 * given series in millis.
+	 */
+	private double getSeriesPercentile(int series, double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			total += mHistogram[series * BUCKET_COUNT + i];
+		}
+		long target = (long) Math.ceil(total * percentile);
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			count += mHistogram[series * BUCKET_COUNT + i];
+			if (count >= target && count > 0) {
+				return (i + 1) * BUCKET_WIDTH / 1e6;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Starts timing passes on GPU if current context supports timer queries.
+	 * Should be called from render thread once context has been created,
+	 * queries of previous context, if any, went away with it.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param clientVersion
+	 *            EGL_CONTEXT_CLIENT_VERSION context was created with.
+	 */
+	public void initGpuTiming(LBGLState gl, int clientVersion) {
+		mGL = null;
+		mQueryCurrent = -1;
+		mQueryIssued = mQueryRead = 0;
+		// Queries are issued with GLES30 entry points.
+		if (clientVersion < 3
+				|| Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			return;
+		}
+		String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+		if (extensions == null
+				|| !(" " + extensions + " ")
+						.contains(" GL_EXT_disjoint_timer_query ")) {
+			return;
+		}
+		gl.glGenQueries(mQueries.length, mQueries, 0);
+		// Reading disjoint flag clears it, events so far don't matter.
+		gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+		mGL = gl;
+	}
+
+	/**
+	 * Reads results of query sets GPU has finished, oldest first, and picks
+	 * query set for new frame. Never waits for GPU; frame isn't timed on GPU
+	 * if every set is still pending.
+	 */
+	private void readQueries() {
+		mQueryCurrent = -1;
+		if (mGL == null) {
+			return;
+		}
+		while (mQueryRead < mQueryIssued) {
+			int set = (int) (mQueryRead % QUERY_SET_COUNT);
+			int passes = mQueryPasses[set];
+			if (passes != 0) {
+				// Queries finish in order, last pass of set finishes last.
+				int last = 31 - Integer.numberOfLeadingZeros(passes);
+				mGL.glGetQueryObjectuiv(mQueries[set * PASS_FRAME + last],
+						GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+				if (mQueryResult[0] == 0) {
+					break;
+				}
+			}
+			++mQueryRead;
+
+			// Results of every pending set are unreliable after a disjoint
+			// event, flag is cleared once read.
+			mGL.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+			if (mQueryResult[0] != 0) {
+				mQueryRead = mQueryIssued;
+				break;
+			}
+			long total = 0;
+			for (int pass = 0; pass < PASS_FRAME; ++pass) {
+				if ((passes & (1 << pass)) != 0) {
+					mGL.glGetQueryObjectuiv(mQueries[set * PASS_FRAME + pass],
+							GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+					// Result is unsigned 32-bit nanos.
+					long duration = mQueryResult[0] & 0xFFFFFFFFL;
+					record(PASS_COUNT + pass, duration);
+					total += duration;
+				}
+			}
+			if (passes != 0) {
+				record(PASS_COUNT + PASS_FRAME, total);
+			}
+		}
+		if (mQueryIssued - mQueryRead < QUERY_SET_COUNT) {
+			mQueryCurrent = (int) (mQueryIssued++ % QUERY_SET_COUNT);
+			mQueryPasses[mQueryCurrent] = 0;
+		}
+	}
+
+	/**
+	 * Helper method for recording duration sample of given series and
+	 * publishing it.
+	 */
+	private void record(int series, long duration) {
+		mRing[series * RING_SIZE + mRingCount[series]++ % RING_SIZE] =
+				duration;
+		int bucket = (int) Math.min(BUCKET_COUNT - 1, duration / BUCKET_WIDTH);
+		++mHistogram[series * BUCKET_COUNT + bucket];
+		++mSequence;
+	}
+
+	/**
+	 * Stops timing passes on GPU and deletes timer queries. Should be called
+	 * from render thread with context current.
+	 */
+	public void releaseGpuTiming() {
+		if (mGL != null) {
+			mGL.glDeleteQueries(mQueries.length, mQueries, 0);
+			mGL = null;
+		}
+		mQueryCurrent = -1;
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.Buffer;
+
+/**
+ * GL backend interface. Method names and signatures follow GLES20, allowing
+ * rendering code to run against something else than the current OpenGL
+ * context, e.g. a no-op backend for measuring CPU side of rendering.
+ */
+public interface LBGL {
+
+	public void glActiveTexture(int texture);
+
+	public void glAttachShader(int program, int shader);
+
+	public void glBeginQuery(int target, int id);
+
+	public void glBindBuffer(int target, int buffer);
+
+	public void glBindFramebuffer(int target, int framebuffer);
+
+	public void glBindRenderbuffer(int target, int renderbuffer);
+
+	public void glBindTexture(int target, int texture);
+
+	public void glBufferData(int target, int size, Buffer data, int usage);
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data);
+
+	public int glCheckFramebufferStatus(int target);
+
+	public void glClear(int mask);
+
+	public void glClearColor(float red, float green, float blue, float alpha);
+
+	public void glCompileShader(int shader);
+
+	public int glCreateProgram();
+
+	public int glCreateShader(int type);
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset);
+
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+	public void glDeleteProgram(int program);
+
+	public void glDeleteQueries(int n, int[] ids, int offset);
+
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+
+	public void glDeleteShader(int shader);
+
+	public void glDeleteTextures(int n, int[] textures, int offset);
+
+	public void glDisable(int cap);
+
+	public void glDisableVertexAttribArray(int index);
+
+	public void glDrawArrays(int mode, int first, int count);
+
+	public void glEnable(int cap);
+
+	public void glEnableVertexAttribArray(int index);
+
+	public void glEndQuery(int target);
+
+	public void glFinish();
+
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer);
+
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level);
+
+	public void glGenBuffers(int n, int[] buffers, int offset);
+
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+	public void glGenQueries(int n, int[] ids, int offset);
+
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+
+	public void glGenTextures(int n, int[] textures, int offset);
+
+	public void glGetActiveAttrib(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset);
+
+	public void glGetActiveUniform(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset);
+
+	public int glGetAttribLocation(int program, String name);
+
+	public void glGetBooleanv(int pname, boolean[] params, int offset);
+
+	public void glGetIntegerv(int pname, int[] params, int offset);
+
+	public void glGetProgramBinary(int program, int bufSize, int[] length,
+			int lengthOffset, int[] binaryFormat, int binaryFormatOffset,
+			Buffer binary);
+
+	public String glGetProgramInfoLog(int program);
+
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset);
+
+	public void glGetQueryObjectuiv(int id, int pname, int[] params,
+			int offset);
+
+	public String glGetShaderInfoLog(int shader);
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+	public String glGetString(int name);
+
+	public int glGetUniformLocation(int program, String name);
+
+	public void glLinkProgram(int program);
+
+	public void glPixelStorei(int pname, int param);
+
+	public void glProgramBinary(int program, int binaryFormat, Buffer binary,
+			int length);
+
+	public void glProgramParameteri(int program, int pname, int value);
+
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height);
+
+	public void glScissor(int x, int y, int width, int height);
+
+	public void glShaderSource(int shader, String string);
+
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels);
+
+	public void glTexParameteri(int target, int pname, int param);
+
+	public void glUniform1f(int location, float x);
+
+	public void glUniform1i(int location, int x);
+
+	public void glUniform2f(int location, float x, float y);
+
+	public void glUniform2fv(int location, int count, float[] v, int offset);
+
+	public void glUniform3fv(int location, int count, float[] v, int offset);
+
+	public void glUseProgram(int program);
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr);
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset);
+
+	public void glViewport(int x, int y, int width, int height);
+
+}
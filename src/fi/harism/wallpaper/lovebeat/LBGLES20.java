@@ -0,0 +1,391 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * GL backend passing all calls to GLES20 on current OpenGL context. Program
+ * binary, program parameter and query calls go to GLES30 and are valid on
+ * OpenGL ES 3.0 contexts, API level 18 and up, only.
+ */
+public final class LBGLES20 implements LBGL {
+
+	@Override
+	public void glActiveTexture(int texture) {
+		GLES20.glActiveTexture(texture);
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+		GLES20.glAttachShader(program, shader);
+	}
+
+	@Override
+	public void glBeginQuery(int target, int id) {
+		GLES30.glBeginQuery(target, id);
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+		GLES20.glBindFramebuffer(target, framebuffer);
+	}
+
+	@Override
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+		GLES20.glBindRenderbuffer(target, renderbuffer);
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		GLES20.glBindTexture(target, texture);
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		GLES20.glBufferData(target, size, data, usage);
+	}
+
+	@Override
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		GLES20.glBufferSubData(target, offset, size, data);
+	}
+
+	@Override
+	public int glCheckFramebufferStatus(int target) {
+		return GLES20.glCheckFramebufferStatus(target);
+	}
+
+	@Override
+	public void glClear(int mask) {
+		GLES20.glClear(mask);
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+		GLES20.glCompileShader(shader);
+	}
+
+	@Override
+	public int glCreateProgram() {
+		return GLES20.glCreateProgram();
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		return GLES20.glCreateShader(type);
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		GLES20.glDeleteBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+		GLES20.glDeleteFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+		GLES20.glDeleteProgram(program);
+	}
+
+	@Override
+	public void glDeleteQueries(int n, int[] ids, int offset) {
+		GLES30.glDeleteQueries(n, ids, offset);
+	}
+
+	@Override
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+		GLES20.glDeleteRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+		GLES20.glDeleteShader(shader);
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		GLES20.glDeleteTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		GLES20.glDisable(cap);
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		GLES20.glDisableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+		GLES20.glDrawArrays(mode, first, count);
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		GLES20.glEnable(cap);
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		GLES20.glEnableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glEndQuery(int target) {
+		GLES30.glEndQuery(target);
+	}
+
+	@Override
+	public void glFinish() {
+		GLES20.glFinish();
+	}
+
+	@Override
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+		GLES20.glFramebufferRenderbuffer(target, attachment,
+				renderbuffertarget, renderbuffer);
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+		GLES20.glFramebufferTexture2D(target, attachment, textarget, texture,
+				level);
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		GLES20.glGenBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		GLES20.glGenFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glGenQueries(int n, int[] ids, int offset) {
+		GLES30.glGenQueries(n, ids, offset);
+	}
+
+	@Override
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+		GLES20.glGenRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+		GLES20.glGenTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glGetActiveAttrib(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		GLES20.glGetActiveAttrib(program, index, bufsize, length,
+				lengthOffset, size, sizeOffset, type, typeOffset, name,
+				nameOffset);
+	}
+
+	@Override
+	public void glGetActiveUniform(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		GLES20.glGetActiveUniform(program, index, bufsize, length,
+				lengthOffset, size, sizeOffset, type, typeOffset, name,
+				nameOffset);
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+
+	@Override
+	public void glGetBooleanv(int pname, boolean[] params, int offset) {
+		GLES20.glGetBooleanv(pname, params, offset);
+	}
+
+	@Override
+	public void glGetIntegerv(int pname, int[] params, int offset) {
+		GLES20.glGetIntegerv(pname, params, offset);
+	}
+
+	@Override
+	public void glGetProgramBinary(int program, int bufSize, int[] length,
+			int lengthOffset, int[] binaryFormat, int binaryFormatOffset,
+			Buffer binary) {
+		GLES30.glGetProgramBinary(program, bufSize, length, lengthOffset,
+				binaryFormat, binaryFormatOffset, binary);
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		return GLES20.glGetProgramInfoLog(program);
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset) {
+		GLES20.glGetProgramiv(program, pname, params, offset);
+	}
+
+	@Override
+	public void glGetQueryObjectuiv(int id, int pname, int[] params,
+			int offset) {
+		GLES30.glGetQueryObjectuiv(id, pname, params, offset);
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		return GLES20.glGetShaderInfoLog(shader);
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		GLES20.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	@Override
+	public String glGetString(int name) {
+		return GLES20.glGetString(name);
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+		GLES20.glLinkProgram(program);
+	}
+
+	@Override
+	public void glPixelStorei(int pname, int param) {
+		GLES20.glPixelStorei(pname, param);
+	}
+
+	@Override
+	public void glProgramBinary(int program, int binaryFormat, Buffer binary,
+			int length) {
+		GLES30.glProgramBinary(program, binaryFormat, binary, length);
+	}
+
+	@Override
+	public void glProgramParameteri(int program, int pname, int value) {
+		GLES30.glProgramParameteri(program, pname, value);
+	}
+
+	@Override
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height) {
+		GLES20.glRenderbufferStorage(target, internalformat, width, height);
+	}
+
+	@Override
+	public void glScissor(int x, int y, int width, int height) {
+		GLES20.glScissor(x, y, width, height);
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+		GLES20.glShaderSource(shader, string);
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		GLES20.glTexImage2D(target, level, internalformat, width, height,
+				border, format, type, pixels);
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+		GLES20.glTexParameteri(target, pname, param);
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+		GLES20.glUniform1f(location, x);
+	}
+
+	@Override
+	public void glUniform1i(int location, int x) {
+		GLES20.glUniform1i(location, x);
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+		GLES20.glUniform2f(location, x, y);
+	}
+
+	@Override
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniform2fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+		GLES20.glUniform3fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		GLES20.glUseProgram(program);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		GLES20.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+		GLES20.glVertexAttribPointer(indx, size, type, normalized, stride,
+				offset);
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+		GLES20.glViewport(x, y, width, height);
+	}
+
+}
@@ -0,0 +1,331 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+
+/**
+ * GL backend which does nothing. Queries report successful compilation and
+ * linking, every capability supported and no limits, objects are never
+ * created and have id 0. Meant for running and measuring CPU side of
+ * rendering without OpenGL context.
+ */
+public final class LBGLNull implements LBGL {
+
+	@Override
+	public void glActiveTexture(int texture) {
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+	}
+
+	@Override
+	public void glBeginQuery(int target, int id) {
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+	}
+
+	@Override
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+	}
+
+	@Override
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+	}
+
+	@Override
+	public int glCheckFramebufferStatus(int target) {
+		return GLES20.GL_FRAMEBUFFER_COMPLETE;
+	}
+
+	@Override
+	public void glClear(int mask) {
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+	}
+
+	@Override
+	public int glCreateProgram() {
+		return 0;
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		return 0;
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+	}
+
+	@Override
+	public void glDeleteQueries(int n, int[] ids, int offset) {
+	}
+
+	@Override
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+	}
+
+	@Override
+	public void glDisable(int cap) {
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+	}
+
+	@Override
+	public void glEnable(int cap) {
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+	}
+
+	@Override
+	public void glEndQuery(int target) {
+	}
+
+	@Override
+	public void glFinish() {
+	}
+
+	@Override
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+	}
+
+	@Override
+	public void glGenQueries(int n, int[] ids, int offset) {
+	}
+
+	@Override
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+	}
+
+	@Override
+	public void glGetActiveAttrib(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+	}
+
+	@Override
+	public void glGetActiveUniform(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		return 0;
+	}
+
+	@Override
+	public void glGetBooleanv(int pname, boolean[] params, int offset) {
+		// Report every capability as supported.
+		params[offset] = true;
+	}
+
+	@Override
+	public void glGetIntegerv(int pname, int[] params, int offset) {
+		// Report no implementation limits.
+		params[offset] = Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void glGetProgramBinary(int program, int bufSize, int[] length,
+			int lengthOffset, int[] binaryFormat, int binaryFormatOffset,
+			Buffer binary) {
+		length[lengthOffset] = 0;
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		return "";
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset) {
+		params[offset] = pname == GLES20.GL_LINK_STATUS ? GLES20.GL_TRUE : 0;
+	}
+
+	@Override
+	public void glGetQueryObjectuiv(int id, int pname, int[] params,
+			int offset) {
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		return "";
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		params[offset] = pname == GLES20.GL_COMPILE_STATUS ? GLES20.GL_TRUE
+				: 0;
+	}
+
+	@Override
+	public String glGetString(int name) {
+		return "";
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		return 0;
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+	}
+
+	@Override
+	public void glPixelStorei(int pname, int param) {
+	}
+
+	@Override
+	public void glProgramBinary(int program, int binaryFormat, Buffer binary,
+			int length) {
+	}
+
+	@Override
+	public void glProgramParameteri(int program, int pname, int value) {
+	}
+
+	@Override
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height) {
+	}
+
+	@Override
+	public void glScissor(int x, int y, int width, int height) {
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+	}
+
+	@Override
+	public void glUniform1i(int location, int x) {
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+	}
+
+	@Override
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+	}
+
+	@Override
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+	}
+
+}
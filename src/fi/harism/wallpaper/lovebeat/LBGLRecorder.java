@@ -0,0 +1,1207 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * GL backend recording every call into a compact binary command log before
+ * passing it on to target backend. Installed as LBGLState backend it sees
+ * only calls which were not skipped as redundant, so call counts match what
+ * driver receives. Each command is stored as an opcode byte followed by its
+ * arguments in big-endian order; ints and floats take four bytes, booleans
+ * one byte, strings and arrays are prefixed with their length. Contents of
+ * Buffer arguments and values returned by queries are not recorded, logs are
+ * meant to be replayed against a stub such as LBGLNull, for asserting call
+ * budgets and diffing command streams between revisions.
+ */
+public final class LBGLRecorder implements LBGL {
+
+	// Command names, index is opcode. Opcodes are never renumbered, commands
+	// added later are appended so that older logs stay replayable.
+	private static final String COMMANDS[] = { "glActiveTexture",
+			"glAttachShader", "glBindFramebuffer", "glBindRenderbuffer",
+			"glBindTexture", "glClear", "glClearColor", "glCompileShader",
+			"glCreateProgram", "glCreateShader", "glDeleteFramebuffers",
+			"glDeleteProgram", "glDeleteRenderbuffers", "glDeleteShader",
+			"glDeleteTextures", "glDisable", "glDisableVertexAttribArray",
+			"glDrawArrays", "glEnable", "glEnableVertexAttribArray",
+			"glFramebufferRenderbuffer", "glFramebufferTexture2D",
+			"glGenFramebuffers", "glGenRenderbuffers", "glGenTextures",
+			"glGetActiveAttrib", "glGetActiveUniform", "glGetAttribLocation",
+			"glGetBooleanv", "glGetIntegerv", "glGetProgramInfoLog",
+			"glGetProgramiv", "glGetShaderInfoLog", "glGetShaderiv",
+			"glGetUniformLocation", "glLinkProgram", "glPixelStorei",
+			"glRenderbufferStorage", "glScissor", "glShaderSource",
+			"glTexImage2D", "glTexParameteri", "glUniform1f", "glUniform1i",
+			"glUniform2f", "glUniform2fv", "glUniform3fv", "glUseProgram",
+			"glVertexAttribPointer", "glViewport", "glBindBuffer",
+			"glBufferData", "glBufferSubData", "glDeleteBuffers",
+			"glGenBuffers", "glVertexAttribPointer", "glFinish",
+			"glGetProgramBinary", "glGetString", "glProgramBinary",
+			"glCheckFramebufferStatus", "glProgramParameteri", "glBeginQuery",
+			"glDeleteQueries", "glEndQuery", "glGenQueries",
+			"glGetQueryObjectuiv" };
+	// Command opcodes.
+	private static final int OP_ACTIVE_TEXTURE = 0, OP_ATTACH_SHADER = 1,
+			OP_BIND_FRAMEBUFFER = 2, OP_BIND_RENDERBUFFER = 3,
+			OP_BIND_TEXTURE = 4, OP_CLEAR = 5, OP_CLEAR_COLOR = 6,
+			OP_COMPILE_SHADER = 7, OP_CREATE_PROGRAM = 8, OP_CREATE_SHADER = 9,
+			OP_DELETE_FRAMEBUFFERS = 10, OP_DELETE_PROGRAM = 11,
+			OP_DELETE_RENDERBUFFERS = 12, OP_DELETE_SHADER = 13,
+			OP_DELETE_TEXTURES = 14, OP_DISABLE = 15,
+			OP_DISABLE_VERTEX_ATTRIB_ARRAY = 16, OP_DRAW_ARRAYS = 17,
+			OP_ENABLE = 18, OP_ENABLE_VERTEX_ATTRIB_ARRAY = 19,
+			OP_FRAMEBUFFER_RENDERBUFFER = 20, OP_FRAMEBUFFER_TEXTURE_2D = 21,
+			OP_GEN_FRAMEBUFFERS = 22, OP_GEN_RENDERBUFFERS = 23,
+			OP_GEN_TEXTURES = 24, OP_GET_ACTIVE_ATTRIB = 25,
+			OP_GET_ACTIVE_UNIFORM = 26, OP_GET_ATTRIB_LOCATION = 27,
+			OP_GET_BOOLEANV = 28, OP_GET_INTEGERV = 29,
+			OP_GET_PROGRAM_INFO_LOG = 30, OP_GET_PROGRAMIV = 31,
+			OP_GET_SHADER_INFO_LOG = 32, OP_GET_SHADERIV = 33,
+			OP_GET_UNIFORM_LOCATION = 34, OP_LINK_PROGRAM = 35,
+			OP_PIXEL_STOREI = 36, OP_RENDERBUFFER_STORAGE = 37, OP_SCISSOR = 38,
+			OP_SHADER_SOURCE = 39, OP_TEX_IMAGE_2D = 40, OP_TEX_PARAMETERI = 41,
+			OP_UNIFORM_1F = 42, OP_UNIFORM_1I = 43, OP_UNIFORM_2F = 44,
+			OP_UNIFORM_2FV = 45, OP_UNIFORM_3FV = 46, OP_USE_PROGRAM = 47,
+			OP_VERTEX_ATTRIB_POINTER = 48, OP_VIEWPORT = 49,
+			OP_BIND_BUFFER = 50, OP_BUFFER_DATA = 51, OP_BUFFER_SUB_DATA = 52,
+			OP_DELETE_BUFFERS = 53, OP_GEN_BUFFERS = 54,
+			OP_VERTEX_ATTRIB_POINTER_OFFSET = 55, OP_FINISH = 56,
+			OP_GET_PROGRAM_BINARY = 57, OP_GET_STRING = 58,
+			OP_PROGRAM_BINARY = 59, OP_CHECK_FRAMEBUFFER_STATUS = 60,
+			OP_PROGRAM_PARAMETERI = 61, OP_BEGIN_QUERY = 62,
+			OP_DELETE_QUERIES = 63, OP_END_QUERY = 64, OP_GEN_QUERIES = 65,
+			OP_GET_QUERY_OBJECTUIV = 66;
+	// Recorded argument types per opcode; i = int, f = float, z = boolean,
+	// s = string, I = int array, F = float array.
+	private static final String SIGNATURES[] = { "i", "ii", "ii", "ii", "ii",
+			"i", "ffff", "i", "", "i", "I", "i", "I", "i", "I", "i", "i", "iii",
+			"i", "i", "iiii", "iiiii", "i", "i", "i", "iii", "iii", "is", "i",
+			"i", "i", "ii", "i", "ii", "is", "i", "ii", "iiii", "iiii", "is",
+			"iiiiiiii", "iii", "if", "ii", "iff", "iiF", "iiF", "i", "iiizi",
+			"iiii", "ii", "iii", "iii", "I", "i", "iiizii", "", "ii", "i",
+			"iii", "i", "iii", "ii", "I", "i", "i", "ii" };
+
+	// Number of calls per opcode since frame start.
+	private final int mCallCounts[] = new int[COMMANDS.length];
+	// Command log, grown on demand.
+	private byte mLog[] = new byte[16384];
+	// Number of bytes used in command log.
+	private int mLogLength;
+	// Backend calls are passed on to.
+	private final LBGL mTarget;
+
+	/**
+	 * Constructor for recorder passing calls on to given backend.
+	 *
+	 * @param target
+	 *            Target backend.
+	 */
+	public LBGLRecorder(LBGL target) {
+		mTarget = target;
+	}
+
+	/**
+	 * Writes opcode for new command and updates its call count.
+	 */
+	private void begin(int opcode) {
+		++mCallCounts[opcode];
+		ensureCapacity(1);
+		mLog[mLogLength++] = (byte) opcode;
+	}
+
+	/**
+	 * Clears command log and call counts. Should be called at the beginning
+	 * of every frame to be recorded.
+	 */
+	public void beginFrame() {
+		mLogLength = 0;
+		for (int i = 0; i < mCallCounts.length; ++i) {
+			mCallCounts[i] = 0;
+		}
+	}
+
+	/**
+	 * Prints number of recorded calls per command plus totals.
+	 *
+	 * @param out
+	 *            Writer to print to.
+	 * @param prefix
+	 *            Prefix for every line.
+	 */
+	public void dump(PrintWriter out, String prefix) {
+		out.println(prefix + getCallCount() + " calls, " + mLogLength
+				+ " bytes");
+		for (int i = 0; i < COMMANDS.length; ++i) {
+			if (mCallCounts[i] > 0) {
+				out.printf("%s%-28s %6d%n", prefix, COMMANDS[i],
+						mCallCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Grows command log so that given number of bytes fits in.
+	 */
+	private void ensureCapacity(int size) {
+		if (mLogLength + size > mLog.length) {
+			byte log[] = new byte[Math.max(mLog.length * 2, mLogLength + size)];
+			System.arraycopy(mLog, 0, log, 0, mLogLength);
+			mLog = log;
+		}
+	}
+
+	/**
+	 * Getter for total number of calls recorded since frame start.
+	 *
+	 * @return Number of calls.
+	 */
+	public int getCallCount() {
+		int count = 0;
+		for (int i = 0; i < mCallCounts.length; ++i) {
+			count += mCallCounts[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Getter for number of calls to given command recorded since frame start.
+	 * Calls to every overload of command are counted.
+	 *
+	 * @param command
+	 *            Command name, e.g. "glUseProgram".
+	 * @return Number of calls.
+	 */
+	public int getCallCount(String command) {
+		int count = -1;
+		for (int i = 0; i < COMMANDS.length; ++i) {
+			if (COMMANDS[i].equals(command)) {
+				count = Math.max(count, 0) + mCallCounts[i];
+			}
+		}
+		if (count < 0) {
+			throw new IllegalArgumentException("Unknown command: " + command);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns copy of command log recorded since frame start.
+	 *
+	 * @return Command log.
+	 */
+	public byte[] getLog() {
+		byte log[] = new byte[mLogLength];
+		System.arraycopy(mLog, 0, log, 0, mLogLength);
+		return log;
+	}
+
+	@Override
+	public void glActiveTexture(int texture) {
+		begin(OP_ACTIVE_TEXTURE);
+		writeInt(texture);
+		mTarget.glActiveTexture(texture);
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+		begin(OP_ATTACH_SHADER);
+		writeInt(program);
+		writeInt(shader);
+		mTarget.glAttachShader(program, shader);
+	}
+
+	@Override
+	public void glBeginQuery(int target, int id) {
+		begin(OP_BEGIN_QUERY);
+		writeInt(target);
+		writeInt(id);
+		mTarget.glBeginQuery(target, id);
+	}
+
+	@Override
+	public void glBindBuffer(int target, int buffer) {
+		begin(OP_BIND_BUFFER);
+		writeInt(target);
+		writeInt(buffer);
+		mTarget.glBindBuffer(target, buffer);
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+		begin(OP_BIND_FRAMEBUFFER);
+		writeInt(target);
+		writeInt(framebuffer);
+		mTarget.glBindFramebuffer(target, framebuffer);
+	}
+
+	@Override
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+		begin(OP_BIND_RENDERBUFFER);
+		writeInt(target);
+		writeInt(renderbuffer);
+		mTarget.glBindRenderbuffer(target, renderbuffer);
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		begin(OP_BIND_TEXTURE);
+		writeInt(target);
+		writeInt(texture);
+		mTarget.glBindTexture(target, texture);
+	}
+
+	@Override
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		begin(OP_BUFFER_DATA);
+		writeInt(target);
+		writeInt(size);
+		writeInt(usage);
+		mTarget.glBufferData(target, size, data, usage);
+	}
+
+	@Override
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		begin(OP_BUFFER_SUB_DATA);
+		writeInt(target);
+		writeInt(offset);
+		writeInt(size);
+		mTarget.glBufferSubData(target, offset, size, data);
+	}
+
+	@Override
+	public int glCheckFramebufferStatus(int target) {
+		begin(OP_CHECK_FRAMEBUFFER_STATUS);
+		writeInt(target);
+		return mTarget.glCheckFramebufferStatus(target);
+	}
+
+	@Override
+	public void glClear(int mask) {
+		begin(OP_CLEAR);
+		writeInt(mask);
+		mTarget.glClear(mask);
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		begin(OP_CLEAR_COLOR);
+		writeFloat(red);
+		writeFloat(green);
+		writeFloat(blue);
+		writeFloat(alpha);
+		mTarget.glClearColor(red, green, blue, alpha);
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+		begin(OP_COMPILE_SHADER);
+		writeInt(shader);
+		mTarget.glCompileShader(shader);
+	}
+
+	@Override
+	public int glCreateProgram() {
+		begin(OP_CREATE_PROGRAM);
+		return mTarget.glCreateProgram();
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		begin(OP_CREATE_SHADER);
+		writeInt(type);
+		return mTarget.glCreateShader(type);
+	}
+
+	@Override
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		begin(OP_DELETE_BUFFERS);
+		writeInts(buffers, offset, n);
+		mTarget.glDeleteBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+		begin(OP_DELETE_FRAMEBUFFERS);
+		writeInts(framebuffers, offset, n);
+		mTarget.glDeleteFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+		begin(OP_DELETE_PROGRAM);
+		writeInt(program);
+		mTarget.glDeleteProgram(program);
+	}
+
+	@Override
+	public void glDeleteQueries(int n, int[] ids, int offset) {
+		begin(OP_DELETE_QUERIES);
+		writeInts(ids, offset, n);
+		mTarget.glDeleteQueries(n, ids, offset);
+	}
+
+	@Override
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+		begin(OP_DELETE_RENDERBUFFERS);
+		writeInts(renderbuffers, offset, n);
+		mTarget.glDeleteRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+		begin(OP_DELETE_SHADER);
+		writeInt(shader);
+		mTarget.glDeleteShader(shader);
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		begin(OP_DELETE_TEXTURES);
+		writeInts(textures, offset, n);
+		mTarget.glDeleteTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glDisable(int cap) {
+		begin(OP_DISABLE);
+		writeInt(cap);
+		mTarget.glDisable(cap);
+	}
+
+	@Override
+	public void glDisableVertexAttribArray(int index) {
+		begin(OP_DISABLE_VERTEX_ATTRIB_ARRAY);
+		writeInt(index);
+		mTarget.glDisableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+		begin(OP_DRAW_ARRAYS);
+		writeInt(mode);
+		writeInt(first);
+		writeInt(count);
+		mTarget.glDrawArrays(mode, first, count);
+	}
+
+	@Override
+	public void glEnable(int cap) {
+		begin(OP_ENABLE);
+		writeInt(cap);
+		mTarget.glEnable(cap);
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		begin(OP_ENABLE_VERTEX_ATTRIB_ARRAY);
+		writeInt(index);
+		mTarget.glEnableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glEndQuery(int target) {
+		begin(OP_END_QUERY);
+		writeInt(target);
+		mTarget.glEndQuery(target);
+	}
+
+	@Override
+	public void glFinish() {
+		begin(OP_FINISH);
+		mTarget.glFinish();
+	}
+
+	@Override
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+		begin(OP_FRAMEBUFFER_RENDERBUFFER);
+		writeInt(target);
+		writeInt(attachment);
+		writeInt(renderbuffertarget);
+		writeInt(renderbuffer);
+		mTarget.glFramebufferRenderbuffer(target, attachment,
+				renderbuffertarget, renderbuffer);
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+		begin(OP_FRAMEBUFFER_TEXTURE_2D);
+		writeInt(target);
+		writeInt(attachment);
+		writeInt(textarget);
+		writeInt(texture);
+		writeInt(level);
+		mTarget.glFramebufferTexture2D(target, attachment, textarget, texture,
+				level);
+	}
+
+	@Override
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		begin(OP_GEN_BUFFERS);
+		writeInt(n);
+		mTarget.glGenBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		begin(OP_GEN_FRAMEBUFFERS);
+		writeInt(n);
+		mTarget.glGenFramebuffers(n, framebuffers, offset);
+	}
+
+	@Override
+	public void glGenQueries(int n, int[] ids, int offset) {
+		begin(OP_GEN_QUERIES);
+		writeInt(n);
+		mTarget.glGenQueries(n, ids, offset);
+	}
+
+	@Override
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+		begin(OP_GEN_RENDERBUFFERS);
+		writeInt(n);
+		mTarget.glGenRenderbuffers(n, renderbuffers, offset);
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+		begin(OP_GEN_TEXTURES);
+		writeInt(n);
+		mTarget.glGenTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glGetActiveAttrib(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		begin(OP_GET_ACTIVE_ATTRIB);
+		writeInt(program);
+		writeInt(index);
+		writeInt(bufsize);
+		mTarget.glGetActiveAttrib(program, index, bufsize, length, lengthOffset,
+				size, sizeOffset, type, typeOffset, name, nameOffset);
+	}
+
+	@Override
+	public void glGetActiveUniform(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		begin(OP_GET_ACTIVE_UNIFORM);
+		writeInt(program);
+		writeInt(index);
+		writeInt(bufsize);
+		mTarget.glGetActiveUniform(program, index, bufsize, length,
+				lengthOffset, size, sizeOffset, type, typeOffset, name,
+				nameOffset);
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		begin(OP_GET_ATTRIB_LOCATION);
+		writeInt(program);
+		writeString(name);
+		return mTarget.glGetAttribLocation(program, name);
+	}
+
+	@Override
+	public void glGetBooleanv(int pname, boolean[] params, int offset) {
+		begin(OP_GET_BOOLEANV);
+		writeInt(pname);
+		mTarget.glGetBooleanv(pname, params, offset);
+	}
+
+	@Override
+	public void glGetIntegerv(int pname, int[] params, int offset) {
+		begin(OP_GET_INTEGERV);
+		writeInt(pname);
+		mTarget.glGetIntegerv(pname, params, offset);
+	}
+
+	@Override
+	public void glGetProgramBinary(int program, int bufSize, int[] length,
+			int lengthOffset, int[] binaryFormat, int binaryFormatOffset,
+			Buffer binary) {
+		begin(OP_GET_PROGRAM_BINARY);
+		writeInt(program);
+		writeInt(bufSize);
+		mTarget.glGetProgramBinary(program, bufSize, length, lengthOffset,
+				binaryFormat, binaryFormatOffset, binary);
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		begin(OP_GET_PROGRAM_INFO_LOG);
+		writeInt(program);
+		return mTarget.glGetProgramInfoLog(program);
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset) {
+		begin(OP_GET_PROGRAMIV);
+		writeInt(program);
+		writeInt(pname);
+		mTarget.glGetProgramiv(program, pname, params, offset);
+	}
+
+	@Override
+	public void glGetQueryObjectuiv(int id, int pname, int[] params,
+			int offset) {
+		begin(OP_GET_QUERY_OBJECTUIV);
+		writeInt(id);
+		writeInt(pname);
+		mTarget.glGetQueryObjectuiv(id, pname, params, offset);
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		begin(OP_GET_SHADER_INFO_LOG);
+		writeInt(shader);
+		return mTarget.glGetShaderInfoLog(shader);
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		begin(OP_GET_SHADERIV);
+		writeInt(shader);
+		writeInt(pname);
+		mTarget.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	@Override
+	public String glGetString(int name) {
+		begin(OP_GET_STRING);
+		writeInt(name);
+		return mTarget.glGetString(name);
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		begin(OP_GET_UNIFORM_LOCATION);
+		writeInt(program);
+		writeString(name);
+		return mTarget.glGetUniformLocation(program, name);
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+		begin(OP_LINK_PROGRAM);
+		writeInt(program);
+		mTarget.glLinkProgram(program);
+	}
+
+	@Override
+	public void glPixelStorei(int pname, int param) {
+		begin(OP_PIXEL_STOREI);
+		writeInt(pname);
+		writeInt(param);
+		mTarget.glPixelStorei(pname, param);
+	}
+
+	@Override
+	public void glProgramBinary(int program, int binaryFormat, Buffer binary,
+			int length) {
+		begin(OP_PROGRAM_BINARY);
+		writeInt(program);
+		writeInt(binaryFormat);
+		writeInt(length);
+		mTarget.glProgramBinary(program, binaryFormat, binary, length);
+	}
+
+	@Override
+	public void glProgramParameteri(int program, int pname, int value) {
+		begin(OP_PROGRAM_PARAMETERI);
+		writeInt(program);
+		writeInt(pname);
+		writeInt(value);
+		mTarget.glProgramParameteri(program, pname, value);
+	}
+
+	@Override
+	public void glRenderbufferStorage(int target, int internalformat, int width,
+			int height) {
+		begin(OP_RENDERBUFFER_STORAGE);
+		writeInt(target);
+		writeInt(internalformat);
+		writeInt(width);
+		writeInt(height);
+		mTarget.glRenderbufferStorage(target, internalformat, width, height);
+	}
+
+	@Override
+	public void glScissor(int x, int y, int width, int height) {
+		begin(OP_SCISSOR);
+		writeInt(x);
+		writeInt(y);
+		writeInt(width);
+		writeInt(height);
+		mTarget.glScissor(x, y, width, height);
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+		begin(OP_SHADER_SOURCE);
+		writeInt(shader);
+		writeString(string);
+		mTarget.glShaderSource(shader, string);
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		begin(OP_TEX_IMAGE_2D);
+		writeInt(target);
+		writeInt(level);
+		writeInt(internalformat);
+		writeInt(width);
+		writeInt(height);
+		writeInt(border);
+		writeInt(format);
+		writeInt(type);
+		mTarget.glTexImage2D(target, level, internalformat, width, height,
+				border, format, type, pixels);
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+		begin(OP_TEX_PARAMETERI);
+		writeInt(target);
+		writeInt(pname);
+		writeInt(param);
+		mTarget.glTexParameteri(target, pname, param);
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+		begin(OP_UNIFORM_1F);
+		writeInt(location);
+		writeFloat(x);
+		mTarget.glUniform1f(location, x);
+	}
+
+	@Override
+	public void glUniform1i(int location, int x) {
+		begin(OP_UNIFORM_1I);
+		writeInt(location);
+		writeInt(x);
+		mTarget.glUniform1i(location, x);
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+		begin(OP_UNIFORM_2F);
+		writeInt(location);
+		writeFloat(x);
+		writeFloat(y);
+		mTarget.glUniform2f(location, x, y);
+	}
+
+	@Override
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+		begin(OP_UNIFORM_2FV);
+		writeInt(location);
+		writeInt(count);
+		writeFloats(v, offset, count * 2);
+		mTarget.glUniform2fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+		begin(OP_UNIFORM_3FV);
+		writeInt(location);
+		writeInt(count);
+		writeFloats(v, offset, count * 3);
+		mTarget.glUniform3fv(location, count, v, offset);
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		begin(OP_USE_PROGRAM);
+		writeInt(program);
+		mTarget.glUseProgram(program);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		begin(OP_VERTEX_ATTRIB_POINTER);
+		writeInt(indx);
+		writeInt(size);
+		writeInt(type);
+		writeBoolean(normalized);
+		writeInt(stride);
+		mTarget.glVertexAttribPointer(indx, size, type, normalized, stride,
+				ptr);
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+		begin(OP_VERTEX_ATTRIB_POINTER_OFFSET);
+		writeInt(indx);
+		writeInt(size);
+		writeInt(type);
+		writeBoolean(normalized);
+		writeInt(stride);
+		writeInt(offset);
+		mTarget.glVertexAttribPointer(indx, size, type, normalized, stride,
+				offset);
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+		begin(OP_VIEWPORT);
+		writeInt(x);
+		writeInt(y);
+		writeInt(width);
+		writeInt(height);
+		mTarget.glViewport(x, y, width, height);
+	}
+
+	/**
+	 * Writes boolean value into command log.
+	 */
+	private void writeBoolean(boolean value) {
+		ensureCapacity(1);
+		mLog[mLogLength++] = (byte) (value ? 1 : 0);
+	}
+
+	/**
+	 * Writes float value into command log.
+	 */
+	private void writeFloat(float value) {
+		writeInt(Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Writes length prefixed float array into command log.
+	 */
+	private void writeFloats(float[] values, int offset, int count) {
+		writeInt(count);
+		for (int i = 0; i < count; ++i) {
+			writeFloat(values[offset + i]);
+		}
+	}
+
+	/**
+	 * Writes int value into command log.
+	 */
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		mLog[mLogLength++] = (byte) (value >>> 24);
+		mLog[mLogLength++] = (byte) (value >>> 16);
+		mLog[mLogLength++] = (byte) (value >>> 8);
+		mLog[mLogLength++] = (byte) value;
+	}
+
+	/**
+	 * Writes length prefixed int array into command log.
+	 */
+	private void writeInts(int[] values, int offset, int count) {
+		writeInt(count);
+		for (int i = 0; i < count; ++i) {
+			writeInt(values[offset + i]);
+		}
+	}
+
+	/**
+	 * Writes length prefixed UTF-8 string into command log.
+	 */
+	private void writeString(String value) {
+		byte bytes[] = toUtf8(value);
+		writeInt(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mLog, mLogLength, bytes.length);
+		mLogLength += bytes.length;
+	}
+
+	/**
+	 * Prints given command log in text form, one command per line with its
+	 * recorded arguments. Output of two logs can be diffed line by line.
+	 *
+	 * @param log
+	 *            Command log.
+	 * @param out
+	 *            Writer to print to.
+	 */
+	public static void print(byte[] log, PrintWriter out) {
+		ByteBuffer in = ByteBuffer.wrap(log);
+		StringBuilder line = new StringBuilder();
+		while (in.hasRemaining()) {
+			int opcode = in.get();
+			line.setLength(0);
+			line.append(COMMANDS[opcode]);
+			String signature = SIGNATURES[opcode];
+			for (int i = 0; i < signature.length(); ++i) {
+				line.append(i == 0 ? ' ' : ',');
+				switch (signature.charAt(i)) {
+				case 'i':
+					line.append(in.getInt());
+					break;
+				case 'f':
+					line.append(in.getFloat());
+					break;
+				case 'z':
+					line.append(in.get() != 0);
+					break;
+				case 's':
+					line.append('"').append(readString(in).replace("\n", "\\n"))
+							.append('"');
+					break;
+				case 'I': {
+					int values[] = readInts(in);
+					for (int j = 0; j < values.length; ++j) {
+						line.append(j == 0 ? '[' : ' ').append(values[j]);
+					}
+					line.append(values.length == 0 ? "[]" : "]");
+					break;
+				}
+				case 'F': {
+					float values[] = readFloats(in);
+					for (int j = 0; j < values.length; ++j) {
+						line.append(j == 0 ? '[' : ' ').append(values[j]);
+					}
+					line.append(values.length == 0 ? "[]" : "]");
+					break;
+				}
+				}
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Helper method for reading length prefixed float array.
+	 */
+	private static float[] readFloats(ByteBuffer in) {
+		float values[] = new float[in.getInt()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = in.getFloat();
+		}
+		return values;
+	}
+
+	/**
+	 * Helper method for reading length prefixed int array.
+	 */
+	private static int[] readInts(ByteBuffer in) {
+		int values[] = new int[in.getInt()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = in.getInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Helper method for reading length prefixed UTF-8 string.
+	 */
+	private static String readString(ByteBuffer in) {
+		byte bytes[] = new byte[in.getInt()];
+		in.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Replays given command log against target backend. Buffer arguments are
+	 * passed as null and query results are written into temporary arrays, so
+	 * target should be a stub such as LBGLNull or another recorder.
+	 *
+	 * @param log
+	 *            Command log.
+	 * @param target
+	 *            Backend to replay commands to.
+	 */
+	public static void replay(byte[] log, LBGL target) {
+		ByteBuffer in = ByteBuffer.wrap(log);
+		while (in.hasRemaining()) {
+			switch (in.get()) {
+			case OP_ACTIVE_TEXTURE:
+				target.glActiveTexture(in.getInt());
+				break;
+			case OP_ATTACH_SHADER:
+				target.glAttachShader(in.getInt(), in.getInt());
+				break;
+			case OP_BIND_FRAMEBUFFER:
+				target.glBindFramebuffer(in.getInt(), in.getInt());
+				break;
+			case OP_BIND_RENDERBUFFER:
+				target.glBindRenderbuffer(in.getInt(), in.getInt());
+				break;
+			case OP_BIND_TEXTURE:
+				target.glBindTexture(in.getInt(), in.getInt());
+				break;
+			case OP_CLEAR:
+				target.glClear(in.getInt());
+				break;
+			case OP_CLEAR_COLOR:
+				target.glClearColor(in.getFloat(), in.getFloat(), in.getFloat(),
+						in.getFloat());
+				break;
+			case OP_COMPILE_SHADER:
+				target.glCompileShader(in.getInt());
+				break;
+			case OP_CREATE_PROGRAM:
+				target.glCreateProgram();
+				break;
+			case OP_CREATE_SHADER:
+				target.glCreateShader(in.getInt());
+				break;
+			case OP_DELETE_FRAMEBUFFERS: {
+				int framebuffers[] = readInts(in);
+				target.glDeleteFramebuffers(framebuffers.length, framebuffers,
+						0);
+				break;
+			}
+			case OP_DELETE_PROGRAM:
+				target.glDeleteProgram(in.getInt());
+				break;
+			case OP_DELETE_RENDERBUFFERS: {
+				int renderbuffers[] = readInts(in);
+				target.glDeleteRenderbuffers(renderbuffers.length,
+						renderbuffers, 0);
+				break;
+			}
+			case OP_DELETE_SHADER:
+				target.glDeleteShader(in.getInt());
+				break;
+			case OP_DELETE_TEXTURES: {
+				int textures[] = readInts(in);
+				target.glDeleteTextures(textures.length, textures, 0);
+				break;
+			}
+			case OP_DISABLE:
+				target.glDisable(in.getInt());
+				break;
+			case OP_DISABLE_VERTEX_ATTRIB_ARRAY:
+				target.glDisableVertexAttribArray(in.getInt());
+				break;
+			case OP_DRAW_ARRAYS:
+				target.glDrawArrays(in.getInt(), in.getInt(), in.getInt());
+				break;
+			case OP_ENABLE:
+				target.glEnable(in.getInt());
+				break;
+			case OP_ENABLE_VERTEX_ATTRIB_ARRAY:
+				target.glEnableVertexAttribArray(in.getInt());
+				break;
+			case OP_FRAMEBUFFER_RENDERBUFFER:
+				target.glFramebufferRenderbuffer(in.getInt(), in.getInt(),
+						in.getInt(), in.getInt());
+				break;
+			case OP_FRAMEBUFFER_TEXTURE_2D:
+				target.glFramebufferTexture2D(in.getInt(), in.getInt(),
+						in.getInt(), in.getInt(), in.getInt());
+				break;
+			case OP_GEN_FRAMEBUFFERS: {
+				int n = in.getInt();
+				target.glGenFramebuffers(n, new int[n], 0);
+				break;
+			}
+			case OP_GEN_RENDERBUFFERS: {
+				int n = in.getInt();
+				target.glGenRenderbuffers(n, new int[n], 0);
+				break;
+			}
+			case OP_GEN_TEXTURES: {
+				int n = in.getInt();
+				target.glGenTextures(n, new int[n], 0);
+				break;
+			}
+			case OP_GET_ACTIVE_ATTRIB: {
+				int program = in.getInt(), index = in.getInt();
+				int bufsize = in.getInt();
+				target.glGetActiveAttrib(program, index, bufsize, new int[1], 0,
+						new int[1], 0, new int[1], 0, new byte[bufsize], 0);
+				break;
+			}
+			case OP_GET_ACTIVE_UNIFORM: {
+				int program = in.getInt(), index = in.getInt();
+				int bufsize = in.getInt();
+				target.glGetActiveUniform(program, index, bufsize, new int[1],
+						0, new int[1], 0, new int[1], 0, new byte[bufsize], 0);
+				break;
+			}
+			case OP_GET_ATTRIB_LOCATION:
+				target.glGetAttribLocation(in.getInt(), readString(in));
+				break;
+			case OP_GET_BOOLEANV:
+				target.glGetBooleanv(in.getInt(), new boolean[16], 0);
+				break;
+			case OP_GET_INTEGERV:
+				target.glGetIntegerv(in.getInt(), new int[16], 0);
+				break;
+			case OP_GET_PROGRAM_INFO_LOG:
+				target.glGetProgramInfoLog(in.getInt());
+				break;
+			case OP_GET_PROGRAMIV:
+				target.glGetProgramiv(in.getInt(), in.getInt(), new int[4], 0);
+				break;
+			case OP_GET_SHADER_INFO_LOG:
+				target.glGetShaderInfoLog(in.getInt());
+				break;
+			case OP_GET_SHADERIV:
+				target.glGetShaderiv(in.getInt(), in.getInt(), new int[4], 0);
+				break;
+			case OP_GET_UNIFORM_LOCATION:
+				target.glGetUniformLocation(in.getInt(), readString(in));
+				break;
+			case OP_LINK_PROGRAM:
+				target.glLinkProgram(in.getInt());
+				break;
+			case OP_PIXEL_STOREI:
+				target.glPixelStorei(in.getInt(), in.getInt());
+				break;
+			case OP_RENDERBUFFER_STORAGE:
+				target.glRenderbufferStorage(in.getInt(), in.getInt(),
+						in.getInt(), in.getInt());
+				break;
+			case OP_SCISSOR:
+				target.glScissor(in.getInt(), in.getInt(), in.getInt(),
+						in.getInt());
+				break;
+			case OP_SHADER_SOURCE:
+				target.glShaderSource(in.getInt(), readString(in));
+				break;
+			case OP_TEX_IMAGE_2D:
+				target.glTexImage2D(in.getInt(), in.getInt(), in.getInt(),
+						in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+						in.getInt(), null);
+				break;
+			case OP_TEX_PARAMETERI:
+				target.glTexParameteri(in.getInt(), in.getInt(), in.getInt());
+				break;
+			case OP_UNIFORM_1F:
+				target.glUniform1f(in.getInt(), in.getFloat());
+				break;
+			case OP_UNIFORM_1I:
+				target.glUniform1i(in.getInt(), in.getInt());
+				break;
+			case OP_UNIFORM_2F:
+				target.glUniform2f(in.getInt(), in.getFloat(), in.getFloat());
+				break;
+			case OP_UNIFORM_2FV:
+				target.glUniform2fv(in.getInt(), in.getInt(), readFloats(in),
+						0);
+				break;
+			case OP_UNIFORM_3FV:
+				target.glUniform3fv(in.getInt(), in.getInt(), readFloats(in),
+						0);
+				break;
+			case OP_USE_PROGRAM:
+				target.glUseProgram(in.getInt());
+				break;
+			case OP_VERTEX_ATTRIB_POINTER:
+				target.glVertexAttribPointer(in.getInt(), in.getInt(),
+						in.getInt(), in.get() != 0, in.getInt(), null);
+				break;
+			case OP_VIEWPORT:
+				target.glViewport(in.getInt(), in.getInt(), in.getInt(),
+						in.getInt());
+				break;
+			case OP_BIND_BUFFER:
+				target.glBindBuffer(in.getInt(), in.getInt());
+				break;
+			case OP_BUFFER_DATA:
+				target.glBufferData(in.getInt(), in.getInt(), null,
+						in.getInt());
+				break;
+			case OP_BUFFER_SUB_DATA:
+				target.glBufferSubData(in.getInt(), in.getInt(), in.getInt(),
+						null);
+				break;
+			case OP_DELETE_BUFFERS: {
+				int buffers[] = readInts(in);
+				target.glDeleteBuffers(buffers.length, buffers, 0);
+				break;
+			}
+			case OP_GEN_BUFFERS: {
+				int n = in.getInt();
+				target.glGenBuffers(n, new int[n], 0);
+				break;
+			}
+			case OP_VERTEX_ATTRIB_POINTER_OFFSET:
+				target.glVertexAttribPointer(in.getInt(), in.getInt(),
+						in.getInt(), in.get() != 0, in.getInt(), in.getInt());
+				break;
+			case OP_FINISH:
+				target.glFinish();
+				break;
+			case OP_GET_PROGRAM_BINARY:
+				target.glGetProgramBinary(in.getInt(), in.getInt(), new int[1],
+						0, new int[1], 0, null);
+				break;
+			case OP_GET_STRING:
+				target.glGetString(in.getInt());
+				break;
+			case OP_PROGRAM_BINARY:
+				target.glProgramBinary(in.getInt(), in.getInt(), null,
+						in.getInt());
+				break;
+			case OP_CHECK_FRAMEBUFFER_STATUS:
+				target.glCheckFramebufferStatus(in.getInt());
+				break;
+			case OP_PROGRAM_PARAMETERI:
+				target.glProgramParameteri(in.getInt(), in.getInt(),
+						in.getInt());
+				break;
+			case OP_BEGIN_QUERY:
+				target.glBeginQuery(in.getInt(), in.getInt());
+				break;
+			case OP_DELETE_QUERIES: {
+				int ids[] = readInts(in);
+				target.glDeleteQueries(ids.length, ids, 0);
+				break;
+			}
+			case OP_END_QUERY:
+				target.glEndQuery(in.getInt());
+				break;
+			case OP_GEN_QUERIES: {
+				int n = in.getInt();
+				target.glGenQueries(n, new int[n], 0);
+				break;
+			}
+			case OP_GET_QUERY_OBJECTUIV:
+				target.glGetQueryObjectuiv(in.getInt(), in.getInt(),
+						new int[1], 0);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Helper method for encoding string into UTF-8 bytes.
+	 */
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+}
@@ -0,0 +1,623 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * Thin GL state cache all rendering calls go through. Method names and
+ * signatures follow GLES20. Current program, frame buffer, array buffer,
+ * viewport, scissor box, enabled capabilities, vertex attribute array enables
+ * and texture unit bindings are shadowed and calls which would not change
+ * them are skipped. Calls which go through are passed to a GL backend, GLES20
+ * by default. One instance should be used per OpenGL context.
+ */
+public final class LBGLState {
+
+	// Capabilities shadowed by enable/disable calls.
+	private static final int[] CAPS = { GLES20.GL_BLEND, GLES20.GL_CULL_FACE,
+			GLES20.GL_DEPTH_TEST, GLES20.GL_DITHER, GLES20.GL_SCISSOR_TEST };
+	// Number of shadowed vertex attribute arrays.
+	private static final int MAX_ATTRIBS = 16;
+	// Number of shadowed texture units.
+	private static final int MAX_TEXTURE_UNITS = 8;
+	// Value for state not known. Differs from -1 and 0 handles so that no
+	// handle ever matches it.
+	private static final int UNKNOWN = Integer.MIN_VALUE;
+
+	// Active texture unit index.
+	private int mActiveTexture;
+	// Bound array buffer.
+	private int mArrayBuffer;
+	// Enabled state for vertex attribute arrays.
+	private final int[] mAttribArrays = new int[MAX_ATTRIBS];
+	// Backend calls which go through are passed to.
+	private LBGL mBackend = new LBGLES20();
+	// Enabled state for capabilities, indexed as in CAPS.
+	private final int[] mCaps = new int[CAPS.length];
+	// Bound frame buffer.
+	private int mFramebuffer;
+	// Calls issued and skipped since frame was started.
+	private int mIssued, mSkipped;
+	// Program in use.
+	private int mProgram;
+	// Scissor box {x, y, width, height}.
+	private final int[] mScissor = new int[4];
+	// Bound 2D textures per texture unit.
+	private final int[] mTextures = new int[MAX_TEXTURE_UNITS];
+	// Viewport {x, y, width, height}.
+	private final int[] mViewport = new int[4];
+
+	/**
+	 * Default constructor.
+	 */
+	public LBGLState() {
+		reset();
+	}
+
+	/**
+	 * Marks start of a new frame, call counters are reset. State is shared
+	 * by every renderer drawing with same context, each renderer should read
+	 * counters once it has drawn its frame.
+	 */
+	public void beginFrame() {
+		mIssued = mSkipped = 0;
+	}
+
+	/**
+	 * Getter for GL backend.
+	 *
+	 * @return Backend calls are passed to.
+	 */
+	public LBGL getBackend() {
+		return mBackend;
+	}
+
+	/**
+	 * Getter for number of GL calls issued since frame was started.
+	 *
+	 * @return Number of calls passed to GL.
+	 */
+	public int getIssuedCount() {
+		return mIssued;
+	}
+
+	/**
+	 * Getter for number of GL calls skipped since frame was started.
+	 *
+	 * @return Number of calls which were redundant.
+	 */
+	public int getSkippedCount() {
+		return mSkipped;
+	}
+
+	/**
+	 * Helper method for finding index of a shadowed capability.
+	 */
+	private static int indexOfCap(int cap) {
+		for (int i = 0; i < CAPS.length; ++i) {
+			if (CAPS[i] == cap) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Invalidates all shadowed state. Should be called once OpenGL context is
+	 * created or state has been changed outside this class.
+	 */
+	public void reset() {
+		mActiveTexture = mArrayBuffer = mFramebuffer = mProgram = UNKNOWN;
+		Arrays.fill(mAttribArrays, UNKNOWN);
+		Arrays.fill(mCaps, UNKNOWN);
+		Arrays.fill(mScissor, UNKNOWN);
+		Arrays.fill(mTextures, UNKNOWN);
+		Arrays.fill(mViewport, UNKNOWN);
+	}
+
+	/**
+	 * Sets GL backend calls are passed to. Shadowed state is reset.
+	 *
+	 * @param backend
+	 *            New backend.
+	 */
+	public void setBackend(LBGL backend) {
+		mBackend = backend;
+		reset();
+	}
+
+	/**
+	 * Shadowed state calls.
+	 */
+
+	public void glActiveTexture(int texture) {
+		if (mActiveTexture == texture) {
+			++mSkipped;
+			return;
+		}
+		++mIssued;
+		mActiveTexture = texture;
+		mBackend.glActiveTexture(texture);
+	}
+
+	public void glBindBuffer(int target, int buffer) {
+		if (target == GLES20.GL_ARRAY_BUFFER) {
+			if (mArrayBuffer == buffer) {
+				++mSkipped;
+				return;
+			}
+			mArrayBuffer = buffer;
+		}
+		++mIssued;
+		mBackend.glBindBuffer(target, buffer);
+	}
+
+	public void glBindFramebuffer(int target, int framebuffer) {
+		if (mFramebuffer == framebuffer) {
+			++mSkipped;
+			return;
+		}
+		++mIssued;
+		mFramebuffer = framebuffer;
+		mBackend.glBindFramebuffer(target, framebuffer);
+	}
+
+	public void glBindTexture(int target, int texture) {
+		int unit = mActiveTexture == UNKNOWN ? -1 : mActiveTexture
+				- GLES20.GL_TEXTURE0;
+		if (target == GLES20.GL_TEXTURE_2D && unit >= 0
+				&& unit < MAX_TEXTURE_UNITS) {
+			if (mTextures[unit] == texture) {
+				++mSkipped;
+				return;
+			}
+			mTextures[unit] = texture;
+		}
+		++mIssued;
+		mBackend.glBindTexture(target, texture);
+	}
+
+	public void glDisable(int cap) {
+		int idx = indexOfCap(cap);
+		if (idx >= 0) {
+			if (mCaps[idx] == 0) {
+				++mSkipped;
+				return;
+			}
+			mCaps[idx] = 0;
+		}
+		++mIssued;
+		mBackend.glDisable(cap);
+	}
+
+	public void glDisableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			if (mAttribArrays[index] == 0) {
+				++mSkipped;
+				return;
+			}
+			mAttribArrays[index] = 0;
+		}
+		++mIssued;
+		mBackend.glDisableVertexAttribArray(index);
+	}
+
+	public void glEnable(int cap) {
+		int idx = indexOfCap(cap);
+		if (idx >= 0) {
+			if (mCaps[idx] == 1) {
+				++mSkipped;
+				return;
+			}
+			mCaps[idx] = 1;
+		}
+		++mIssued;
+		mBackend.glEnable(cap);
+	}
+
+	public void glEnableVertexAttribArray(int index) {
+		if (index >= 0 && index < MAX_ATTRIBS) {
+			if (mAttribArrays[index] == 1) {
+				++mSkipped;
+				return;
+			}
+			mAttribArrays[index] = 1;
+		}
+		++mIssued;
+		mBackend.glEnableVertexAttribArray(index);
+	}
+
+	public void glScissor(int x, int y, int width, int height) {
+		if (mScissor[0] == x && mScissor[1] == y && mScissor[2] == width
+				&& mScissor[3] == height) {
+			++mSkipped;
+			return;
+		}
+		++mIssued;
+		mScissor[0] = x;
+		mScissor[1] = y;
+		mScissor[2] = width;
+		mScissor[3] = height;
+		mBackend.glScissor(x, y, width, height);
+	}
+
+	public void glUseProgram(int program) {
+		if (mProgram == program) {
+			++mSkipped;
+			return;
+		}
+		++mIssued;
+		mProgram = program;
+		mBackend.glUseProgram(program);
+	}
+
+	public void glViewport(int x, int y, int width, int height) {
+		if (mViewport[0] == x && mViewport[1] == y && mViewport[2] == width
+				&& mViewport[3] == height) {
+			++mSkipped;
+			return;
+		}
+		++mIssued;
+		mViewport[0] = x;
+		mViewport[1] = y;
+		mViewport[2] = width;
+		mViewport[3] = height;
+		mBackend.glViewport(x, y, width, height);
+	}
+
+	/**
+	 * Object deletion calls. Shadowed bindings to deleted objects are reset as
+	 * GL does. Handles 0 and below, e.g. -1 for objects never created, are
+	 * ignored by GL and never reset anything.
+	 */
+
+	public void glDeleteBuffers(int n, int[] buffers, int offset) {
+		++mIssued;
+		for (int i = offset; i < offset + n; ++i) {
+			if (buffers[i] > 0 && buffers[i] == mArrayBuffer) {
+				mArrayBuffer = 0;
+			}
+		}
+		mBackend.glDeleteBuffers(n, buffers, offset);
+	}
+
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+		++mIssued;
+		for (int i = offset; i < offset + n; ++i) {
+			if (framebuffers[i] > 0 && framebuffers[i] == mFramebuffer) {
+				mFramebuffer = 0;
+			}
+		}
+		mBackend.glDeleteFramebuffers(n, framebuffers, offset);
+	}
+
+	public void glDeleteProgram(int program) {
+		++mIssued;
+		// Program in use is deleted only once it's no longer in use, still
+		// make sure next glUseProgram goes through.
+		if (program > 0 && program == mProgram) {
+			mProgram = UNKNOWN;
+		}
+		mBackend.glDeleteProgram(program);
+	}
+
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		++mIssued;
+		for (int i = offset; i < offset + n; ++i) {
+			for (int unit = 0; unit < MAX_TEXTURE_UNITS; ++unit) {
+				if (textures[i] > 0 && mTextures[unit] == textures[i]) {
+					mTextures[unit] = 0;
+				}
+			}
+		}
+		mBackend.glDeleteTextures(n, textures, offset);
+	}
+
+	/**
+	 * Pass-through calls.
+	 */
+
+	public void glAttachShader(int program, int shader) {
+		++mIssued;
+		mBackend.glAttachShader(program, shader);
+	}
+
+	public void glBeginQuery(int target, int id) {
+		++mIssued;
+		mBackend.glBeginQuery(target, id);
+	}
+
+	public void glBindRenderbuffer(int target, int renderbuffer) {
+		++mIssued;
+		mBackend.glBindRenderbuffer(target, renderbuffer);
+	}
+
+	public void glBufferData(int target, int size, Buffer data, int usage) {
+		++mIssued;
+		mBackend.glBufferData(target, size, data, usage);
+	}
+
+	public void glBufferSubData(int target, int offset, int size, Buffer data) {
+		++mIssued;
+		mBackend.glBufferSubData(target, offset, size, data);
+	}
+
+	public int glCheckFramebufferStatus(int target) {
+		++mIssued;
+		return mBackend.glCheckFramebufferStatus(target);
+	}
+
+	public void glClear(int mask) {
+		++mIssued;
+		mBackend.glClear(mask);
+	}
+
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		++mIssued;
+		mBackend.glClearColor(red, green, blue, alpha);
+	}
+
+	public void glCompileShader(int shader) {
+		++mIssued;
+		mBackend.glCompileShader(shader);
+	}
+
+	public int glCreateProgram() {
+		++mIssued;
+		return mBackend.glCreateProgram();
+	}
+
+	public int glCreateShader(int type) {
+		++mIssued;
+		return mBackend.glCreateShader(type);
+	}
+
+	public void glDeleteQueries(int n, int[] ids, int offset) {
+		++mIssued;
+		mBackend.glDeleteQueries(n, ids, offset);
+	}
+
+	public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+		++mIssued;
+		mBackend.glDeleteRenderbuffers(n, renderbuffers, offset);
+	}
+
+	public void glDeleteShader(int shader) {
+		++mIssued;
+		mBackend.glDeleteShader(shader);
+	}
+
+	public void glDrawArrays(int mode, int first, int count) {
+		++mIssued;
+		mBackend.glDrawArrays(mode, first, count);
+	}
+
+	public void glEndQuery(int target) {
+		++mIssued;
+		mBackend.glEndQuery(target);
+	}
+
+	public void glFinish() {
+		++mIssued;
+		mBackend.glFinish();
+	}
+
+	public void glFramebufferRenderbuffer(int target, int attachment,
+			int renderbuffertarget, int renderbuffer) {
+		++mIssued;
+		mBackend.glFramebufferRenderbuffer(target, attachment,
+				renderbuffertarget, renderbuffer);
+	}
+
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+		++mIssued;
+		mBackend.glFramebufferTexture2D(target, attachment, textarget, texture,
+				level);
+	}
+
+	public void glGenBuffers(int n, int[] buffers, int offset) {
+		++mIssued;
+		mBackend.glGenBuffers(n, buffers, offset);
+	}
+
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		++mIssued;
+		mBackend.glGenFramebuffers(n, framebuffers, offset);
+	}
+
+	public void glGenQueries(int n, int[] ids, int offset) {
+		++mIssued;
+		mBackend.glGenQueries(n, ids, offset);
+	}
+
+	public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+		++mIssued;
+		mBackend.glGenRenderbuffers(n, renderbuffers, offset);
+	}
+
+	public void glGenTextures(int n, int[] textures, int offset) {
+		++mIssued;
+		mBackend.glGenTextures(n, textures, offset);
+	}
+
+	public void glGetActiveAttrib(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		++mIssued;
+		mBackend.glGetActiveAttrib(program, index, bufsize, length,
+				lengthOffset, size, sizeOffset, type, typeOffset, name,
+				nameOffset);
+	}
+
+	public void glGetActiveUniform(int program, int index, int bufsize,
+			int[] length, int lengthOffset, int[] size, int sizeOffset,
+			int[] type, int typeOffset, byte[] name, int nameOffset) {
+		++mIssued;
+		mBackend.glGetActiveUniform(program, index, bufsize, length,
+				lengthOffset, size, sizeOffset, type, typeOffset, name,
+				nameOffset);
+	}
+
+	public int glGetAttribLocation(int program, String name) {
+		++mIssued;
+		return mBackend.glGetAttribLocation(program, name);
+	}
+
+	public void glGetBooleanv(int pname, boolean[] params, int offset) {
+		++mIssued;
+		mBackend.glGetBooleanv(pname, params, offset);
+	}
+
+	public void glGetIntegerv(int pname, int[] params, int offset) {
+		++mIssued;
+		mBackend.glGetIntegerv(pname, params, offset);
+	}
+
+	public void glGetProgramBinary(int program, int bufSize, int[] length,
+			int lengthOffset, int[] binaryFormat, int binaryFormatOffset,
+			Buffer binary) {
+		++mIssued;
+		mBackend.glGetProgramBinary(program, bufSize, length, lengthOffset,
+				binaryFormat, binaryFormatOffset, binary);
+	}
+
+	public String glGetProgramInfoLog(int program) {
+		++mIssued;
+		return mBackend.glGetProgramInfoLog(program);
+	}
+
+	public void glGetProgramiv(int program, int pname, int[] params,
+			int offset) {
+		++mIssued;
+		mBackend.glGetProgramiv(program, pname, params, offset);
+	}
+
+	public void glGetQueryObjectuiv(int id, int pname, int[] params,
+			int offset) {
+		++mIssued;
+		mBackend.glGetQueryObjectuiv(id, pname, params, offset);
+	}
+
+	public String glGetShaderInfoLog(int shader) {
+		++mIssued;
+		return mBackend.glGetShaderInfoLog(shader);
+	}
+
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		++mIssued;
+		mBackend.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	public String glGetString(int name) {
+		++mIssued;
+		return mBackend.glGetString(name);
+	}
+
+	public int glGetUniformLocation(int program, String name) {
+		++mIssued;
+		return mBackend.glGetUniformLocation(program, name);
+	}
+
+	public void glLinkProgram(int program) {
+		++mIssued;
+		mBackend.glLinkProgram(program);
+	}
+
+	public void glPixelStorei(int pname, int param) {
+		++mIssued;
+		mBackend.glPixelStorei(pname, param);
+	}
+
+	public void glProgramBinary(int program, int binaryFormat, Buffer binary,
+			int length) {
+		++mIssued;
+		mBackend.glProgramBinary(program, binaryFormat, binary, length);
+	}
+
+	public void glProgramParameteri(int program, int pname, int value) {
+		++mIssued;
+		mBackend.glProgramParameteri(program, pname, value);
+	}
+
+	public void glRenderbufferStorage(int target, int internalformat,
+			int width, int height) {
+		++mIssued;
+		mBackend.glRenderbufferStorage(target, internalformat, width, height);
+	}
+
+	public void glShaderSource(int shader, String string) {
+		++mIssued;
+		mBackend.glShaderSource(shader, string);
+	}
+
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		++mIssued;
+		mBackend.glTexImage2D(target, level, internalformat, width, height,
+				border, format, type, pixels);
+	}
+
+	public void glTexParameteri(int target, int pname, int param) {
+		++mIssued;
+		mBackend.glTexParameteri(target, pname, param);
+	}
+
+	public void glUniform1f(int location, float x) {
+		++mIssued;
+		mBackend.glUniform1f(location, x);
+	}
+
+	public void glUniform1i(int location, int x) {
+		++mIssued;
+		mBackend.glUniform1i(location, x);
+	}
+
+	public void glUniform2f(int location, float x, float y) {
+		++mIssued;
+		mBackend.glUniform2f(location, x, y);
+	}
+
+	public void glUniform2fv(int location, int count, float[] v, int offset) {
+		++mIssued;
+		mBackend.glUniform2fv(location, count, v, offset);
+	}
+
+	public void glUniform3fv(int location, int count, float[] v, int offset) {
+		++mIssued;
+		mBackend.glUniform3fv(location, count, v, offset);
+	}
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		++mIssued;
+		mBackend.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+	}
+
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, int offset) {
+		++mIssued;
+		mBackend.glVertexAttribPointer(indx, size, type, normalized, stride,
+				offset);
+	}
+
+}
@@ -0,0 +1,490 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lookahead scheduler for animation ticks. Everything randomly generated on
+ * a tick boundary, box targets, fill pattern and rotation target, is stored
+ * into a keyframe. Keyframes are stored into a preallocated ring. With
+ * prefetching enabled keyframes for next few ticks are generated ahead on a
+ * shared background thread, so that on tick boundary render thread only
+ * advances ring index and swaps box array references. Otherwise, and
+ * whenever background thread has fallen behind, next keyframe is generated
+ * on calling thread; headless and virtual clock runs tick far faster than
+ * handing keyframes over between threads allows. Generator state is stored
+ * with every keyframe, keyframes generated ahead are discarded and generated
+ * again once box capacity grows, so same seed and same sequence of calls
+ * always produce same keyframes, prefetched or not.
+ */
+public final class LBKeyframes {
+
+	// Number of keyframes generated ahead.
+	private static final int LOOKAHEAD = 2;
+	// Ring size, keyframes generated ahead plus current source and target.
+	private static final int RING_SIZE = LOOKAHEAD + 2;
+	// Rotation angle targets for fill patterns, boxes are aligned with
+	// background pattern.
+	private static final int ROTATION_TARGETS[] = { 0, 2, 0, 2, 3, 1, 1, 3 };
+	// Shared worker thread for generating keyframes.
+	private static ExecutorService sExecutor;
+
+	// Foreground box storage and generator.
+	private final LBBoxStore mBoxes;
+	// Number of boxes keyframes are generated for.
+	private int mCapacity;
+	// Index of current target keyframe, previous one is current source.
+	private int mCurrent = 1;
+	// Lock held while keyframes are generated or discarded. Generator state
+	// is accessed holding this lock only.
+	private final Object mGenerateLock = new Object();
+	// Preallocated generation task.
+	private final Runnable mGenerateTask = new Runnable() {
+		@Override
+		public void run() {
+			prefetch();
+		}
+	};
+	// Index of next keyframe to be generated.
+	private int mHead = 2;
+	// Keyframe ring, indexed modulo RING_SIZE.
+	private final Keyframe mKeyframes[] = new Keyframe[RING_SIZE];
+	// Flag for generating keyframes ahead on background thread.
+	private boolean mPrefetch;
+	// Random number generator for background and rotation.
+	private final LBRandom mRandom;
+	// Flag for generation task being scheduled or running.
+	private boolean mScheduled;
+
+	/**
+	 * Constructor for keyframes with given random seed. Initial keyframe is
+	 * generated right away.
+	 *
+	 * @param seed
+	 *            Random seed.
+	 */
+	public LBKeyframes(long seed) {
+		mRandom = new LBRandom(seed);
+		mBoxes = new LBBoxStore(mRandom.nextLong());
+		for (int i = 0; i < RING_SIZE; ++i) {
+			mKeyframes[i] = new Keyframe(1 + mBoxes.getStateLength());
+		}
+		// Generate initial keyframe, both source and target of first tick.
+		Keyframe keyframe = get(mCurrent);
+		keyframe.mFillPattern = selectFillPattern(keyframe);
+		genFillPattern(keyframe, keyframe.mFillPattern);
+		saveState(keyframe.mState);
+		mBoxes.setKeyframes(keyframe, keyframe);
+	}
+
+	/**
+	 * Advances ring to next keyframe and schedules generation of following
+	 * ones if prefetching. Should be called holding the lock, with next
+	 * keyframe generated.
+	 */
+	private Keyframe advance() {
+		++mCurrent;
+		mBoxes.setKeyframes(get(mCurrent - 1), get(mCurrent));
+		if (mPrefetch) {
+			schedule();
+		}
+		return get(mCurrent);
+	}
+
+	/**
+	 * Generates keyframe at ring head. Should be called holding generate
+	 * lock, but not the lock.
+	 */
+	private void generate() {
+		Keyframe prev, next;
+		synchronized (this) {
+			prev = get(mHead - 1);
+			next = get(mHead);
+		}
+
+		// Store rotation angle target to current value, decreased into range
+		// [0, 8).
+		next.mRotationAngle = prev.mRotationAngleTarget % 8;
+		next.mRotationAngleTarget = next.mRotationAngle;
+		// Probability for generating new animation.
+		next.mFillPattern = -1;
+		if (mRandom.nextFloat() < 0.3f) {
+			next.mFillPattern = selectFillPattern(next);
+			genFillPattern(next, next.mFillPattern);
+		}
+		// Generate new box targets.
+		mBoxes.genKeyframe(prev, next, mCapacity);
+		saveState(next.mState);
+
+		synchronized (this) {
+			++mHead;
+		}
+	}
+
+	/**
+	 * Generates/stores given points and normal into fill data array. Fill areas
+	 * are presented by three variables; source point, target point and normal.
+	 * In some cases, using random number generator, given area is split into
+	 * two. Also, similarly, source and target positions are swapped for some
+	 * random behavior in order to make effect more lively.
+	 *
+	 * @param keyframe
+	 *            Keyframe to store fill data into.
+	 * @param x1
+	 *            Source position x.
+	 * @param y1
+	 *            Source position y.
+	 * @param x2
+	 *            Target position x.
+	 * @param y2
+	 *            Target position y.
+	 * @param nx
+	 *            Normal x.
+	 * @param ny
+	 *            Normal y.
+	 */
+	private void genFillData(Keyframe keyframe, float x1, float y1, float x2,
+			float y2, float nx, float ny) {
+		// Select random background color.
+		float rgb = (mRandom.nextFloat() * 0.5f) + 0.5f;
+		// Randomly split filling in two independent fill areas.
+		int fillDataCount = mRandom.nextFloat() > 0.8f ? 2 : 1;
+		// Generate fill struct data.
+		for (int curIdx = 0; curIdx < fillDataCount; ++curIdx) {
+			// Take next unused StructFillData.
+			LBAnimation.StructFillData fillData =
+					keyframe.mFillData[keyframe.mFillDataCount++];
+			// Set common values.
+			fillData.mColor[0] = rgb;
+			fillData.mColor[1] = rgb;
+			fillData.mColor[2] = rgb;
+			fillData.mFillNormal[0] = nx;
+			fillData.mFillNormal[1] = ny;
+
+			// Calculate start and end positions using interpolation.
+			float sourceT = (float) curIdx / fillDataCount;
+			float targetT = (float) (curIdx + 1) / fillDataCount;
+
+			// Finally store fill source and target positions. Plus randomly
+			// swap them with each other for "reverse" effect.
+			int posIdx = mRandom.nextFloat() > 0.5f ? 2 : 0;
+			// Calculate new positions using sourceT and targetT.
+			fillData.mFillPositions[posIdx + 0] = x1 + (x2 - x1) * sourceT;
+			fillData.mFillPositions[posIdx + 1] = y1 + (y2 - y1) * sourceT;
+			// Recalculate posIdx so that 0 --> 2 or 2 --> 0.
+			posIdx = (posIdx + 2) % 4;
+			fillData.mFillPositions[posIdx + 0] = x1 + (x2 - x1) * targetT;
+			fillData.mFillPositions[posIdx + 1] = y1 + (y2 - y1) * targetT;
+		}
+	}
+
+	/**
+	 * Generates fill data for given fill/animation pattern.
+	 *
+	 * @param keyframe
+	 *            Keyframe to store fill data into.
+	 * @param pattern
+	 *            Pattern index, [0, 8).
+	 */
+	private void genFillPattern(Keyframe keyframe, int pattern) {
+		// First reset fill data counter. Do note that genFillData increases
+		// this counter once called.
+		keyframe.mFillDataCount = 0;
+
+		switch (pattern) {
+		// Vertical and horizontal fills.
+		case 0:
+			genFillData(keyframe, -1, 1, -1, -1, 2, 0);
+			break;
+		case 1:
+			genFillData(keyframe, -1, 1, 1, 1, 0, -2);
+			break;
+		case 2:
+			genFillData(keyframe, -1, 1, -1, 0, 2, 0);
+			genFillData(keyframe, -1, 0, -1, -1, 2, 0);
+			break;
+		case 3:
+			genFillData(keyframe, -1, 1, 1, 1, 0, -1);
+			genFillData(keyframe, -1, 0, 1, 0, 0, -1);
+			break;
+		// Diagonal fills.
+		case 4:
+			genFillData(keyframe, -1, 1, 1, 1, 3, -3);
+			genFillData(keyframe, -1, 1, -1, -1, 3, -3);
+			break;
+		case 5:
+			genFillData(keyframe, 1, 1, -1, 1, -3, -3);
+			genFillData(keyframe, 1, 1, 1, -1, -3, -3);
+			break;
+		case 6:
+			genFillData(keyframe, -1, -1, 1, 1, -1.5f, 1.5f);
+			genFillData(keyframe, -1, -1, 1, 1, 1.5f, -1.5f);
+			break;
+		case 7:
+			genFillData(keyframe, -1, 1, 1, -1, 1.5f, 1.5f);
+			genFillData(keyframe, -1, 1, 1, -1, -1.5f, -1.5f);
+			break;
+		}
+	}
+
+	/**
+	 * Helper method for getting keyframe at given ring index.
+	 */
+	private Keyframe get(int index) {
+		return mKeyframes[index % RING_SIZE];
+	}
+
+	/**
+	 * Getter for foreground box storage. Box source and target values are
+	 * those of current source and target keyframes.
+	 *
+	 * @return Box storage.
+	 */
+	public LBBoxStore getBoxes() {
+		return mBoxes;
+	}
+
+	/**
+	 * Getter for current target keyframe. Keyframe stays valid until next()
+	 * has been called twice.
+	 *
+	 * @return Current keyframe.
+	 */
+	public synchronized Keyframe getCurrent() {
+		return get(mCurrent);
+	}
+
+	/**
+	 * Advances to next keyframe. Current target keyframe becomes source one
+	 * and box values are swapped accordingly. If it hasn't been generated
+	 * ahead it's generated on calling thread, after background thread has
+	 * finished keyframe it's working on, if any.
+	 *
+	 * @return New current keyframe.
+	 */
+	public Keyframe next() {
+		synchronized (this) {
+			if (mHead - mCurrent > 1) {
+				return advance();
+			}
+		}
+		synchronized (mGenerateLock) {
+			synchronized (this) {
+				if (mHead - mCurrent > 1) {
+					return advance();
+				}
+			}
+			generate();
+			synchronized (this) {
+				return advance();
+			}
+		}
+	}
+
+	/**
+	 * Generates keyframes until LOOKAHEAD keyframes are available. Run on
+	 * worker thread.
+	 */
+	private void prefetch() {
+		synchronized (mGenerateLock) {
+			while (true) {
+				synchronized (this) {
+					if (!mPrefetch || mHead - mCurrent > LOOKAHEAD) {
+						mScheduled = false;
+						return;
+					}
+				}
+				generate();
+			}
+		}
+	}
+
+	/**
+	 * Restores generator state from given array.
+	 */
+	private void restoreState(long[] state) {
+		mRandom.setState(state[0]);
+		mBoxes.restoreState(state, 1);
+	}
+
+	/**
+	 * Stores generator state into given array.
+	 */
+	private void saveState(long[] state) {
+		state[0] = mRandom.getState();
+		mBoxes.saveState(state, 1);
+	}
+
+	/**
+	 * Schedules generation task unless it's scheduled already or there are
+	 * LOOKAHEAD keyframes available. Should be called holding the lock.
+	 */
+	private void schedule() {
+		if (mScheduled || mHead - mCurrent > LOOKAHEAD) {
+			return;
+		}
+		synchronized (LBKeyframes.class) {
+			if (sExecutor == null) {
+				sExecutor = Executors
+						.newSingleThreadExecutor(new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "LBKeyframes");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+		}
+		mScheduled = true;
+		sExecutor.execute(mGenerateTask);
+	}
+
+	/**
+	 * Selects random fill/animation pattern and sets rotation angle target
+	 * for it so that boxes are aligned with background pattern.
+	 *
+	 * @param keyframe
+	 *            Keyframe to store rotation angle target into.
+	 * @return Pattern index, [0, 8).
+	 */
+	private int selectFillPattern(Keyframe keyframe) {
+		int pattern = (int) (mRandom.nextFloat() * 8);
+		int target = ROTATION_TARGETS[pattern];
+
+		// Select closest target angle from left or right side of current value.
+		int diff1 = Math.abs(target - keyframe.mRotationAngle);
+		int diff2 = Math.abs(target - keyframe.mRotationAngle + 4);
+		keyframe.mRotationAngleTarget = diff1 <= diff2 ? target : target + 4;
+		return pattern;
+	}
+
+	/**
+	 * Sets number of boxes. If count exceeds current capacity, keyframes
+	 * generated ahead are discarded and new boxes are initialized with random
+	 * target values in current target keyframe, growing from nothing. Lower
+	 * counts only limit number of boxes rendered, keyframes keep being
+	 * generated for capacity so that quality tier changes don't discard them.
+	 *
+	 * @param count
+	 *            New box count.
+	 */
+	public void setBoxCount(int count) {
+		if (count > mCapacity) {
+			synchronized (mGenerateLock) {
+				synchronized (this) {
+					// Continue generation from current target keyframe.
+					Keyframe source = get(mCurrent - 1);
+					Keyframe target = get(mCurrent);
+					mHead = mCurrent + 1;
+					restoreState(target.mState);
+
+					source.setCapacity(count);
+					target.setCapacity(count);
+					Arrays.fill(source.mColor, mCapacity * 3, count * 3, 0f);
+					Arrays.fill(source.mPos, mCapacity * 2, count * 2, 0f);
+					Arrays.fill(source.mScale, mCapacity, count, 0f);
+					mBoxes.genBoxes(target, mCapacity, count);
+					saveState(target.mState);
+					mCapacity = count;
+					// Arrays may have been reallocated.
+					mBoxes.setKeyframes(source, target);
+					if (mPrefetch) {
+						schedule();
+					}
+				}
+			}
+		}
+		mBoxes.setCount(count);
+	}
+
+	/**
+	 * Sets whether keyframes are generated ahead on background thread. Worth
+	 * it only if ticks follow real time, e.g. for live wallpaper, otherwise
+	 * handing keyframes over costs more than generating them. Disabled by
+	 * default.
+	 *
+	 * @param prefetch
+	 *            True for generating keyframes ahead.
+	 */
+	public synchronized void setPrefetch(boolean prefetch) {
+		mPrefetch = prefetch;
+		if (mPrefetch) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Values randomly generated on one tick boundary. Fill data is valid only
+	 * if fill pattern has been selected.
+	 */
+	public static final class Keyframe {
+		// Box target color RGB values, {r, g, b} tuple per box.
+		public float mColor[] = {};
+		// Fill data elements array.
+		public final LBAnimation.StructFillData mFillData[] =
+				new LBAnimation.StructFillData[4];
+		// Number of active fill data elements.
+		public int mFillDataCount;
+		// Fill pattern selected on this tick, -1 if none.
+		public int mFillPattern = -1;
+		// Box target position values, {x, y} tuple per box.
+		public float mPos[] = {};
+		// Rotation angle and rotation animation target (= int * PI / 4).
+		public int mRotationAngle, mRotationAngleTarget;
+		// Box target scale values.
+		public float mScale[] = {};
+		// Generator state once this keyframe has been generated.
+		private final long mState[];
+
+		private Keyframe(int stateLength) {
+			for (int i = 0; i < mFillData.length; ++i) {
+				mFillData[i] = new LBAnimation.StructFillData();
+			}
+			mState = new long[stateLength];
+		}
+
+		/**
+		 * Grows box arrays to hold at least given number of boxes. Existing
+		 * values are kept.
+		 *
+		 * @param capacity
+		 *            Number of boxes.
+		 */
+		public void setCapacity(int capacity) {
+			if (capacity > mScale.length) {
+				mColor = copyOf(mColor, capacity * 3);
+				mPos = copyOf(mPos, capacity * 2);
+				mScale = copyOf(mScale, capacity);
+			}
+		}
+
+		/**
+		 * Helper method for growing float array.
+		 */
+		private static float[] copyOf(float[] src, int length) {
+			float dst[] = new float[length];
+			System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+			return dst;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Lookup tables for composite grain and border vignette. Values are the same
+ * ones composite shader used to calculate per pixel, baked into byte arrays
+ * for uploading as luminance textures.
+ */
+public final class LBLookup {
+
+	// Border width within normalized [0, sqrt2] pixel distance from center.
+	private static final float BORDER_WIDTH = 1.2f;
+	// Number of grain random seeds.
+	public static final int NOISE_SEED_COUNT = 10;
+	// First grain random seed.
+	public static final int NOISE_SEED_FIRST = 40;
+	// Maximum pixel distance from center.
+	private static final float SQRT2 = 1.4143f;
+
+	/**
+	 * Fills grain lookup table. Table is sized width * NOISE_SEED_COUNT and
+	 * holds one row per seed, row values are indexed with texture y
+	 * coordinate.
+	 *
+	 * @param dst
+	 *            Destination array.
+	 * @param width
+	 *            Number of values per seed.
+	 */
+	public static void genNoise(byte[] dst, int width) {
+		for (int seed = 0; seed < NOISE_SEED_COUNT; ++seed) {
+			for (int x = 0; x < width; ++x) {
+				float y = (x + 0.5f) / width;
+				dst[seed * width + x] = toByte(noise(y, NOISE_SEED_FIRST
+						+ seed));
+			}
+		}
+	}
+
+	/**
+	 * Fills vignette lookup table. First value is for pixels inside border
+	 * area and rest of the values span border area from inner edge to screen
+	 * corner.
+	 *
+	 * @param dst
+	 *            Destination array.
+	 * @param width
+	 *            Number of values.
+	 */
+	public static void genVignette(byte[] dst, int width) {
+		dst[0] = toByte(1f);
+		for (int x = 1; x < width; ++x) {
+			dst[x] = toByte(vignette((x - 0.5f) / (width - 1)));
+		}
+	}
+
+	/**
+	 * Calculates vignette lookup table size for given surface size so that
+	 * there's roughly one value per pixel along screen diagonal.
+	 *
+	 * @param width
+	 *            Surface width.
+	 * @param height
+	 *            Surface height.
+	 * @return Vignette table size.
+	 */
+	public static int getVignetteWidth(int width, int height) {
+		double diagonal = Math.sqrt(width * width + height * height) * 0.5;
+		return (int) Math.ceil(diagonal * (SQRT2 - BORDER_WIDTH) / SQRT2) + 1;
+	}
+
+	/**
+	 * Calculates grain coefficient for given texture y coordinate and seed.
+	 *
+	 * @param y
+	 *            Texture y coordinate.
+	 * @param seed
+	 *            Random seed.
+	 * @return Color coefficient within [0.73, 1].
+	 */
+	public static float noise(float y, float seed) {
+		double dot = (y * 8.0 + seed) * (12.9898 + 78.233);
+		double rand = Math.sin(dot) * 43758.5453;
+		rand -= Math.floor(rand);
+		return (float) (0.73 + (1.0 - 0.73) * rand);
+	}
+
+	/**
+	 * Calculates vignette coordinate for given normalized pixel distance from
+	 * center, distance being within [0, sqrt2]. Values below zero are inside
+	 * border area.
+	 *
+	 * @param pixelPos
+	 *            Distance from center.
+	 * @return Position within border area.
+	 */
+	public static float shade(float pixelPos) {
+		return (pixelPos - BORDER_WIDTH) / (SQRT2 - BORDER_WIDTH);
+	}
+
+	/**
+	 * Helper method for storing [0, 1] value as unsigned byte.
+	 */
+	private static byte toByte(float value) {
+		return (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255);
+	}
+
+	/**
+	 * Calculates _rounded_ corner vignette coefficient for given position
+	 * within border area.
+	 *
+	 * @param shade
+	 *            Position within border area, [0, 1].
+	 * @return Color coefficient.
+	 */
+	public static float vignette(float shade) {
+		if (shade < 0f) {
+			return 1f;
+		}
+		float shadeMain = (shade * 6f) % 6f;
+		float shadeBool = shadeMain % 2f;
+		if (shadeBool >= 0.15f && shadeBool <= 1f) {
+			return 0.2f;
+		} else if (shadeBool >= 1.15f && shadeBool <= 2f) {
+			return 1f - (float) Math.sqrt(shadeMain * 0.1f);
+		} else {
+			return (1f - (float) Math.sqrt(shadeMain * 0.1f)) * 0.7f;
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Worker thread building short looping frame sequences for preview engines.
+ * Loops are rendered once per surface size with LBCpuRenderer at reduced
+ * resolution into RGB565 bitmaps, so that wallpaper picker can play them back
+ * on canvas instead of running the OpenGL pipeline. Animation isn't periodic,
+ * so frames following the loop are crossfaded into its first frames to hide
+ * the seam. Only a few most recently built loops are kept.
+ */
+public final class LBPreviewCache extends Thread {
+
+	// Number of loops kept, e.g. portrait and landscape.
+	private static final int CACHE_SIZE = 2;
+	// Crossfade length in millis.
+	private static final long FADE_TIME = 1000;
+	// Time between loop frames in millis.
+	public static final long FRAME_TIME = 1000 / 12;
+	// Loop length in millis.
+	private static final long LOOP_TIME = LBAnimation.TICK_TIME * 2;
+	// Animation seed, every preview shows the same loop.
+	private static final long PREVIEW_SEED = 0x4C6F7665L;
+	// Maximum loop frame width or height in pixels.
+	private static final int PREVIEW_SIZE = 256;
+
+	// Main thread handler callbacks are posted to.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Built loops, most recent last.
+	private final ArrayList<Loop> mLoops = new ArrayList<Loop>();
+	// Flag for thread being stopped.
+	private boolean mQuit;
+	// Requested sizes as {width, height} tuples and callbacks for them,
+	// modified holding the lock.
+	private final ArrayList<Runnable> mRequestCallbacks =
+			new ArrayList<Runnable>();
+	private final ArrayList<int[]> mRequestSizes = new ArrayList<int[]>();
+
+	/**
+	 * Default constructor.
+	 */
+	public LBPreviewCache() {
+		super("LBPreviewCache");
+	}
+
+	/**
+	 * Blends source pixels into destination pixels with given weight.
+	 */
+	private static void blend(int[] dst, int[] src, float t) {
+		int w = Math.round(t * 256);
+		for (int i = 0; i < dst.length; ++i) {
+			int a = dst[i], b = src[i];
+			int rb = (a & 0xFF00FF) * (256 - w) + (b & 0xFF00FF) * w;
+			int g = (a & 0xFF00) * (256 - w) + (b & 0xFF00) * w;
+			dst[i] = 0xFF000000 | ((rb >>> 8) & 0xFF00FF)
+					| ((g >>> 8) & 0xFF00);
+		}
+	}
+
+	/**
+	 * Renders loop for given surface size. Returns null if thread is stopped
+	 * while rendering.
+	 */
+	private Loop build(int width, int height) {
+		float scale = Math.min(1f, PREVIEW_SIZE
+				/ (float) Math.max(width, height));
+		int frameWidth = Math.max(1, Math.round(width * scale));
+		int frameHeight = Math.max(1, Math.round(height * scale));
+		int frameCount = (int) (LOOP_TIME / FRAME_TIME);
+		int fadeCount = (int) (FADE_TIME / FRAME_TIME);
+
+		LBAnimation animation = new LBAnimation(PREVIEW_SEED);
+		LBCpuRenderer renderer = new LBCpuRenderer();
+		renderer.setSize(frameWidth, frameHeight);
+		// Touch start and current position equal, no displacement.
+		float touchPositions[] = { 0.5f, 0.5f, 0.5f, 0.5f };
+
+		// Run one tick first so that background is filled.
+		long time = 0;
+		for (; time < LBAnimation.TICK_TIME; time += FRAME_TIME) {
+			if (isQuit()) {
+				return null;
+			}
+			animation.update(time * 1000000, false);
+			renderer.render(animation, touchPositions, getNoiseSeed(time));
+		}
+
+		Bitmap frames[] = new Bitmap[frameCount];
+		int fadePixels[][] = new int[fadeCount][];
+		for (int i = 0; i < frameCount + fadeCount; ++i, time += FRAME_TIME) {
+			if (isQuit()) {
+				return null;
+			}
+			animation.update(time * 1000000, false);
+			renderer.render(animation, touchPositions, getNoiseSeed(time));
+			int pixels[] = renderer.getPixels();
+			if (i < fadeCount) {
+				fadePixels[i] = pixels.clone();
+			}
+			int index = i;
+			if (i >= frameCount) {
+				// Fade from frames following the loop into first frames.
+				index = i - frameCount;
+				blend(pixels, fadePixels[index], index / (float) fadeCount);
+			} else {
+				frames[i] = Bitmap.createBitmap(frameWidth, frameHeight,
+						Bitmap.Config.RGB_565);
+			}
+			frames[index].setPixels(pixels, 0, frameWidth, 0, 0, frameWidth,
+					frameHeight);
+		}
+		return new Loop(width, height, frames);
+	}
+
+	/**
+	 * Getter for loop built for given surface size.
+	 *
+	 * @param width
+	 *            Surface width in pixels.
+	 * @param height
+	 *            Surface height in pixels.
+	 * @return Loop, null if not built yet.
+	 */
+	public synchronized Loop get(int width, int height) {
+		for (Loop loop : mLoops) {
+			if (loop.mSurfaceWidth == width && loop.mSurfaceHeight == height) {
+				return loop;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper method for selecting grain seed same way renderer does.
+	 */
+	private static int getNoiseSeed(long time) {
+		return (int) ((time / 80) % LBLookup.NOISE_SEED_COUNT);
+	}
+
+	/**
+	 * Helper method for reading quit flag.
+	 */
+	private synchronized boolean isQuit() {
+		return mQuit;
+	}
+
+	/**
+	 * Stops thread. Returns once loop being rendered, if any, is abandoned.
+	 * Pending callbacks are never called.
+	 */
+	public void quit() {
+		synchronized (this) {
+			mQuit = true;
+			notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Requests loop to be built for given surface size. Given callback is
+	 * posted to main thread once loop is available from get(int, int), right
+	 * away if it has been built already. Requests are served in order.
+	 *
+	 * @param width
+	 *            Surface width in pixels.
+	 * @param height
+	 *            Surface height in pixels.
+	 * @param callback
+	 *            Callback to post once loop is available.
+	 */
+	public synchronized void request(int width, int height, Runnable callback) {
+		if (get(width, height) != null) {
+			mHandler.post(callback);
+			return;
+		}
+		mRequestSizes.add(new int[] { width, height });
+		mRequestCallbacks.add(callback);
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while (true) {
+			int size[];
+			synchronized (this) {
+				while (!mQuit && mRequestSizes.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						mQuit = true;
+					}
+				}
+				if (mQuit) {
+					return;
+				}
+				size = mRequestSizes.get(0);
+			}
+
+			Loop loop = get(size[0], size[1]);
+			if (loop == null) {
+				loop = build(size[0], size[1]);
+				if (loop == null) {
+					return;
+				}
+			}
+
+			// Store loop and post callbacks of every request for its size.
+			synchronized (this) {
+				if (!mLoops.contains(loop)) {
+					mLoops.add(loop);
+					if (mLoops.size() > CACHE_SIZE) {
+						mLoops.remove(0);
+					}
+				}
+				for (int i = mRequestSizes.size() - 1; i >= 0; --i) {
+					int requestSize[] = mRequestSizes.get(i);
+					if (requestSize[0] == size[0]
+							&& requestSize[1] == size[1]) {
+						mHandler.post(mRequestCallbacks.get(i));
+						mRequestSizes.remove(i);
+						mRequestCallbacks.remove(i);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looping frame sequence rendered for one surface size. Frames are
+	 * immutable once loop has been built.
+	 */
+	public static final class Loop {
+		// Loop frames.
+		private final Bitmap mFrames[];
+		// Surface size loop was built for.
+		private final int mSurfaceWidth, mSurfaceHeight;
+
+		private Loop(int surfaceWidth, int surfaceHeight, Bitmap[] frames) {
+			mSurfaceWidth = surfaceWidth;
+			mSurfaceHeight = surfaceHeight;
+			mFrames = frames;
+		}
+
+		/**
+		 * Getter for frame to show at given time. Frames are FRAME_TIME
+		 * apart and sequence wraps around.
+		 *
+		 * @param time
+		 *            Time in millis.
+		 * @return Frame bitmap.
+		 */
+		public Bitmap getFrame(long time) {
+			return mFrames[(int) ((time / FRAME_TIME) % mFrames.length)];
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.os.Build;
+
+/**
+ * Persistent cache of linked program binaries. Binaries are stored into
+ * application cache directory, one file per program named after a hash of
+ * shader sources and driver, so that driver updates invalidate them. Program
+ * binaries are queried with the OpenGL ES 3.0 calls OES_get_program_binary
+ * was promoted into, Java bindings don't expose the extension itself, and
+ * cache is disabled unless context was created with client version 3 and
+ * reports OpenGL ES 3.0 or later. Programs linked while cache is enabled are
+ * flagged retrievable before linking so that drivers keep their binaries
+ * around. Failing to read or write the cache is
+ * never an error, programs are simply compiled from sources then. Can be used
+ * from any thread with a context current once init() has been called.
+ */
+public final class LBProgramCache {
+
+	// GLES30 constants, GLES20 doesn't define them.
+	private static final int GL_NUM_PROGRAM_BINARY_FORMATS = 0x87FE,
+			GL_PROGRAM_BINARY_LENGTH = 0x8741,
+			GL_PROGRAM_BINARY_RETRIEVABLE_HINT = 0x8257;
+
+	// Directory binaries are stored into.
+	private final File mDir;
+	// Driver identification for current context, null if program binaries
+	// aren't supported.
+	private volatile String mDriver;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param context
+	 *            Context for cache directory.
+	 */
+	public LBProgramCache(Context context) {
+		mDir = new File(context.getCacheDir(), "programs");
+	}
+
+	/**
+	 * Helper method for closing streams quietly.
+	 */
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Helper method for getting cache file for given driver and sources.
+	 */
+	private File getFile(String driver, String sourceVertex,
+			String sourceFragment) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(toUtf8(driver));
+			digest.update((byte) 0);
+			digest.update(toUtf8(sourceVertex));
+			digest.update((byte) 0);
+			digest.update(toUtf8(sourceFragment));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest.digest()) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+						Character.forDigit(b & 0xF, 16));
+			}
+			return new File(mDir, name.toString());
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Checks whether program binaries are supported by current context and
+	 * stores driver identification. Should be called once new context has
+	 * been created, with context current. Version string alone isn't enough,
+	 * some drivers report OpenGL ES 3.x on contexts created with client
+	 * version 2, and GLES30 calls aren't valid on them.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param clientVersion
+	 *            EGL_CONTEXT_CLIENT_VERSION context was created with.
+	 */
+	public void init(LBGLState gl, int clientVersion) {
+		mDriver = null;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2
+				|| clientVersion < 3) {
+			return;
+		}
+		// Version string is "OpenGL ES N.M vendor-specific".
+		String version = gl.glGetString(GLES20.GL_VERSION);
+		if (version == null || !version.startsWith("OpenGL ES ")
+				|| version.length() < 11 || version.charAt(10) < '3') {
+			return;
+		}
+		int formats[] = new int[1];
+		gl.glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+		if (formats[0] <= 0) {
+			return;
+		}
+		mDriver = gl.glGetString(GLES20.GL_VENDOR) + '\n'
+				+ gl.glGetString(GLES20.GL_RENDERER) + '\n' + version;
+	}
+
+	/**
+	 * Creates program from cached binary for given sources. Binaries which
+	 * fail to load, e.g. after driver update, are removed.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param sourceVertex
+	 *            Vertex shader source, defines included.
+	 * @param sourceFragment
+	 *            Fragment shader source, defines included.
+	 * @return Linked program handle, 0 if binary is not available.
+	 */
+	public int load(LBGLState gl, String sourceVertex, String sourceFragment) {
+		String driver = mDriver;
+		if (driver == null) {
+			return 0;
+		}
+		File file = getFile(driver, sourceVertex, sourceFragment);
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			int format = in.readInt();
+			int size = in.readInt();
+			if (size <= 0 || size > file.length()) {
+				throw new IOException("Invalid binary size " + size);
+			}
+			byte binary[] = new byte[size];
+			in.readFully(binary);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length);
+			buffer.put(binary).position(0);
+
+			int program = gl.glCreateProgram();
+			if (program != 0) {
+				gl.glProgramBinary(program, format, buffer, binary.length);
+				int linkStatus[] = new int[1];
+				gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus,
+						0);
+				if (linkStatus[0] == GLES20.GL_TRUE) {
+					return program;
+				}
+				gl.glDeleteProgram(program);
+			}
+		} catch (IOException ex) {
+			// Truncated or unreadable, removed below.
+		} finally {
+			close(in);
+		}
+		file.delete();
+		return 0;
+	}
+
+	/**
+	 * Stores binary of given linked program.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param program
+	 *            Linked program handle.
+	 * @param sourceVertex
+	 *            Vertex shader source program was compiled from.
+	 * @param sourceFragment
+	 *            Fragment shader source program was compiled from.
+	 */
+	public void save(LBGLState gl, int program, String sourceVertex,
+			String sourceFragment) {
+		String driver = mDriver;
+		if (driver == null || program == 0) {
+			return;
+		}
+		int length[] = new int[1];
+		gl.glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if (length[0] <= 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]);
+		int format[] = new int[1];
+		gl.glGetProgramBinary(program, length[0], length, 0, format, 0, buffer);
+		byte binary[] = new byte[length[0]];
+		buffer.position(0);
+		buffer.get(binary);
+
+		// Write into temporary file first so that concurrent readers never
+		// see partial binaries.
+		File file = getFile(driver, sourceVertex, sourceFragment);
+		File temp = new File(mDir, file.getName() + "."
+				+ Thread.currentThread().getId());
+		DataOutputStream out = null;
+		try {
+			mDir.mkdirs();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(format[0]);
+			out.writeInt(binary.length);
+			out.write(binary);
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException ex) {
+			close(out);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Flags program about to be linked retrievable, so that its binary can be
+	 * saved afterwards. Does nothing if cache is disabled. Should be called
+	 * before glLinkProgram.
+	 *
+	 * @param gl
+	 *            GL state for current context.
+	 * @param program
+	 *            Program handle, shaders attached.
+	 */
+	public void prepareLink(LBGLState gl, int program) {
+		if (mDriver != null && program != 0) {
+			gl.glProgramParameteri(program,
+					GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+		}
+	}
+
+	/**
+	 * Helper method for encoding string into UTF-8 bytes.
+	 */
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+}
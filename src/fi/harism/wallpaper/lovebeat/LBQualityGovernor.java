@@ -0,0 +1,282 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Feedback controller stepping between quality tiers based on rolling frame
+ * times. Tiers trade offscreen FBO resolution, grain, vignette and foreground
+ * box count for speed. Stepping down happens once average frame time gets
+ * close to frame budget, stepping up only after frame times have stayed well
+ * below it for a while, and no step is taken for a cooldown period after
+ * previous one. Power save mode and thermal headroom limit highest allowed
+ * tier. Governor can be frozen to highest tier for recording and replaying
+ * frames, which must not depend on measured frame times. Should be used from
+ * render thread only.
+ */
+public final class LBQualityGovernor {
+
+	// Time no step is taken after previous one, in millis.
+	private static final long COOLDOWN_TIME = 1000;
+	// Time frame averages must stay below up threshold before stepping up,
+	// in millis.
+	private static final long HOLD_TIME_UP = 4000;
+	// Interval power and thermal state are polled with, in millis. Thermal
+	// headroom returns no value if it is queried too often.
+	private static final long SIGNAL_POLL_INTERVAL = 10000;
+	// Thermal headroom forecast in seconds.
+	private static final int THERMAL_FORECAST = 10;
+	// Thermal headroom above which highest tiers are not allowed, 1 being
+	// throttling threshold.
+	private static final float THERMAL_HEADROOM_LIMIT = 0.85f;
+	// Average frame time relative to budget above which tier is lowered.
+	private static final float THRESHOLD_DOWN = 0.85f;
+	// Average frame time relative to budget below which tier is raised.
+	private static final float THRESHOLD_UP = 0.5f;
+	// Foreground box count multipliers per tier, highest quality first.
+	private static final float TIER_BOX_SCALE[] = { 1f, 1f, 0.75f, 0.5f };
+	// Number of tiers.
+	public static final int TIER_COUNT = 4;
+	// Grain per tier.
+	private static final boolean TIER_GRAIN[] = { true, true, false, false };
+	// Lowest tier index, allowed in power save mode or while warm.
+	private static final int TIER_LIMITED = 2;
+	// FBO render scale multipliers per tier.
+	private static final float TIER_RENDER_SCALE[] = { 1f, 0.75f, 0.75f,
+			0.5f };
+	// Vignette per tier.
+	private static final boolean TIER_VIGNETTE[] = { true, true, true, false };
+	// Number of frames averaged.
+	private static final int WINDOW_SIZE = 60;
+
+	// Flag for stepping tiers, if false highest allowed tier is used.
+	private boolean mEnabled = true;
+	// Rolling frame times in nanos.
+	private final long mFrameTimes[] = new long[WINDOW_SIZE];
+	// Number of frame times recorded since last step.
+	private int mFrameTimesCount;
+	// Sum of frame times within window.
+	private long mFrameTimesSum;
+	// Flag for quality being fixed to highest tier.
+	private boolean mFrozen;
+	// Power manager for power save and thermal state.
+	private final PowerManager mPowerManager;
+	// Current tier index, 0 being highest quality.
+	private int mTier;
+	// Highest quality tier allowed by power and thermal state.
+	private int mTierLimit;
+	// Time of last tier change in millis.
+	private long mTimeChanged;
+	// Time frame averages went below up threshold in millis, -1 if above.
+	private long mTimeGood = -1;
+	// Time power and thermal state were last polled in millis, -1 if never.
+	private long mTimeSignals = -1;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param context
+	 *            Context for power manager, or null for ignoring power and
+	 *            thermal state, e.g. when running headless.
+	 */
+	public LBQualityGovernor(Context context) {
+		mPowerManager = context == null ? null : (PowerManager) context
+				.getSystemService(Context.POWER_SERVICE);
+	}
+
+	/**
+	 * Getter for foreground box count multiplier of current tier.
+	 *
+	 * @return Box count multiplier, (0, 1].
+	 */
+	public float getBoxScale() {
+		return TIER_BOX_SCALE[mTier];
+	}
+
+	/**
+	 * Getter for FBO render scale multiplier of current tier.
+	 *
+	 * @return Render scale multiplier, (0, 1].
+	 */
+	public float getRenderScale() {
+		return TIER_RENDER_SCALE[mTier];
+	}
+
+	/**
+	 * Getter for current tier.
+	 *
+	 * @return Tier index, 0 being highest quality.
+	 */
+	public int getTier() {
+		return mTier;
+	}
+
+	/**
+	 * Getter for grain being allowed by current tier.
+	 *
+	 * @return True if grain is allowed.
+	 */
+	public boolean isGrainEnabled() {
+		return TIER_GRAIN[mTier];
+	}
+
+	/**
+	 * Getter for vignette being allowed by current tier.
+	 *
+	 * @return True if vignette is allowed.
+	 */
+	public boolean isVignetteEnabled() {
+		return TIER_VIGNETTE[mTier];
+	}
+
+	/**
+	 * Records frame time and steps tier if needed.
+	 *
+	 * @param time
+	 *            Frame time in millis, from renderer clock.
+	 * @param frameTime
+	 *            Time spent rendering and presenting frame in nanos.
+	 * @param frameBudget
+	 *            Time available per frame in nanos, paced frame interval
+	 *            divided among targets rendered on same vsync.
+	 * @return True if tier was changed.
+	 */
+	public boolean onFrame(long time, long frameTime, long frameBudget) {
+		if (mFrozen) {
+			return false;
+		}
+		if (mTimeSignals < 0 || time - mTimeSignals >= SIGNAL_POLL_INTERVAL) {
+			mTimeSignals = time;
+			updateTierLimit();
+		}
+
+		int tier = mTier;
+		if (!mEnabled) {
+			tier = mTierLimit;
+		} else if (tier < mTierLimit) {
+			// Power or thermal state got worse, step down at once.
+			tier = mTierLimit;
+		} else if (time - mTimeChanged >= COOLDOWN_TIME) {
+			// Update rolling window.
+			int index = mFrameTimesCount++ % WINDOW_SIZE;
+			mFrameTimesSum += frameTime - mFrameTimes[index];
+			mFrameTimes[index] = frameTime;
+			if (mFrameTimesCount >= WINDOW_SIZE) {
+				long average = mFrameTimesSum / WINDOW_SIZE;
+				if (average > frameBudget * THRESHOLD_DOWN) {
+					tier = Math.min(TIER_COUNT - 1, tier + 1);
+					mTimeGood = -1;
+				} else if (average < frameBudget * THRESHOLD_UP) {
+					if (mTimeGood < 0) {
+						mTimeGood = time;
+					} else if (time - mTimeGood >= HOLD_TIME_UP) {
+						tier = Math.max(mTierLimit, tier - 1);
+					}
+				} else {
+					mTimeGood = -1;
+				}
+			}
+		}
+
+		if (tier == mTier) {
+			return false;
+		}
+		mTier = tier;
+		mTimeChanged = time;
+		resetWindow();
+		return true;
+	}
+
+	/**
+	 * Clears rolling window so that current tier is measured from scratch.
+	 */
+	private void resetWindow() {
+		mTimeGood = -1;
+		mFrameTimesCount = 0;
+		mFrameTimesSum = 0;
+		for (int i = 0; i < WINDOW_SIZE; ++i) {
+			mFrameTimes[i] = 0;
+		}
+	}
+
+	/**
+	 * Enables or disables stepping tiers. Once disabled highest tier allowed
+	 * by power and thermal state is used.
+	 *
+	 * @param enabled
+	 *            If true, tiers are stepped based on frame times.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * Freezes quality to highest tier, frame times and power and thermal
+	 * state are ignored until unfrozen. Once unfrozen tiers are stepped again
+	 * starting from highest one, power and thermal state are polled on next
+	 * frame.
+	 *
+	 * @param frozen
+	 *            If true, highest tier is used.
+	 * @return True if tier was changed.
+	 */
+	public boolean setFrozen(boolean frozen) {
+		if (frozen == mFrozen) {
+			return false;
+		}
+		mFrozen = frozen;
+		mTimeSignals = -1;
+		if (!frozen || mTier == 0) {
+			return false;
+		}
+		mTier = 0;
+		resetWindow();
+		return true;
+	}
+
+	/**
+	 * Polls power save mode and thermal state, where available, and updates
+	 * highest allowed tier.
+	 */
+	private void updateTierLimit() {
+		boolean limited = false;
+		if (mPowerManager != null
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			limited = mPowerManager.isPowerSaveMode();
+		}
+		if (mPowerManager != null
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			int status = mPowerManager.getCurrentThermalStatus();
+			limited |= status >= PowerManager.THERMAL_STATUS_MODERATE;
+			if (status >= PowerManager.THERMAL_STATUS_SEVERE) {
+				mTierLimit = TIER_COUNT - 1;
+				return;
+			}
+		}
+		if (mPowerManager != null
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+			// NaN if not supported, comparison fails then.
+			float headroom = mPowerManager.getThermalHeadroom(THERMAL_FORECAST);
+			limited |= headroom > THERMAL_HEADROOM_LIMIT;
+		}
+		mTierLimit = limited ? TIER_LIMITED : 0;
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+/**
+ * Seeded SplitMix64 pseudo random number generator. Unlike java.util.Random
+ * and Math.random() there is no synchronization or atomic update involved,
+ * instances are meant to be owned by a single thread. Same seed always
+ * produces same sequence.
+ */
+public final class LBRandom {
+
+	// Generator state.
+	private long mState;
+
+	/**
+	 * Constructor for generator with given seed.
+	 *
+	 * @param seed
+	 *            Initial state.
+	 */
+	public LBRandom(long seed) {
+		mState = seed;
+	}
+
+	/**
+	 * Getter for generator state. Generator set to same state later on
+	 * continues with same sequence.
+	 *
+	 * @return Generator state.
+	 */
+	public long getState() {
+		return mState;
+	}
+
+	/**
+	 * Returns next random float value.
+	 *
+	 * @return Random value within [0f, 1f).
+	 */
+	public float nextFloat() {
+		return (nextLong() >>> 40) / (float) (1 << 24);
+	}
+
+	/**
+	 * Returns next random long value.
+	 *
+	 * @return Random value.
+	 */
+	public long nextLong() {
+		long z = (mState += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Sets generator state.
+	 *
+	 * @param state
+	 *            State returned from getState().
+	 */
+	public void setState(long state) {
+		mState = state;
+	}
+
+}
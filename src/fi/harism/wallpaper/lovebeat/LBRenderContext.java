@@ -0,0 +1,268 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+/**
+ * GL objects shared by every renderer drawing with same EGL context; GL state
+ * cache, compiled shader programs and static vertex buffer objects. Renderers
+ * keep only their per surface FBOs, lookup textures and animation state.
+ * Should be used from render thread only.
+ */
+public final class LBRenderContext {
+
+	// Copy and foreground shader variant key bits.
+	public static final int VARIANT_DISPLACEMENT = 1, VARIANT_GRAIN = 2,
+			VARIANT_VIGNETTE = 4, VARIANT_PRECISION_HIGH = 8;
+	// Shader defines for variant key bits, in bit order.
+	private static final String VARIANT_DEFINES[] = { "DISPLACEMENT",
+			"GRAIN", "VIGNETTE", "PRECISION_HIGH" };
+
+	// GL state cache every GL call goes through. Declared first as shaders
+	// are initialized with it.
+	private final LBGLState mGL = new LBGLState();
+
+	// EGL_CONTEXT_CLIENT_VERSION current context was created with.
+	private int mClientVersion = 2;
+	// Static fill coordinates for rendering background.
+	private final LBBuffer mFillBuffer = new LBBuffer(mGL,
+			GLES20.GL_STATIC_DRAW);
+	// Fill coordinates uploaded into mFillBuffer.
+	private final ByteBuffer mFillVertices;
+	// Flag for shared objects being initialized for current context.
+	private boolean mInitialized;
+	// Persistent program binary cache, null if not used.
+	private final LBProgramCache mProgramCache;
+	// Shader for rendering filled background area.
+	private final LBShader mShaderBackground = new LBShader(mGL, "aPosition",
+			"uInterpolators", "uPositions", "uNormal", "uColor");
+	// Flag for indicating whether shader compiler is supported.
+	private final boolean mShaderCompilerSupported[] = new boolean[1];
+	// Shader for copying offscreen texture on screen.
+	private final LBShader mShaderCopy = new LBShader(mGL, VARIANT_DEFINES,
+			"aPosition", "sTextureBg", "uTouchPos", "uNoiseRow", "uVignette",
+			"sNoise", "sVignette");
+	// Shader for rendering filled foreground boxes.
+	private final LBShader mShaderForeground = new LBShader(mGL,
+			VARIANT_DEFINES, "aPosition", "aCenterPos", "aScale", "aColor",
+			"uAspectRatio", "uVectorUp", "uDisplacement", "uTouchPos",
+			"uNoiseRow", "uVignette", "sNoise", "sVignette");
+	// Vertex and fragment sources of copy, background and foreground shaders.
+	private final String mShaderSources[];
+	// Static vertex buffer for full scene coordinates.
+	private final LBBuffer mScreenBuffer = new LBBuffer(mGL,
+			GLES20.GL_STATIC_DRAW);
+	// Full scene coordinates uploaded into mScreenBuffer.
+	private final ByteBuffer mScreenVertices;
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param context
+	 *            Application context for shader sources and program cache.
+	 */
+	public LBRenderContext(Context context) {
+		this(new LBProgramCache(context), new String[] {
+				context.getString(R.string.shader_copy_vs),
+				context.getString(R.string.shader_copy_fs),
+				context.getString(R.string.shader_background_vs),
+				context.getString(R.string.shader_background_fs),
+				context.getString(R.string.shader_foreground_vs),
+				context.getString(R.string.shader_foreground_fs) });
+	}
+
+	/**
+	 * Constructor for context not depending on application resources, e.g.
+	 * for running renderers headless against LBGLNull.
+	 *
+	 * @param programCache
+	 *            Program binary cache, or null for compiling every program.
+	 * @param shaderSources
+	 *            Vertex and fragment shader sources of copy, background and
+	 *            foreground shaders, in that order.
+	 */
+	public LBRenderContext(LBProgramCache programCache,
+			String[] shaderSources) {
+		mProgramCache = programCache;
+		mShaderSources = shaderSources.clone();
+		mShaderBackground.setProgramCache(mProgramCache);
+		mShaderCopy.setProgramCache(mProgramCache);
+		mShaderForeground.setProgramCache(mProgramCache);
+
+		// Handles used only within variant define blocks.
+		mShaderCopy.setOptional(VARIANT_DISPLACEMENT, "uTouchPos");
+		mShaderCopy.setOptional(VARIANT_GRAIN, "uNoiseRow", "sNoise");
+		mShaderCopy.setOptional(VARIANT_VIGNETTE, "uVignette", "sVignette");
+		mShaderForeground.setOptional(VARIANT_DISPLACEMENT, "uDisplacement",
+				"uTouchPos");
+		mShaderForeground.setOptional(VARIANT_GRAIN, "uNoiseRow", "sNoise");
+		mShaderForeground.setOptional(VARIANT_VIGNETTE, "uVignette",
+				"sVignette");
+
+		// Create screen coordinates buffer.
+		final byte SCREEN_COORDS[] = { -1, 1, -1, -1, 1, 1, 1, -1 };
+		mScreenVertices = ByteBuffer.allocateDirect(2 * 4);
+		mScreenVertices.put(SCREEN_COORDS).position(0);
+
+		// Generate fill vertex array coordinates. Coordinates are given as
+		// tuples {targetT,normalT}. Where targetT=0 for sourcePos, targetT=1
+		// for targetPos. And final coordinate is position+(normal*normalT).
+		final byte[] FILL_COORDS = { 0, 0, 0, 1, 1, 0, 1, 1 };
+		mFillVertices = ByteBuffer.allocateDirect(8);
+		mFillVertices.put(FILL_COORDS).position(0);
+	}
+
+	/**
+	 * Getter for EGL_CONTEXT_CLIENT_VERSION current context was created with.
+	 *
+	 * @return Client version, 2 or 3.
+	 */
+	public int getClientVersion() {
+		return mClientVersion;
+	}
+
+	/**
+	 * Getter for background fill coordinate buffer.
+	 *
+	 * @return Fill coordinates, {targetT, normalT} byte tuples.
+	 */
+	public LBBuffer getFillBuffer() {
+		return mFillBuffer;
+	}
+
+	/**
+	 * Getter for GL state cache.
+	 *
+	 * @return GL state cache of this context.
+	 */
+	public LBGLState getGLState() {
+		return mGL;
+	}
+
+	/**
+	 * Getter for full scene coordinate buffer.
+	 *
+	 * @return Screen coordinates, {x, y} byte tuples.
+	 */
+	public LBBuffer getScreenBuffer() {
+		return mScreenBuffer;
+	}
+
+	/**
+	 * Getter for background shader.
+	 *
+	 * @return Background shader.
+	 */
+	public LBShader getShaderBackground() {
+		return mShaderBackground;
+	}
+
+	/**
+	 * Getter for copy shader.
+	 *
+	 * @return Copy shader.
+	 */
+	public LBShader getShaderCopy() {
+		return mShaderCopy;
+	}
+
+	/**
+	 * Getter for foreground shader.
+	 *
+	 * @return Foreground shader.
+	 */
+	public LBShader getShaderForeground() {
+		return mShaderForeground;
+	}
+
+	/**
+	 * Initializes shared objects unless they are initialized already for
+	 * current context. Shader programs are built lazily once they are first
+	 * prepared or used. Should be called with context current.
+	 */
+	public void init() {
+		if (mInitialized) {
+			return;
+		}
+		mInitialized = true;
+
+		// Check if shader compiler is supported.
+		mGL.glGetBooleanv(GLES20.GL_SHADER_COMPILER, mShaderCompilerSupported,
+				0);
+		if (mShaderCompilerSupported[0] == false) {
+			return;
+		}
+
+		// Check if program binaries can be cached.
+		if (mProgramCache != null) {
+			mProgramCache.init(mGL, mClientVersion);
+		}
+		// Upload static vertex buffers.
+		mScreenBuffer.init(mScreenVertices, mScreenVertices.capacity());
+		mFillBuffer.init(mFillVertices, mFillVertices.capacity());
+
+		// Initiate copy shader.
+		mShaderCopy.setProgram(mShaderSources[0], mShaderSources[1]);
+		// Initialize background shader.
+		mShaderBackground.setProgram(mShaderSources[2], mShaderSources[3]);
+		// Initialize foreground shader.
+		mShaderForeground.setProgram(mShaderSources[4], mShaderSources[5]);
+	}
+
+	/**
+	 * Getter for shader compiler support. Valid once init() has been called.
+	 *
+	 * @return True if shader compiler is supported.
+	 */
+	public boolean isShaderCompilerSupported() {
+		return mShaderCompilerSupported[0];
+	}
+
+	/**
+	 * Sets background compiler shader variants are requested from.
+	 *
+	 * @param compiler
+	 *            Compiler thread sharing objects with current context, or
+	 *            null.
+	 */
+	public void setShaderCompiler(LBShaderCompiler compiler) {
+		mShaderBackground.setCompiler(compiler);
+		mShaderCopy.setCompiler(compiler);
+		mShaderForeground.setCompiler(compiler);
+	}
+
+	/**
+	 * Marks shared objects invalid. Should be called once new context has been
+	 * created, old programs and buffers are dropped without deleting them as
+	 * they went away with previous context.
+	 *
+	 * @param clientVersion
+	 *            EGL_CONTEXT_CLIENT_VERSION new context was created with.
+	 */
+	public void reset(int clientVersion) {
+		mClientVersion = clientVersion;
+		mGL.reset();
+		mFillBuffer.invalidate();
+		mScreenBuffer.invalidate();
+		mInitialized = false;
+	}
+
+}
@@ -0,0 +1,707 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+/**
+ * Single render thread shared by every wallpaper engine. Drives EGL14
+ * directly against engine provided SurfaceHolders and owns one EGL context,
+ * so that shader programs and static buffers in LBRenderContext are created
+ * only once no matter how many engines, e.g. home screen and preview, are
+ * running. Frames are started from Choreographer vsync callbacks and animated
+ * to the time they are predicted to be presented at. Context is created once
+ * first surface needs rendering, kept over visibility changes and released
+ * once last target is removed. Target methods are meant to be called from
+ * main thread, they mirror GLSurfaceView ones.
+ */
+public final class LBRenderThread extends Thread implements
+		Choreographer.FrameCallback {
+
+	// Refresh rate used if display doesn't report one.
+	private static final float REFRESH_RATE_DEFAULT = 60f;
+
+	// Vsync callback source, created on render thread.
+	private Choreographer mChoreographer;
+	// EGL_CONTEXT_CLIENT_VERSION of shared context, 3 if OpenGL ES 3.0 is
+	// available and 2 otherwise.
+	private int mEglClientVersion;
+	// EGL config, display and shared context.
+	private EGLConfig mEglConfig;
+	private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
+	private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+	// Flag for context being lost during last frame.
+	private boolean mEglContextLost;
+	// Small offscreen surface for keeping context current while no window
+	// surface is, e.g. when releasing objects of removed targets.
+	private EGLSurface mEglPbuffer = EGL14.EGL_NO_SURFACE;
+	// Display refresh interval in nanos.
+	private final long mFrameInterval;
+	// Flag for frame callback being posted.
+	private boolean mFrameScheduled;
+	// Handler for render thread looper, null until looper is prepared.
+	private Handler mHandler;
+	// Flag for thread being stopped.
+	private boolean mQuit;
+	// Shared GL objects.
+	private final LBRenderContext mRenderContext;
+	// Background compiler sharing objects with current context, if any.
+	private LBShaderCompiler mShaderCompiler;
+	// Targets rendered on current frame, modified holding the lock.
+	private final ArrayList<Target> mRenderTargets = new ArrayList<Target>();
+	// Attached targets.
+	private final ArrayList<Target> mTargets = new ArrayList<Target>();
+	// Releases targets and schedules frames on render thread.
+	private final Runnable mUpdate = new Runnable() {
+		@Override
+		public void run() {
+			update();
+		}
+	};
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param context
+	 *            Context for querying display refresh rate.
+	 * @param renderContext
+	 *            Shared GL objects renderers of this thread are created with.
+	 */
+	public LBRenderThread(Context context, LBRenderContext renderContext) {
+		super("LBRenderThread");
+		mRenderContext = renderContext;
+		WindowManager windowManager = (WindowManager) context
+				.getSystemService(Context.WINDOW_SERVICE);
+		float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+		if (refreshRate <= 0f) {
+			refreshRate = REFRESH_RATE_DEFAULT;
+		}
+		mFrameInterval = (long) (1000000000L / refreshRate);
+	}
+
+	/**
+	 * Attaches new renderer to this thread. Target starts paused and without
+	 * surface.
+	 *
+	 * @param renderer
+	 *            Renderer created with LBRenderContext of this thread.
+	 * @return Target for controlling rendering.
+	 */
+	public synchronized Target addTarget(LBRenderer renderer) {
+		Target target = new Target(renderer);
+		mTargets.add(target);
+		return target;
+	}
+
+	/**
+	 * Helper method for choosing RGB888 window and pbuffer config for given
+	 * renderable type. Returns null if there is no matching config.
+	 */
+	private EGLConfig chooseConfig(int renderableType) {
+		final int CONFIG_ATTRIBS[] = { EGL14.EGL_RED_SIZE, 8,
+				EGL14.EGL_GREEN_SIZE, 8, EGL14.EGL_BLUE_SIZE, 8,
+				EGL14.EGL_RENDERABLE_TYPE, renderableType,
+				EGL14.EGL_SURFACE_TYPE,
+				EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT, EGL14.EGL_NONE };
+		EGLConfig configs[] = new EGLConfig[1];
+		int configCount[] = new int[1];
+		if (!EGL14.eglChooseConfig(mEglDisplay, CONFIG_ATTRIBS, 0, configs, 0,
+				1, configCount, 0) || configCount[0] == 0) {
+			return null;
+		}
+		return configs[0];
+	}
+
+	/**
+	 * Helper method for creating shared context with given client version.
+	 * Returns EGL_NO_CONTEXT on failure.
+	 */
+	private EGLContext createContext(int clientVersion) {
+		final int CONTEXT_ATTRIBS[] = { EGL14.EGL_CONTEXT_CLIENT_VERSION,
+				clientVersion, EGL14.EGL_NONE };
+		EGLContext context = EGL14.eglCreateContext(mEglDisplay, mEglConfig,
+				EGL14.EGL_NO_CONTEXT, CONTEXT_ATTRIBS, 0);
+		return context == null ? EGL14.EGL_NO_CONTEXT : context;
+	}
+
+	/**
+	 * Destroys EGL window surface of given target and makes pbuffer surface
+	 * current. Should be called holding the lock.
+	 */
+	private void destroySurface(Target target) {
+		EGL14.eglMakeCurrent(mEglDisplay, mEglPbuffer, mEglPbuffer,
+				mEglContext);
+		EGL14.eglDestroySurface(mEglDisplay, target.mEglSurface);
+		target.mEglSurface = EGL14.EGL_NO_SURFACE;
+	}
+
+	/**
+	 * Vsync callback, renders every target ready for rendering. Animation is
+	 * advanced to the time frame is predicted to be presented at, one refresh
+	 * interval after vsync frame was started on. Choreographer frame times
+	 * share System.nanoTime() and SystemClock.uptimeMillis() time base.
+	 */
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		synchronized (this) {
+			mFrameScheduled = false;
+			releaseTargets();
+			for (Target target : mTargets) {
+				if (target.isReady()) {
+					mRenderTargets.add(target);
+				}
+			}
+			if (mRenderTargets.isEmpty()) {
+				return;
+			}
+			// Without a context targets fall back to software rendering,
+			// e.g. if there is no matching config or context is lost while
+			// it's being created.
+			try {
+				initEgl();
+			} catch (RuntimeException ex) {
+				releaseEgl();
+				for (Target target : mRenderTargets) {
+					target.mFailed = true;
+					target.mRenderer.postCpuFallback();
+				}
+				mRenderTargets.clear();
+				notifyAll();
+				return;
+			}
+			// Take a snapshot of target state for this frame.
+			for (Target target : mRenderTargets) {
+				target.mRenderFrameInterval = target.mFrameInterval;
+				target.mRenderHolder = target.mHolder;
+				target.mRenderRequested = false;
+				if (target.mSizeChanged) {
+					target.mSizeChanged = false;
+					target.mRenderSizeChanged = true;
+					target.mRenderWidth = target.mWidth;
+					target.mRenderHeight = target.mHeight;
+				}
+			}
+		}
+
+		// Render outside the lock so that main thread isn't blocked while
+		// swapping buffers. Window surfaces stay valid as main thread waits
+		// for their EGL surfaces to be destroyed first.
+		long presentTime = frameTimeNanos + mFrameInterval;
+		for (Target target : mRenderTargets) {
+			render(target, presentTime);
+		}
+
+		synchronized (this) {
+			if (mEglContextLost) {
+				mEglContextLost = false;
+				releaseEgl();
+			}
+			// Frame is done, main thread may wait for it.
+			mRenderTargets.clear();
+			notifyAll();
+			scheduleFrame();
+		}
+	}
+
+	/**
+	 * Getter for shared GL objects.
+	 *
+	 * @return Shared GL objects.
+	 */
+	public LBRenderContext getRenderContext() {
+		return mRenderContext;
+	}
+
+	/**
+	 * Creates EGL context with a pbuffer surface current, unless it exists
+	 * already. Shared objects are marked invalid for new context. OpenGL ES
+	 * 3.0 context is requested first, so that program binaries can be cached,
+	 * falling back to OpenGL ES 2.0 if there is no config or context for it.
+	 *
+	 * @throws RuntimeException
+	 *             If context can't be created and made current, partially
+	 *             created objects are released with releaseEgl().
+	 */
+	private void initEgl() {
+		if (mEglContext != EGL14.EGL_NO_CONTEXT) {
+			return;
+		}
+		if (mEglDisplay == EGL14.EGL_NO_DISPLAY) {
+			mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+			int version[] = new int[2];
+			if (!EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
+				mEglDisplay = EGL14.EGL_NO_DISPLAY;
+				throw new RuntimeException("eglInitialize failed: "
+						+ EGL14.eglGetError());
+			}
+		}
+		if (mEglConfig == null) {
+			// GLES30 bindings are available from API level 18 on.
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+				mEglConfig = chooseConfig(EGLExt.EGL_OPENGL_ES3_BIT_KHR);
+				mEglClientVersion = 3;
+			}
+			if (mEglConfig == null) {
+				mEglConfig = chooseConfig(EGL14.EGL_OPENGL_ES2_BIT);
+				mEglClientVersion = 2;
+			}
+			if (mEglConfig == null) {
+				throw new RuntimeException("eglChooseConfig failed: "
+						+ EGL14.eglGetError());
+			}
+		}
+
+		mEglContext = createContext(mEglClientVersion);
+		if (mEglContext == EGL14.EGL_NO_CONTEXT && mEglClientVersion == 3) {
+			// Some drivers list OpenGL ES 3.0 configs without being able to
+			// create contexts for them.
+			EGLConfig config = chooseConfig(EGL14.EGL_OPENGL_ES2_BIT);
+			if (config != null) {
+				mEglConfig = config;
+				mEglClientVersion = 2;
+				mEglContext = createContext(mEglClientVersion);
+			}
+		}
+		if (mEglContext == EGL14.EGL_NO_CONTEXT) {
+			throw new RuntimeException("eglCreateContext failed: "
+					+ EGL14.eglGetError());
+		}
+		final int PBUFFER_ATTRIBS[] = { EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT,
+				1, EGL14.EGL_NONE };
+		mEglPbuffer = EGL14.eglCreatePbufferSurface(mEglDisplay, mEglConfig,
+				PBUFFER_ATTRIBS, 0);
+		if (mEglPbuffer == null || mEglPbuffer == EGL14.EGL_NO_SURFACE) {
+			mEglPbuffer = EGL14.EGL_NO_SURFACE;
+			throw new RuntimeException("eglCreatePbufferSurface failed: "
+					+ EGL14.eglGetError());
+		}
+		if (!EGL14.eglMakeCurrent(mEglDisplay, mEglPbuffer, mEglPbuffer,
+				mEglContext)) {
+			throw new RuntimeException("eglMakeCurrent failed: "
+					+ EGL14.eglGetError());
+		}
+		mRenderContext.reset(mEglClientVersion);
+
+		// Build shader programs in the background while first frames are
+		// rendered.
+		mShaderCompiler = new LBShaderCompiler(mEglDisplay, mEglConfig,
+				mEglContext, mEglClientVersion);
+		mShaderCompiler.start();
+		mRenderContext.setShaderCompiler(mShaderCompiler);
+	}
+
+	/**
+	 * Stops thread. Returns once thread has released EGL context and display
+	 * and has finished.
+	 */
+	public void quit() {
+		synchronized (this) {
+			mQuit = true;
+			wakeUp();
+		}
+		try {
+			join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops background compiler and destroys window surfaces, shared context
+	 * and pbuffer surface. Renderers are notified about new context once they
+	 * are rendered next time. Should be called holding the lock.
+	 */
+	private void releaseEgl() {
+		if (mEglContext == EGL14.EGL_NO_CONTEXT) {
+			return;
+		}
+		// Compiler context must go away before the one it shares with.
+		if (mShaderCompiler != null) {
+			mRenderContext.setShaderCompiler(null);
+			mShaderCompiler.quit();
+			mShaderCompiler = null;
+		}
+		for (Target target : mTargets) {
+			if (target.mEglSurface != EGL14.EGL_NO_SURFACE) {
+				destroySurface(target);
+			}
+			target.mContextCreated = false;
+		}
+		EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE,
+				EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+		if (mEglPbuffer != EGL14.EGL_NO_SURFACE) {
+			EGL14.eglDestroySurface(mEglDisplay, mEglPbuffer);
+		}
+		EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+		mEglPbuffer = EGL14.EGL_NO_SURFACE;
+		mEglContext = EGL14.EGL_NO_CONTEXT;
+	}
+
+	/**
+	 * Destroys EGL surfaces whose window surface has gone away and releases
+	 * GL objects of removed targets. Waiting main thread is notified if
+	 * anything was released. Should be called holding the lock.
+	 */
+	private void releaseTargets() {
+		boolean released = false;
+		for (int i = mTargets.size() - 1; i >= 0; --i) {
+			Target target = mTargets.get(i);
+			if (target.mEglSurface != EGL14.EGL_NO_SURFACE
+					&& (target.mHolder == null || target.mRemoved)) {
+				destroySurface(target);
+				released = true;
+			}
+			if (target.mRemoved) {
+				if (target.mContextCreated) {
+					target.mRenderer.onRelease();
+				}
+				mTargets.remove(i);
+				released = true;
+			}
+		}
+		if (mTargets.isEmpty()) {
+			releaseEgl();
+		}
+		if (released) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Removes given target and waits until thread has released its GL
+	 * objects.
+	 *
+	 * @param target
+	 *            Target to remove.
+	 */
+	public synchronized void removeTarget(Target target) {
+		target.mRemoved = true;
+		wakeUp();
+		while (isAlive() && mTargets.contains(target)) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Renders single frame of given target onto its window surface, creating
+	 * EGL surface first if needed.
+	 */
+	private void render(Target target, long presentTime) {
+		if (target.mEglSurface == EGL14.EGL_NO_SURFACE) {
+			final int SURFACE_ATTRIBS[] = { EGL14.EGL_NONE };
+			EGLSurface surface = EGL14.eglCreateWindowSurface(mEglDisplay,
+					mEglConfig, target.mRenderHolder, SURFACE_ATTRIBS, 0);
+			// Window may not be ready yet, try again on next request.
+			if (surface == null || surface == EGL14.EGL_NO_SURFACE) {
+				return;
+			}
+			target.mEglSurface = surface;
+		}
+		if (!EGL14.eglMakeCurrent(mEglDisplay, target.mEglSurface,
+				target.mEglSurface, mEglContext)) {
+			// Context is recreated after frame, surface with it.
+			if (EGL14.eglGetError() == EGL14.EGL_CONTEXT_LOST) {
+				mEglContextLost = true;
+			}
+			return;
+		}
+
+		if (!target.mContextCreated) {
+			target.mContextCreated = true;
+			target.mRenderSizeChanged = true;
+			target.mRenderer.onSurfaceCreated();
+		}
+		if (target.mRenderSizeChanged) {
+			target.mRenderSizeChanged = false;
+			target.mRenderer.onSurfaceChanged(target.mRenderWidth,
+					target.mRenderHeight);
+		}
+		long frameStart = System.nanoTime();
+		target.mRenderer.onDrawFrame(presentTime);
+
+		// Let compositor hold frame until predicted time, if supported.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			EGLExt.eglPresentationTimeANDROID(mEglDisplay, target.mEglSurface,
+					presentTime);
+		}
+		if (!EGL14.eglSwapBuffers(mEglDisplay, target.mEglSurface)
+				&& EGL14.eglGetError() == EGL14.EGL_CONTEXT_LOST) {
+			mEglContextLost = true;
+		}
+		// Swapping blocks once GPU falls behind, so frame time covers both
+		// CPU and GPU load. Frame budget is the interval target is paced at,
+		// shared by every target rendered on this vsync.
+		long frameBudget = Math.max(mFrameInterval,
+				target.mRenderFrameInterval) / mRenderTargets.size();
+		target.mRenderer.onFrameRendered(System.nanoTime() - frameStart,
+				frameBudget);
+	}
+
+	@Override
+	public void run() {
+		Looper.prepare();
+		synchronized (this) {
+			mChoreographer = Choreographer.getInstance();
+			mHandler = new Handler(Looper.myLooper());
+			// Targets may have been added, or thread stopped, already.
+			wakeUp();
+		}
+		try {
+			Looper.loop();
+		} finally {
+			synchronized (this) {
+				mChoreographer.removeFrameCallback(this);
+				mHandler = null;
+				for (Target target : mTargets) {
+					target.mRemoved = true;
+				}
+				releaseTargets();
+				if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+					EGL14.eglTerminate(mEglDisplay);
+					EGL14.eglReleaseThread();
+					mEglDisplay = EGL14.EGL_NO_DISPLAY;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Posts vsync callback if any target is ready for rendering and callback
+	 * isn't posted already. Should be called on render thread holding the
+	 * lock.
+	 */
+	private void scheduleFrame() {
+		if (mFrameScheduled) {
+			return;
+		}
+		for (Target target : mTargets) {
+			if (target.isReady()) {
+				mFrameScheduled = true;
+				mChoreographer.postFrameCallback(this);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases targets and schedules next frame, or stops looper once thread
+	 * is being stopped. Runs on render thread.
+	 */
+	private synchronized void update() {
+		if (mQuit) {
+			Looper.myLooper().quit();
+			return;
+		}
+		releaseTargets();
+		scheduleFrame();
+	}
+
+	/**
+	 * Lets render thread know target state has changed. Should be called
+	 * holding the lock.
+	 */
+	private void wakeUp() {
+		if (mHandler != null) {
+			mHandler.post(mUpdate);
+		}
+	}
+
+	/**
+	 * Single renderer attached to render thread. Holds window surface, size
+	 * and rendering state. Fields prefixed with mRender are accessed from
+	 * render thread only, others are modified holding thread lock.
+	 */
+	public final class Target {
+		// Flag for renderer being initialized with current context.
+		private boolean mContextCreated;
+		// Flag for rendering continuously instead of on request.
+		private boolean mContinuous = true;
+		// EGL window surface.
+		private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+		// Interval frames are requested at in nanos, 0 if rendering at
+		// display refresh rate.
+		private long mFrameInterval;
+		// Flag for OpenGL rendering having failed, renderer has been asked
+		// to fall back to software rendering.
+		private boolean mFailed;
+		// Window surface holder, null if there is no surface.
+		private SurfaceHolder mHolder;
+		// Flag for rendering being paused.
+		private boolean mPaused = true;
+		// Flag for target being removed.
+		private boolean mRemoved;
+		// Frame interval for current round.
+		private long mRenderFrameInterval;
+		// Window surface holder for current round.
+		private SurfaceHolder mRenderHolder;
+		// Renderer drawing this target.
+		private final LBRenderer mRenderer;
+		// Flag for frame being requested.
+		private boolean mRenderRequested;
+		// Flag for surface size changed since it was passed to renderer.
+		private boolean mRenderSizeChanged;
+		// Surface size passed to renderer.
+		private int mRenderWidth, mRenderHeight;
+		// Flag for surface size changed since last round.
+		private boolean mSizeChanged;
+		// Surface size.
+		private int mWidth, mHeight;
+
+		private Target(LBRenderer renderer) {
+			mRenderer = renderer;
+		}
+
+		/**
+		 * Returns true if this target should be rendered on next round.
+		 */
+		private boolean isReady() {
+			return !mRemoved && !mFailed && !mPaused && mHolder != null
+					&& mWidth > 0 && mHeight > 0
+					&& (mContinuous || mRenderRequested);
+		}
+
+		/**
+		 * Should be called once window surface size changes.
+		 *
+		 * @param width
+		 *            Surface width.
+		 * @param height
+		 *            Surface height.
+		 */
+		public void onSurfaceChanged(int width, int height) {
+			synchronized (LBRenderThread.this) {
+				mWidth = width;
+				mHeight = height;
+				mSizeChanged = true;
+				mRenderRequested = true;
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Should be called once window surface has been created.
+		 *
+		 * @param holder
+		 *            Holder of window surface.
+		 */
+		public void onSurfaceCreated(SurfaceHolder holder) {
+			synchronized (LBRenderThread.this) {
+				mHolder = holder;
+				mRenderRequested = true;
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Should be called once window surface is about to be destroyed.
+		 * Returns once render thread has released it.
+		 */
+		public void onSurfaceDestroyed() {
+			synchronized (LBRenderThread.this) {
+				mHolder = null;
+				wakeUp();
+				while (isAlive()
+						&& (mEglSurface != EGL14.EGL_NO_SURFACE
+								|| mRenderTargets.contains(this))) {
+					try {
+						LBRenderThread.this.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Requests a frame to be rendered. Used in
+		 * GLSurfaceView.RENDERMODE_WHEN_DIRTY render mode.
+		 */
+		public void requestRender() {
+			synchronized (LBRenderThread.this) {
+				mRenderRequested = true;
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Sets interval frames are requested at, e.g. by LBFramePacer.
+		 * Renderer frame budget is based on it, display refresh interval is
+		 * used if it's shorter.
+		 *
+		 * @param frameInterval
+		 *            Interval in nanos, 0 if rendering at display refresh
+		 *            rate.
+		 */
+		public void setFrameInterval(long frameInterval) {
+			synchronized (LBRenderThread.this) {
+				mFrameInterval = frameInterval;
+			}
+		}
+
+		/**
+		 * Pauses or resumes rendering.
+		 *
+		 * @param paused
+		 *            If true, rendering is paused.
+		 */
+		public void setPaused(boolean paused) {
+			synchronized (LBRenderThread.this) {
+				mPaused = paused;
+				mRenderRequested = true;
+				wakeUp();
+			}
+		}
+
+		/**
+		 * Sets render mode.
+		 *
+		 * @param renderMode
+		 *            GLSurfaceView.RENDERMODE_CONTINUOUSLY or
+		 *            GLSurfaceView.RENDERMODE_WHEN_DIRTY.
+		 */
+		public void setRenderMode(int renderMode) {
+			synchronized (LBRenderThread.this) {
+				mContinuous =
+						renderMode == GLSurfaceView.RENDERMODE_CONTINUOUSLY;
+				wakeUp();
+			}
+		}
+	}
+
+}
@@ -17,92 +17,179 @@
 package fi.harism.wallpaper.lovebeat;
 
 import java.nio.ByteBuffer;
-
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.opengles.GL10;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.opengl.GLES20;
-import android.opengl.GLSurfaceView;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.widget.Toast;
 
 /**
- * Main renderer class.
+ * Main renderer class. Renders a single surface using shader programs and
+ * static buffers shared through LBRenderContext, so that any number of
+ * surfaces can be rendered with one context.
  */
-public final class LBRenderer implements GLSurfaceView.Renderer {
-
-	// Animation tick time length in millis.
-	private static final long ANIMATION_TICK_TIME = 4000;
-	// Number of foreground boxes.
-	private static final int FG_BOX_COUNT = 16;
+public final class LBRenderer {
+
+	// Default number of foreground boxes.
+	private static final int FG_BOX_COUNT_DEFAULT = 16;
+	// Number of floats per batched box vertex; {x, y, cx, cy, scale, r, g, b}.
+	private static final int FG_VERTEX_SIZE = 8;
+	// Number of vertices per batched box, two triangles.
+	private static final int FG_VERTEX_COUNT = 6;
+	// Surface size above which fragment shaders use high precision if
+	// available. Beyond it mediump texture coordinates can't address single
+	// pixels.
+	private static final int PRECISION_HIGH_SIZE = 2048;
+	// Touch resampling parameters in nanos, as used by platform input
+	// resampling. Position is estimated slightly behind frame time, samples
+	// too close or too far apart aren't used for estimating and prediction
+	// past last sample is limited.
+	private static final long RESAMPLE_LATENCY = 5000000,
+			RESAMPLE_MAX_DELTA = 20000000, RESAMPLE_MAX_PREDICTION = 8000000,
+			RESAMPLE_MIN_DELTA = 2000000;
+
+	// Background shader handle slots, see LBRenderContext.
+	private static final int BG_A_POSITION = 0, BG_U_INTERPOLATORS = 1,
+			BG_U_POSITIONS = 2, BG_U_NORMAL = 3, BG_U_COLOR = 4;
+	// Foreground shader handle slots.
+	private static final int FG_A_POSITION = 0, FG_A_CENTER_POS = 1,
+			FG_A_SCALE = 2, FG_A_COLOR = 3, FG_U_ASPECT_RATIO = 4,
+			FG_U_VECTOR_UP = 5, FG_U_DISPLACEMENT = 6, FG_U_TOUCH_POS = 7,
+			FG_U_NOISE_ROW = 8, FG_U_VIGNETTE = 9, FG_S_NOISE = 10,
+			FG_S_VIGNETTE = 11;
+	// Copy shader handle slots.
+	private static final int COPY_A_POSITION = 0, COPY_S_TEXTURE_BG = 1,
+			COPY_U_TOUCH_POS = 2, COPY_U_NOISE_ROW = 3, COPY_U_VIGNETTE = 4,
+			COPY_S_NOISE = 5, COPY_S_VIGNETTE = 6;
+
+	// GL state cache of shared context every GL call goes through.
+	private final LBGLState mGL;
 
 	/**
 	 * Background rendering variables.
 	 */
 
 	// Static coordinate buffer for rendering background.
-	private ByteBuffer bg_FillBuffer;
-	// Fill data elements array.
-	private final StructFillData bg_FillData[] = new StructFillData[4];
-	// Number of fill data elements for rendering.
-	private int bg_FillDataCount;
-	// Last time interpolator.
-	public float bg_LastTimeT = 0;
+	private final LBBuffer bg_FillBuffer;
 	// Shader for rendering filled background area.
-	private final LBShader bg_Shader = new LBShader();
+	private final LBShader bg_Shader;
 
 	/**
 	 * Foreground rendering variables.
 	 */
 
-	// Box data structure array.
-	private final StructBoxData fg_Boxes[] = new StructBoxData[FG_BOX_COUNT];
-	// Value for counting The LoveBeat.
-	private int fg_LoveBeat = 0;
+	// Interleaved vertex array holding every box for a single draw call.
+	private float fg_BatchArray[] = {};
+	// Direct buffer counterpart for fg_BatchArray.
+	private FloatBuffer fg_BatchBuffer;
+	// Vertex buffer object fg_BatchBuffer is streamed into per frame.
+	private final LBBuffer fg_BatchVbo;
 	// Shader for rendering filled foreground boxes.
-	private final LBShader fg_Shader = new LBShader();
+	private final LBShader fg_Shader;
 
 	/**
 	 * Common variables.
 	 */
 
+	// Animation state.
+	private final LBAnimation mAnimation;
 	// Render area aspect ratio.
 	private final float mAspectRatio[] = new float[2];
+	// Requested number of foreground boxes, before quality tier is applied.
+	private int mBoxCount;
+	// Time source for frames and touch samples.
+	private LBClock mClock = new LBClockSystem();
 	// Application context.
 	private Context mContext;
+	// Callback run once shader compiler is found not to be supported.
+	private Runnable mCpuFallback;
+	// Software renderer, created on first software rendered frame.
+	private LBCpuRenderer mCpuRenderer;
+	// Grain and vignette lookup texture handles.
+	private final int mLookupTextures[] = { -1, -1 };
+	// Vignette lookup texture coordinate scale and bias.
+	private final float mLookupVignette[] = new float[2];
 	// FBOs for offscreen rendering.
-	private final LBFbo mFbo = new LBFbo();
-	// Random number seed for copy shader.
-	private float mRandomSeed;
-	// Rotation angle and rotation animation target (= int * PI / 4).
-	private int mRotationAngle, mRotationAngleTarget;
+	private LBFbo mFbo;
+	// Flag for FBOs needing reinitialization on next frame.
+	private boolean mFboDirty;
+	// Per pass frame timing.
+	private final LBFrameStats mFrameStats = new LBFrameStats();
+	// Optional frame rate governor notified about rendered frames.
+	private LBFramePacer mFramePacer;
+	// GL calls issued and skipped during last frame of this renderer.
+	private int mGLIssued, mGLSkipped;
+	// Flag for rendering grain.
+	private boolean mGrain = true;
+	// Flag for programs having been ready for a frame on current context.
+	private boolean mProgramsReady;
+	// Quality tier controller.
+	private final LBQualityGovernor mQuality;
+	// Random number seed for selecting grain lookup row.
+	private float mRandomSeed = LBLookup.NOISE_SEED_FIRST;
+	// Shared GL objects.
+	private final LBRenderContext mRenderContext;
+	// Offscreen FBO size relative to surface size.
+	private float mRenderScale = 1f;
 	// Vertex buffer for full scene coordinates.
-	private ByteBuffer mScreenVertices;
-	// Flag for indicating whether shader compiler is supported.
-	private final boolean[] mShaderCompilerSupported = new boolean[1];
+	private final LBBuffer mScreenBuffer;
 	// Shader for copying offscreen texture on screen.
-	private final LBShader mShaderCopy = new LBShader();
-	// Initialize last render time so that on first render iteration environment
-	// is being set up properly.
+	private final LBShader mShaderCopy;
+	// Copy and foreground shader variant selected for current frame.
+	private int mShaderVariant;
+	// Last frame time in nanos for fading away touch displacement.
 	private long mTimeLast = -1;
-	// Animation tick timer start time in millis.
-	private long mTimeTickStart = -1;
 	// True once following touch events. Used for fading away from displacement
 	// mapping and stopping animation timer for the time touch events are being
 	// executed.
 	private boolean mTouchFollow;
 	// Two { x, y } tuples for touch start and current touch position.
 	private final float mTouchPositions[] = new float[4];
+	// Touch samples passed through clock for current frame.
+	private final LBTouchQueue mTouchFrameQueue = new LBTouchQueue();
+	// Touch samples written by main thread, drained once per frame.
+	private final LBTouchQueue mTouchQueue = new LBTouchQueue();
+	// Number of valid touch samples since touch down, at most two.
+	private int mTouchSampleCount;
+	// Times of previous and last touch sample in nanos.
+	private final long mTouchSampleTimes[] = new long[2];
+	// Two { x, y } tuples for previous and last touch sample.
+	private final float mTouchSamples[] = new float[4];
+	// Flag for rendering border vignette.
+	private boolean mVignette = true;
 	// Surface width and height;
 	private int mWidth, mHeight;
 
 	/**
-	 * Default constructor.
+	 * Default constructor, animation is seeded with construction time.
+	 * 
+	 * @param context
+	 *            Application context.
+	 * @param renderContext
+	 *            Shared GL objects of context this renderer draws with.
+	 */
+	public LBRenderer(Context context, LBRenderContext renderContext) {
+		this(context, renderContext, System.nanoTime());
+	}
+
+	/**
+	 * Constructor for renderer with given animation seed. Same seed, clock
+	 * frame times and touch samples produce same frames.
+	 * 
+	 * @param context
+	 *            Application context, or null when running headless. Without
+	 *            it there is no main thread to post CPU fallback to.
+	 * @param renderContext
+	 *            Shared GL objects of context this renderer draws with.
+	 * @param seed
+	 *            Animation random seed.
 	 */
-	public LBRenderer(Context context) {
+	public LBRenderer(Context context, LBRenderContext renderContext,
+			long seed) {
 
 		/**
 		 * Instantiate common variables.
@@ -110,440 +197,623 @@ public final class LBRenderer implements GLSurfaceView.Renderer {
 
 		// Store application context for later use.
 		mContext = context;
-
-		// Create screen coordinates buffer.
-		final byte SCREEN_COORDS[] = { -1, 1, -1, -1, 1, 1, 1, -1 };
-		mScreenVertices = ByteBuffer.allocateDirect(2 * 4);
-		mScreenVertices.put(SCREEN_COORDS).position(0);
+		mAnimation = new LBAnimation(seed);
+		// Frames follow system clock until another one is set.
+		mAnimation.setPrefetch(true);
+		mQuality = new LBQualityGovernor(context);
+
+		// Grab shared GL objects.
+		mRenderContext = renderContext;
+		mGL = renderContext.getGLState();
+		mFbo = new LBFbo(mGL);
+		mScreenBuffer = renderContext.getScreenBuffer();
+		mShaderCopy = renderContext.getShaderCopy();
 
 		/**
 		 * Instantiate background rendering variables.
 		 */
 
-		// Generate fill vertex array coordinates. Coordinates are given as
-		// tuples {targetT,normalT}. Where targetT=0 for sourcePos, targetT=1
-		// for targetPos. And final coordinate is position+(normal*normalT).
-		final byte[] FILL_COORDS = { 0, 0, 0, 1, 1, 0, 1, 1 };
-		bg_FillBuffer = ByteBuffer.allocateDirect(8);
-		bg_FillBuffer.put(FILL_COORDS).position(0);
-		// Instantiate fill data array.
-		for (int i = 0; i < bg_FillData.length; ++i) {
-			bg_FillData[i] = new StructFillData();
-		}
-		// Generate first animation.
-		bg_GenRandFillData();
+		bg_FillBuffer = renderContext.getFillBuffer();
+		bg_Shader = renderContext.getShaderBackground();
 
 		/**
 		 * Instantiate foreground rendering variables.
 		 */
 
-		// Initialize box struct array.
-		for (int i = 0; i < fg_Boxes.length; ++i) {
-			fg_Boxes[i] = new StructBoxData();
-		}
+		fg_Shader = renderContext.getShaderForeground();
+		fg_BatchVbo = new LBBuffer(mGL, GLES20.GL_STREAM_DRAW);
 		// Initialize foreground boxes with random values.
-		for (StructBoxData box : fg_Boxes) {
-			fg_GenRandBox(box);
-		}
+		setBoxCount(FG_BOX_COUNT_DEFAULT);
 	}
 
 	/**
-	 * Generates/stores given points and normal into fill data array. Fill areas
-	 * are presented by three variables; source point, target point and normal.
-	 * In some cases, using random number generator, given area is split into
-	 * two. Also, similarly, source and target positions are swapped for some
-	 * random behavior in order to make effect more lively.
-	 * 
-	 * @param x1
-	 *            Source position x.
-	 * @param y1
-	 *            Source position y.
-	 * @param x2
-	 *            Target position x.
-	 * @param y2
-	 *            Target position y.
-	 * @param nx
-	 *            Normal x.
-	 * @param ny
-	 *            Normal y.
-	 */
-	private void bg_GenFillData(float x1, float y1, float x2, float y2,
-			float nx, float ny) {
-		// Select random background color.
-		float rgb = (float) (Math.random() * 0.5f) + 0.5f;
-		// Randomly split filling in two independent fill areas.
-		int fillDataCount = Math.random() > 0.8 ? 2 : 1;
-		// Generate fill struct data.
-		for (int curIdx = 0; curIdx < fillDataCount; ++curIdx) {
-			// Take next unused StructFillData.
-			StructFillData fillData = bg_FillData[bg_FillDataCount++];
-			// Set common values.
-			fillData.mColor[0] = rgb;
-			fillData.mColor[1] = rgb;
-			fillData.mColor[2] = rgb;
-			fillData.mFillNormal[0] = nx;
-			fillData.mFillNormal[1] = ny;
-
-			// Calculate start and end positions using interpolation.
-			float sourceT = (float) curIdx / fillDataCount;
-			float targetT = (float) (curIdx + 1) / fillDataCount;
-
-			// Finally store fill source and target positions. Plus randomly
-			// swap them with each other for "reverse" effect.
-			int posIdx = Math.random() > 0.5 ? 2 : 0;
-			// Calculate new positions using sourceT and targetT.
-			fillData.mFillPositions[posIdx + 0] = x1 + (x2 - x1) * sourceT;
-			fillData.mFillPositions[posIdx + 1] = y1 + (y2 - y1) * sourceT;
-			// Recalculate posIdx so that 0 --> 2 or 2 --> 0.
-			posIdx = (posIdx + 2) % 4;
-			fillData.mFillPositions[posIdx + 0] = x1 + (x2 - x1) * targetT;
-			fillData.mFillPositions[posIdx + 1] = y1 + (y2 - y1) * targetT;
-		}
+	 * Stores touch sample as last one, previous last sample is kept for
+	 * resampling.
+	 */
+	private void addTouchSample(float x, float y, long time) {
+		mTouchSamples[0] = mTouchSamples[2];
+		mTouchSamples[1] = mTouchSamples[3];
+		mTouchSamples[2] = x;
+		mTouchSamples[3] = y;
+		mTouchSampleTimes[0] = mTouchSampleTimes[1];
+		mTouchSampleTimes[1] = time;
+		mTouchSampleCount = Math.min(2, mTouchSampleCount + 1);
 	}
 
 	/**
-	 * Generates new fill/animation structure.
-	 */
-	private void bg_GenRandFillData() {
-		// First reset fill data counter. Do note that genFillData increases
-		// this counter once called.
-		bg_FillDataCount = 0;
-
-		// Select random integer for selecting animation.
-		int randPattern = (int) (Math.random() * 8);
-		switch (randPattern) {
-		// Vertical and horizontal fills.
-		// We set up up vector angle here too so that boxes are aligned with
-		// background pattern.
-		case 0:
-			bg_GenFillData(-1, 1, -1, -1, 2, 0);
-			mRotationAngleTarget = 0;
-			break;
-		case 1:
-			bg_GenFillData(-1, 1, 1, 1, 0, -2);
-			mRotationAngleTarget = 2;
-			break;
-		case 2:
-			bg_GenFillData(-1, 1, -1, 0, 2, 0);
-			bg_GenFillData(-1, 0, -1, -1, 2, 0);
-			mRotationAngleTarget = 0;
-			break;
-		case 3:
-			bg_GenFillData(-1, 1, 1, 1, 0, -1);
-			bg_GenFillData(-1, 0, 1, 0, 0, -1);
-			mRotationAngleTarget = 2;
-			break;
-		// Diagonal fills.
-		case 4:
-			bg_GenFillData(-1, 1, 1, 1, 3, -3);
-			bg_GenFillData(-1, 1, -1, -1, 3, -3);
-			mRotationAngleTarget = 3;
-			break;
-		case 5:
-			bg_GenFillData(1, 1, -1, 1, -3, -3);
-			bg_GenFillData(1, 1, 1, -1, -3, -3);
-			mRotationAngleTarget = 1;
-			break;
-		case 6:
-			bg_GenFillData(-1, -1, 1, 1, -1.5f, 1.5f);
-			bg_GenFillData(-1, -1, 1, 1, 1.5f, -1.5f);
-			mRotationAngleTarget = 1;
-			break;
-		case 7:
-			bg_GenFillData(-1, 1, 1, -1, 1.5f, 1.5f);
-			bg_GenFillData(-1, 1, 1, -1, -1.5f, -1.5f);
-			mRotationAngleTarget = 3;
-			break;
-		}
+	 * Renders background band changed on current animation step onto current
+	 * frame buffer.
+	 */
+	public void bg_OnDrawFrame() {
+		// Source and target interpolant t values.
+		float sourceT = mAnimation.getBandSourceT();
+		float targetT = mAnimation.getBandTargetT();
+
+		// Background texture is never cleared and only the band between
+		// interpolants changes. If it's empty, e.g. animation timer is paused,
+		// there is nothing to render.
+		if (sourceT != targetT) {
+			// Initialize background shader for use.
+			bg_Shader.useProgram();
+			int uInterpolators = bg_Shader.getHandle(BG_U_INTERPOLATORS);
+			int uPositions = bg_Shader.getHandle(BG_U_POSITIONS);
+			int uNormal = bg_Shader.getHandle(BG_U_NORMAL);
+			int uColor = bg_Shader.getHandle(BG_U_COLOR);
+			int aPosition = bg_Shader.getHandle(BG_A_POSITION);
+
+			// Store interpolants.
+			mGL.glUniform2f(uInterpolators, sourceT, targetT);
+			// Initiate vertex buffer.
+			bg_FillBuffer.bind();
+			mGL.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0,
+					0);
+			mGL.glEnableVertexAttribArray(aPosition);
+			// Limit rendering into changing band only.
+			mGL.glEnable(GLES20.GL_SCISSOR_TEST);
+
+			// Iterate over active fill data structs.
+			for (int i = 0; i < mAnimation.getFillDataCount(); ++i) {
+				// Grab local reference for fill data.
+				LBAnimation.StructFillData fillData = mAnimation
+						.getFillData(i);
+				// Skip fill areas which are off screen.
+				if (!bg_SetScissor(fillData, sourceT, targetT)) {
+					continue;
+				}
+				// Store fill data position and normal into shader.
+				mGL.glUniform2fv(uPositions, 2, fillData.mFillPositions, 0);
+				mGL.glUniform2fv(uNormal, 1, fillData.mFillNormal, 0);
+				// Store fill data color into shader.
+				mGL.glUniform3fv(uColor, 1, fillData.mColor, 0);
+				// Render fill area.
+				mGL.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+			}
 
-		// Select closest target angle from left or right side of current value.
-		int diff1 = Math.abs(mRotationAngleTarget - mRotationAngle);
-		int diff2 = Math.abs(mRotationAngleTarget - mRotationAngle + 4);
-		mRotationAngleTarget = diff1 <= diff2 ? mRotationAngleTarget
-				: mRotationAngleTarget + 4;
+			mGL.glDisable(GLES20.GL_SCISSOR_TEST);
+		}
 	}
 
 	/**
-	 * Renders background onto current frame buffer.
+	 * Calculates screen space bounds for band fill area sweeps between given
+	 * interpolants and sets it as scissor rectangle. Band is a parallelogram
+	 * spanned by positions at source and target interpolants plus fill normal,
+	 * identical to what background vertex shader calculates.
 	 * 
-	 * @param timeT
-	 *            Time interpolator, float between [0f, 1f].
-	 * @param newTime
-	 *            True once new [0f, 1f] timeT range is started.
-	 */
-	public void bg_OnDrawFrame(float timeT, boolean newTime) {
-		// Calculate source and target interpolant t values.
-		float sourceT = bg_LastTimeT;
-		float targetT = newTime ? 1 : timeT;
-
-		// Initialize background shader for use.
-		bg_Shader.useProgram();
-		int uInterpolators = bg_Shader.getHandle("uInterpolators");
-		int uPositions = bg_Shader.getHandle("uPositions");
-		int uNormal = bg_Shader.getHandle("uNormal");
-		int uColor = bg_Shader.getHandle("uColor");
-		int aPosition = bg_Shader.getHandle("aPosition");
-
-		// Store interpolants.
-		GLES20.glUniform2f(uInterpolators, sourceT, targetT);
-		// Initiate vertex buffer.
-		GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0,
-				bg_FillBuffer);
-		GLES20.glEnableVertexAttribArray(aPosition);
-
-		// Iterate over active fill data structs.
-		for (int i = 0; i < bg_FillDataCount; ++i) {
-			// Grab local reference for fill data.
-			StructFillData fillData = bg_FillData[i];
-			// Store fill data position and normal into shader.
-			GLES20.glUniform2fv(uPositions, 2, fillData.mFillPositions, 0);
-			GLES20.glUniform2fv(uNormal, 1, fillData.mFillNormal, 0);
-			// Store fill data color into shader.
-			GLES20.glUniform3fv(uColor, 1, fillData.mColor, 0);
-			// Render fill area.
-			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-		}
-
-		// Finally update mLastTime and generate new animation if needed.
-		if (newTime) {
-			// Decrease rotation angle into range [0, 8).
-			while (mRotationAngleTarget >= 8) {
-				mRotationAngleTarget -= 8;
-			}
-			// Store rotation angle target to current value.
-			mRotationAngle = mRotationAngleTarget;
-			// Clear last time variable.
-			bg_LastTimeT = 0;
-			// Probability for generating new animation.
-			if (Math.random() < 0.3) {
-				bg_GenRandFillData();
-			}
-		} else {
-			bg_LastTimeT = timeT;
+	 * @param fillData
+	 *            Fill data to calculate band for.
+	 * @param sourceT
+	 *            Source interpolant.
+	 * @param targetT
+	 *            Target interpolant.
+	 * @return False if band is empty or fully off screen.
+	 */
+	private boolean bg_SetScissor(LBAnimation.StructFillData fillData,
+			float sourceT, float targetT) {
+		float pos[] = fillData.mFillPositions;
+		float normal[] = fillData.mFillNormal;
+		// Band start and end positions.
+		float x1 = pos[0] + (pos[2] - pos[0]) * sourceT;
+		float y1 = pos[1] + (pos[3] - pos[1]) * sourceT;
+		float x2 = pos[0] + (pos[2] - pos[0]) * targetT;
+		float y2 = pos[1] + (pos[3] - pos[1]) * targetT;
+		// Bounding box for all four corners in normalized device coordinates.
+		float minX = Math.min(Math.min(x1, x2), Math.min(x1, x2) + normal[0]);
+		float maxX = Math.max(Math.max(x1, x2), Math.max(x1, x2) + normal[0]);
+		float minY = Math.min(Math.min(y1, y2), Math.min(y1, y2) + normal[1]);
+		float maxY = Math.max(Math.max(y1, y2), Math.max(y1, y2) + normal[1]);
+
+		// Convert into pixels, rounding outwards so that no partially covered
+		// pixel is cut, and clamp to render target.
+		int width = mFbo.getWidth(), height = mFbo.getHeight();
+		int left = Math.max(0,
+				(int) Math.floor((minX + 1) * 0.5f * width) - 1);
+		int right = Math.min(width,
+				(int) Math.ceil((maxX + 1) * 0.5f * width) + 1);
+		int bottom = Math.max(0,
+				(int) Math.floor((minY + 1) * 0.5f * height) - 1);
+		int top = Math.min(height,
+				(int) Math.ceil((maxY + 1) * 0.5f * height) + 1);
+		if (left >= right || bottom >= top) {
+			return false;
 		}
+		mGL.glScissor(left, bottom, right - left, top - bottom);
+		return true;
 	}
 
 	/**
-	 * Fills box structure with random values.
-	 * 
-	 * @param box
-	 *            Box to be adjusted.
-	 */
-	public void fg_GenRandBox(StructBoxData box) {
-		// Set random target position.
-		box.mPosTarget[0] = (float) ((Math.random() * 1.6) - 0.8);
-		box.mPosTarget[1] = (float) ((Math.random() * 1.6) - 0.8);
-		// Round position to 10x10 grid.
-		box.mPosTarget[0] = (Math.round(box.mPosTarget[0] * 5) / 5f);
-		box.mPosTarget[1] = (Math.round(box.mPosTarget[1] * 5) / 5f);
-		box.mScaleTarget = (float) ((Math.random() * 0.05) + 0.05);
-
-		// If we've hit The LoveBeat limit and are feeling lucky.
-		if (fg_LoveBeat > 10 && Math.random() > 0.2) {
-			fg_LoveBeat = 0;
-			box.mColorTarget[0] = 0.9f;
-			box.mColorTarget[1] = 0.4f;
-			box.mColorTarget[2] = 0.4f;
-		} else {
-			float rgb = (float) (Math.random() * 0.7f) + 0.3f;
-			box.mColorTarget[0] = rgb;
-			box.mColorTarget[1] = rgb;
-			box.mColorTarget[2] = rgb;
+	 * Helper method for rendering frame, GL calls are counted by caller.
+	 */
+	private void drawFrame(long time) {
+		// If shader compiler is not supported, clear screen buffer only.
+		if (!mRenderContext.isShaderCompilerSupported()) {
+			mGL.glClearColor(0, 0, 0, 1);
+			mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			return;
 		}
-	}
 
-	/**
-	 * Renders foreground onto current frame buffer.
-	 * 
-	 * @param timeT
-	 *            Time interpolator, float between [0f, 1f].
-	 * @param newTime
-	 *            True once new [0f, 1f] timeT range is started.
-	 */
-	public void fg_OnDrawFrame(float timeT, boolean newTime) {
-		// If we have new time span.
-		if (newTime) {
-			// Increase the beat.
-			++fg_LoveBeat;
+		// Clear screen buffer only until programs for first frame have been
+		// built in the background, animation starts once they are ready.
+		// Later on variants still missing are built right away.
+		if (!preparePrograms() && !mProgramsReady) {
+			mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+			mGL.glViewport(0, 0, mWidth, mHeight);
+			mGL.glDisable(GLES20.GL_SCISSOR_TEST);
+			mGL.glClearColor(0, 0, 0, 1);
+			mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			return;
+		}
+		mProgramsReady = true;
+
+		mFrameStats.beginPass(LBFrameStats.PASS_FRAME);
+
+		// Advance animation and touch displacement.
+		updateFrame(time);
+
+		// Reinitialize FBOs if render scale has been changed.
+		if (mFboDirty) {
+			initFbo();
 		}
 
-		// Calculate final up vector value for rendering.
-		double sourceAngle = (Math.PI * mRotationAngle) / 4;
-		double targetAngle = (Math.PI * mRotationAngleTarget) / 4;
-		double angle = sourceAngle + (targetAngle - sourceAngle) * timeT;
-		// Rotate angle from right to up.
-		angle -= Math.PI / 2;
+		// Disable unneeded rendering flags.
+		mGL.glDisable(GLES20.GL_CULL_FACE);
+		mGL.glDisable(GLES20.GL_BLEND);
+		mGL.glDisable(GLES20.GL_DEPTH_TEST);
+
+		/**
+		 * Render background to offscreen FBO, its texture is attached once
+		 * FBO is initialized.
+		 */
+		mFrameStats.beginPass(LBFrameStats.PASS_BACKGROUND);
+		mFbo.bind();
+		bg_OnDrawFrame();
+		mFrameStats.endPass(LBFrameStats.PASS_BACKGROUND);
+
+		// Copy FBO to screen buffer. FBO may be smaller than surface and is
+		// upsampled using linear filtering.
+		mFrameStats.beginPass(LBFrameStats.PASS_COMPOSITE);
+		mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		mGL.glViewport(0, 0, mWidth, mHeight);
+
+		// Select cheapest shader variants for current state and enable final
+		// copy shader.
+		mShaderVariant = getShaderVariant();
+		mShaderCopy.useProgram(mShaderVariant);
+		int sTextureBg = mShaderCopy.getHandle(COPY_S_TEXTURE_BG);
+		int uTouchPos = mShaderCopy.getHandle(COPY_U_TOUCH_POS);
+		int uNoiseRow = mShaderCopy.getHandle(COPY_U_NOISE_ROW);
+		int uVignette = mShaderCopy.getHandle(COPY_U_VIGNETTE);
+		int sNoise = mShaderCopy.getHandle(COPY_S_NOISE);
+		int sVignette = mShaderCopy.getHandle(COPY_S_VIGNETTE);
+		int aPosition = mShaderCopy.getHandle(COPY_A_POSITION);
+
+		// Set touch coordinates for shader.
+		mGL.glUniform2fv(uTouchPos, 2, mTouchPositions, 0);
+		mGL.glUniform1f(uNoiseRow, getNoiseRow());
+		mGL.glUniform2fv(uVignette, 1, mLookupVignette, 0);
+		// Enable vertex coordinate array.
+		mScreenBuffer.bind();
+		mGL.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0, 0);
+		mGL.glEnableVertexAttribArray(aPosition);
+
+		// Set up background and lookup textures.
+		mGL.glActiveTexture(GLES20.GL_TEXTURE0);
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mFbo.getTexture(0));
+		mGL.glUniform1i(sTextureBg, 0);
+		mGL.glActiveTexture(GLES20.GL_TEXTURE1);
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[0]);
+		mGL.glUniform1i(sNoise, 1);
+		mGL.glActiveTexture(GLES20.GL_TEXTURE2);
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[1]);
+		mGL.glUniform1i(sVignette, 2);
+
+		// Render background to screen buffer.
+		mGL.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		mFrameStats.endPass(LBFrameStats.PASS_COMPOSITE);
+
+		// Render foreground boxes on top of it.
+		mFrameStats.beginPass(LBFrameStats.PASS_FOREGROUND);
+		fg_OnDrawFrame();
+		mFrameStats.endPass(LBFrameStats.PASS_FOREGROUND);
+		mFrameStats.endPass(LBFrameStats.PASS_FRAME);
+
+		// Let frame rate governor measure achieved frame intervals.
+		if (mFramePacer != null) {
+			mFramePacer.onFrameRendered();
+		}
+	}
+
+	/**
+	 * Renders foreground boxes directly onto screen buffer, on top of
+	 * composited background. Boxes are drawn with the same touch displacement,
+	 * grain and border shading copy shader applies to background.
+	 */
+	public void fg_OnDrawFrame() {
+		// Calculate final up vector value for rendering. Rotate angle from
+		// right to up.
+		double angle = mAnimation.getRotationAngle() - Math.PI / 2;
 		// Up direction for x and y.
 		float upX = (float) Math.cos(angle) * mAspectRatio[0];
 		float upY = (float) Math.sin(angle) * mAspectRatio[1];
 
+		// Store interpolated boxes into batch vertex array. Corner coordinates
+		// at vertex offsets 0 and 1 are static.
+		int batchLength = mAnimation.getBoxes().writeInterpolated(
+				mAnimation.getTimeT(), fg_BatchArray, 2, FG_VERTEX_SIZE,
+				FG_VERTEX_COUNT);
+		fg_BatchBuffer.position(0);
+		fg_BatchBuffer.put(fg_BatchArray, 0, batchLength);
+		fg_BatchBuffer.position(0);
+		fg_BatchVbo.update(fg_BatchBuffer, batchLength * 4);
+
 		// Initialize foreground shader for use.
-		fg_Shader.useProgram();
-		int uAspectRatio = fg_Shader.getHandle("uAspectRatio");
-		int uCenterPos = fg_Shader.getHandle("uCenterPos");
-		int uVectorUp = fg_Shader.getHandle("uVectorUp");
-		int uScale = fg_Shader.getHandle("uScale");
-		int uColor = fg_Shader.getHandle("uColor");
-		int aPosition = fg_Shader.getHandle("aPosition");
-
-		GLES20.glUniform2fv(uAspectRatio, 1, mAspectRatio, 0);
-		GLES20.glUniform2f(uVectorUp, upX, upY);
-		// Initiate vertex buffer.
-		GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0,
-				mScreenVertices);
-		GLES20.glEnableVertexAttribArray(aPosition);
-
-		// Iterate over boxes.
-		for (StructBoxData box : fg_Boxes) {
-			// If we are within new time span.
-			if (newTime) {
-				// Copy target values into source ones.
-				box.mPosSource[0] = box.mPosTarget[0];
-				box.mPosSource[1] = box.mPosTarget[1];
-				box.mScaleSource = box.mScaleTarget;
-				box.mColorSource[0] = box.mColorTarget[0];
-				box.mColorSource[1] = box.mColorTarget[1];
-				box.mColorSource[2] = box.mColorTarget[2];
-
-				// Given some probability generate current box new target
-				// values. Otherwise it is being paused.
-				if (Math.random() > 0.4) {
-					fg_GenRandBox(box);
-				}
-			}
+		fg_Shader.useProgram(mShaderVariant);
+		int uAspectRatio = fg_Shader.getHandle(FG_U_ASPECT_RATIO);
+		int uVectorUp = fg_Shader.getHandle(FG_U_VECTOR_UP);
+		int uDisplacement = fg_Shader.getHandle(FG_U_DISPLACEMENT);
+		int uTouchPos = fg_Shader.getHandle(FG_U_TOUCH_POS);
+		int uNoiseRow = fg_Shader.getHandle(FG_U_NOISE_ROW);
+		int uVignette = fg_Shader.getHandle(FG_U_VIGNETTE);
+		int sNoise = fg_Shader.getHandle(FG_S_NOISE);
+		int sVignette = fg_Shader.getHandle(FG_S_VIGNETTE);
+		int aPosition = fg_Shader.getHandle(FG_A_POSITION);
+		int aCenterPos = fg_Shader.getHandle(FG_A_CENTER_POS);
+		int aScale = fg_Shader.getHandle(FG_A_SCALE);
+		int aColor = fg_Shader.getHandle(FG_A_COLOR);
+
+		mGL.glUniform2fv(uAspectRatio, 1, mAspectRatio, 0);
+		mGL.glUniform2f(uVectorUp, upX, upY);
+		mGL.glUniform2fv(uTouchPos, 2, mTouchPositions, 0);
+		// Lookup textures are bound already by copy shader pass.
+		mGL.glUniform1f(uNoiseRow, getNoiseRow());
+		mGL.glUniform2fv(uVignette, 1, mLookupVignette, 0);
+		mGL.glUniform1i(sNoise, 1);
+		mGL.glUniform1i(sVignette, 2);
+		// Maximum displacement in normalized device coordinates.
+		float dx = mTouchPositions[0] - mTouchPositions[2];
+		float dy = mTouchPositions[1] - mTouchPositions[3];
+		mGL.glUniform1f(uDisplacement,
+				(float) Math.sqrt(dx * dx + dy * dy) * 2);
+
+		// Initiate interleaved vertex attributes, batch buffer object is
+		// still bound after update.
+		final int stride = FG_VERTEX_SIZE * 4;
+		mGL.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false,
+				stride, 0);
+		mGL.glEnableVertexAttribArray(aPosition);
+		mGL.glVertexAttribPointer(aCenterPos, 2, GLES20.GL_FLOAT, false,
+				stride, 2 * 4);
+		mGL.glEnableVertexAttribArray(aCenterPos);
+		mGL.glVertexAttribPointer(aScale, 1, GLES20.GL_FLOAT, false,
+				stride, 4 * 4);
+		mGL.glEnableVertexAttribArray(aScale);
+		mGL.glVertexAttribPointer(aColor, 3, GLES20.GL_FLOAT, false,
+				stride, 5 * 4);
+		mGL.glEnableVertexAttribArray(aColor);
+
+		// Render all boxes with one draw call.
+		mGL.glDrawArrays(GLES20.GL_TRIANGLES, 0, batchLength
+				/ FG_VERTEX_SIZE);
+
+		// Disable batch attributes, other shaders use aPosition only.
+		mGL.glDisableVertexAttribArray(aCenterPos);
+		mGL.glDisableVertexAttribArray(aScale);
+		mGL.glDisableVertexAttribArray(aColor);
+	}
 
-			// Interpolate scale value.
-			float scale = box.mScaleSource
-					+ (box.mScaleTarget - box.mScaleSource) * timeT;
-			// Interpolate position values.
-			float x = box.mPosSource[0]
-					+ (box.mPosTarget[0] - box.mPosSource[0]) * timeT;
-			float y = box.mPosSource[1]
-					+ (box.mPosTarget[1] - box.mPosSource[1]) * timeT;
-			// Interpolate color values.
-			float r = box.mColorSource[0]
-					+ (box.mColorTarget[0] - box.mColorSource[0]) * timeT;
-			float g = box.mColorSource[1]
-					+ (box.mColorTarget[1] - box.mColorSource[1]) * timeT;
-			float b = box.mColorSource[2]
-					+ (box.mColorTarget[2] - box.mColorSource[2]) * timeT;
-
-			// Store uniform values.
-			GLES20.glUniform1f(uScale, scale);
-			GLES20.glUniform2f(uCenterPos, x, y);
-			GLES20.glUniform3f(uColor, r, g, b);
-
-			// Render current box.
-			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-		}
+	/**
+	 * Getter for offscreen background FBO. Meant for reading allocation sizes
+	 * for statistics only, FBO is owned by render thread.
+	 * 
+	 * @return Offscreen background FBO.
+	 */
+	public LBFbo getFbo() {
+		return mFbo;
 	}
 
-	@Override
-	public synchronized void onDrawFrame(GL10 unused) {
-		// If shader compiler is not supported, clear screen buffer only.
-		if (mShaderCompilerSupported[0] == false) {
-			GLES20.glClearColor(0, 0, 0, 1);
-			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-			return;
-		}
+	/**
+	 * Getter for per pass frame timing. Pass timings measure CPU time spent
+	 * issuing GL calls, and GPU execution time where timer queries are
+	 * supported.
+	 * 
+	 * @return Frame timing statistics.
+	 */
+	public LBFrameStats getFrameStats() {
+		return mFrameStats;
+	}
 
-		long currentTime = SystemClock.uptimeMillis();
-		boolean newTime = false;
+	/**
+	 * Getter for number of GL calls issued during last frame of this
+	 * renderer.
+	 * 
+	 * @return Number of calls passed to GL.
+	 */
+	public synchronized int getGLIssuedCount() {
+		return mGLIssued;
+	}
 
-		// If we're following touch events stop animation timer.
-		if (mTouchFollow && mTimeLast >= 0) {
-			mTimeTickStart += currentTime - mTimeLast;
-		} else if (mTimeLast >= 0) {
-			// Adjust "current touch position" towards start touch position in
-			// order to hide displacement effect. Which ends once they are
-			// equal. We use interpolation for smoother transition no matter
-			// what the rendering frame rate is.
-			float t = Math.max(0f, 1f - (currentTime - mTimeLast) * .005f);
-			mTouchPositions[2] = mTouchPositions[0]
-					+ (mTouchPositions[2] - mTouchPositions[0]) * t;
-			mTouchPositions[3] = mTouchPositions[1]
-					+ (mTouchPositions[3] - mTouchPositions[1]) * t;
-		}
+	/**
+	 * Getter for number of redundant GL calls skipped during last frame of
+	 * this renderer.
+	 * 
+	 * @return Number of calls skipped by GL state cache.
+	 */
+	public synchronized int getGLSkippedCount() {
+		return mGLSkipped;
+	}
 
-		// Store current time.
-		mTimeLast = currentTime;
+	/**
+	 * Getter for GL state cache. Cache is shared with every renderer using
+	 * same LBRenderContext.
+	 * 
+	 * @return GL state cache used by this renderer.
+	 */
+	public LBGLState getGLState() {
+		return mGL;
+	}
 
-		// If we're out of tick timer bounds.
-		if (currentTime - mTimeTickStart > ANIMATION_TICK_TIME
-				|| mTimeTickStart < 0) {
-			mTimeTickStart = currentTime;
-			newTime = true;
-		}
+	/**
+	 * Getter for grain lookup texture row coordinate for current seed.
+	 */
+	private float getNoiseRow() {
+		return (mRandomSeed - LBLookup.NOISE_SEED_FIRST + 0.5f)
+				/ LBLookup.NOISE_SEED_COUNT;
+	}
 
-		// Calculate time interpolator, a value between [0, 1].
-		float timeT = (currentTime - mTimeTickStart)
-				/ (float) ANIMATION_TICK_TIME;
-		// We need only smooth Hermite interpolator.
-		timeT = timeT * timeT * (3 - 2 * timeT);
+	/**
+	 * Getter for quality tier controller.
+	 * 
+	 * @return Quality governor of this renderer.
+	 */
+	public LBQualityGovernor getQualityGovernor() {
+		return mQuality;
+	}
 
-		// Disable unneeded rendering flags.
-		GLES20.glDisable(GLES20.GL_CULL_FACE);
-		GLES20.glDisable(GLES20.GL_BLEND);
-		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+	/**
+	 * Getter for offscreen render scale with quality tier applied.
+	 */
+	private float getRenderScale() {
+		return mRenderScale * mQuality.getRenderScale();
+	}
 
-		/**
-		 * Render scene to offscreen FBOs.
-		 */
+	/**
+	 * Selects copy and foreground shader variant for current state. Touch
+	 * displacement is left out once it has faded away, which is the case for
+	 * most of the frames.
+	 * 
+	 * @return Shader variant key.
+	 */
+	private int getShaderVariant() {
+		int variant = 0;
+		if (mTouchPositions[0] != mTouchPositions[2]
+				|| mTouchPositions[1] != mTouchPositions[3]) {
+			variant |= LBRenderContext.VARIANT_DISPLACEMENT;
+		}
+		if (mGrain && mQuality.isGrainEnabled()) {
+			variant |= LBRenderContext.VARIANT_GRAIN;
+		}
+		if (mVignette && mQuality.isVignetteEnabled()) {
+			variant |= LBRenderContext.VARIANT_VIGNETTE;
+		}
+		if (Math.max(mWidth, mHeight) > PRECISION_HIGH_SIZE) {
+			variant |= LBRenderContext.VARIANT_PRECISION_HIGH;
+		}
+		return variant;
+	}
+
+	/**
+	 * Initializes offscreen background FBO texture sized to surface size
+	 * multiplied with render scale. Background is grey only and 16 bit
+	 * RGB565 halves bandwidth of both background and copy passes, LBFbo falls
+	 * back to RGBA8 where it can't be rendered into.
+	 */
+	private void initFbo() {
+		int width = Math.max(1, Math.round(mWidth * getRenderScale()));
+		int height = Math.max(1, Math.round(mHeight * getRenderScale()));
+		mFbo.init(width, height, new int[] { LBFbo.FORMAT_RGB565 });
+		mFboDirty = false;
+
+		// Bind background texture and clear it. This is the only time we do
+		// this, later on it'll be only overdrawn with background renderer.
 		mFbo.bind();
-		// Render background.
 		mFbo.bindTexture(0);
-		bg_OnDrawFrame(timeT, newTime);
-		// Render foreground.
-		mFbo.bindTexture(1);
-		// Clear foreground fbo texture only.
-		GLES20.glClearColor(0, 0, 0, 0);
-		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-		fg_OnDrawFrame(timeT, newTime);
-
-		// Copy FBOs to screen buffer.
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
-		// Enable final copy shader.
-		mShaderCopy.useProgram();
-		int sTextureBg = mShaderCopy.getHandle("sTextureBg");
-		int sTextureFg = mShaderCopy.getHandle("sTextureFg");
-		int uTouchPos = mShaderCopy.getHandle("uTouchPos");
-		int uRandom = mShaderCopy.getHandle("uRandom");
-		int aPosition = mShaderCopy.getHandle("aPosition");
+		mGL.glClearColor(0, 0, 0, 1);
+		mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+	}
 
-		// Set touch coordinates for shader.
-		GLES20.glUniform2fv(uTouchPos, 2, mTouchPositions, 0);
-		// Pass seed for GLSL pseudo random number generator.
-		if (!mTouchFollow) {
-			mRandomSeed = ((currentTime / 80) % 10) + 40f;
+	/**
+	 * Generates grain and vignette lookup textures for current surface size.
+	 * Grain texture has one row of values per random seed indexed by texture
+	 * y coordinate and vignette texture is indexed by distance from center.
+	 */
+	private void initLookupTextures() {
+		mGL.glDeleteTextures(2, mLookupTextures, 0);
+		mGL.glGenTextures(2, mLookupTextures, 0);
+
+		int maxSize[] = new int[1];
+		mGL.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+		int noiseWidth = Math.min(mHeight, maxSize[0]);
+		int vignetteWidth = Math.min(
+				LBLookup.getVignetteWidth(mWidth, mHeight), maxSize[0]);
+		byte noise[] = new byte[noiseWidth * LBLookup.NOISE_SEED_COUNT];
+		byte vignette[] = new byte[vignetteWidth];
+		LBLookup.genNoise(noise, noiseWidth);
+		LBLookup.genVignette(vignette, vignetteWidth);
+
+		// Vignette texture coordinate for border position 'shade' is
+		// (1 + shade * (width - 1)) / width, first texel being inside border.
+		mLookupVignette[0] = (vignetteWidth - 1) / (float) vignetteWidth;
+		mLookupVignette[1] = 1f / vignetteWidth;
+
+		mGL.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+		mGL.glActiveTexture(GLES20.GL_TEXTURE0);
+		for (int i = 0; i < 2; ++i) {
+			mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[i]);
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+			mGL.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
 		}
-		GLES20.glUniform1f(uRandom, mRandomSeed);
-		// Enable vertex coordinate array.
-		GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0,
-				mScreenVertices);
-		GLES20.glEnableVertexAttribArray(aPosition);
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[0]);
+		mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
+				noiseWidth, LBLookup.NOISE_SEED_COUNT, 0,
+				GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE,
+				ByteBuffer.wrap(noise));
+		mGL.glBindTexture(GLES20.GL_TEXTURE_2D, mLookupTextures[1]);
+		mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
+				vignetteWidth, 1, 0, GLES20.GL_LUMINANCE,
+				GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(vignette));
+	}
 
-		// Set up fore- and background textures.
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFbo.getTexture(0));
-		GLES20.glUniform1i(sTextureBg, 0);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFbo.getTexture(1));
-		GLES20.glUniform1i(sTextureFg, 1);
+	/**
+	 * Renders frame onto current EGL surface.
+	 * 
+	 * @param time
+	 *            Time frame is presented at in nanos, animation is advanced
+	 *            to frame time clock gives for it.
+	 */
+	public synchronized void onDrawFrame(long time) {
+		// State cache is shared with other renderers, count calls of this
+		// frame only.
+		mGL.beginFrame();
+		drawFrame(time);
+		mGLIssued = mGL.getIssuedCount();
+		mGLSkipped = mGL.getSkippedCount();
+	}
+
+	/**
+	 * Renders frame in software onto given canvas. Used instead of OpenGL
+	 * rendering if shader compiler is not supported, canvas size is used as
+	 * surface size.
+	 * 
+	 * @param canvas
+	 *            Canvas to render onto.
+	 * @param time
+	 *            Time frame is presented at in nanos, animation is advanced
+	 *            to frame time clock gives for it.
+	 */
+	public synchronized void onDrawFrame(Canvas canvas, long time) {
+		int width = canvas.getWidth(), height = canvas.getHeight();
+		if (width != mWidth || height != mHeight) {
+			mWidth = width;
+			mHeight = height;
+			mAspectRatio[0] = Math.max(mWidth, mHeight) / (float) mWidth;
+			mAspectRatio[1] = Math.max(mWidth, mHeight) / (float) mHeight;
+		}
+		mFrameStats.beginPass(LBFrameStats.PASS_FRAME);
+		if (mCpuRenderer == null) {
+			mCpuRenderer = new LBCpuRenderer();
+		}
+		// Render at render scale and let canvas upsample.
+		int cpuWidth = Math.max(1, Math.round(mWidth * getRenderScale()));
+		int cpuHeight = Math.max(1, Math.round(mHeight * getRenderScale()));
+		mCpuRenderer.setSize(cpuWidth, cpuHeight);
+		mCpuRenderer.setGrain(mGrain && mQuality.isGrainEnabled());
+		mCpuRenderer.setVignette(mVignette && mQuality.isVignetteEnabled());
+
+		// Advance animation and touch displacement.
+		updateFrame(time);
+		mCpuRenderer.render(mAnimation, mTouchPositions, (int) mRandomSeed
+				- LBLookup.NOISE_SEED_FIRST);
+
+		canvas.save();
+		canvas.scale(mWidth / (float) cpuWidth, mHeight / (float) cpuHeight);
+		canvas.drawBitmap(mCpuRenderer.getPixels(), 0, cpuWidth, 0, 0,
+				cpuWidth, cpuHeight, false, null);
+		canvas.restore();
+		mFrameStats.endPass(LBFrameStats.PASS_FRAME);
+
+		// Let frame rate governor measure achieved frame intervals.
+		if (mFramePacer != null) {
+			mFramePacer.onFrameRendered();
+		}
+	}
 
-		// Render scene to screen buffer.
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+	/**
+	 * Should be called once frame has been rendered and presented. Feeds
+	 * quality governor, lower quality tier is applied on next frame.
+	 * 
+	 * @param frameTime
+	 *            Time spent rendering and presenting frame in nanos.
+	 * @param frameBudget
+	 *            Time available per frame in nanos.
+	 */
+	public synchronized void onFrameRendered(long frameTime, long frameBudget) {
+		float renderScale = getRenderScale();
+		// Governor follows clock time, not system time.
+		if (mQuality.onFrame(Math.max(0, mTimeLast) / 1000000, frameTime,
+				frameBudget)) {
+			onQualityChanged(renderScale);
+		}
 	}
 
-	@Override
-	public void onSurfaceChanged(GL10 unused, int width, int height) {
+	/**
+	 * Applies tier change of quality governor.
+	 * 
+	 * @param renderScale
+	 *            Render scale before tier was changed.
+	 */
+	private void onQualityChanged(float renderScale) {
+		// FBOs are reinitialized on next frame if their size changes.
+		if (renderScale != getRenderScale()) {
+			mFboDirty = mWidth > 0 && mHeight > 0;
+		}
+		updateBoxCount();
+	}
+
+	/**
+	 * Releases per surface GL objects, FBOs, batch vertex buffer object and
+	 * lookup textures. Should be called with context current once this
+	 * renderer is not used anymore. Shared objects are left intact.
+	 */
+	public void onRelease() {
+		mFbo.reset();
+		fg_BatchVbo.reset();
+		mGL.glDeleteTextures(2, mLookupTextures, 0);
+		mLookupTextures[0] = mLookupTextures[1] = -1;
+		mFrameStats.releaseGpuTiming();
+	}
+
+	/**
+	 * Should be called once surface size changes, and once after
+	 * onSurfaceCreated(), with context current.
+	 * 
+	 * @param width
+	 *            Surface width.
+	 * @param height
+	 *            Surface height.
+	 */
+	public void onSurfaceChanged(int width, int height) {
 		// Store width and height for later use.
 		mWidth = width;
 		mHeight = height;
 		// Set viewport size.
-		GLES20.glViewport(0, 0, mWidth, mHeight);
+		mGL.glViewport(0, 0, mWidth, mHeight);
 		// If shader compiler is not supported set viewport size only.
-		if (mShaderCompilerSupported[0] == false) {
+		if (!mRenderContext.isShaderCompilerSupported()) {
 			return;
 		}
 
@@ -551,103 +821,311 @@ public final class LBRenderer implements GLSurfaceView.Renderer {
 		mAspectRatio[0] = Math.max(mWidth, mHeight) / (float) mWidth;
 		mAspectRatio[1] = Math.max(mWidth, mHeight) / (float) mHeight;
 
-		// Initialize two fbo screen sized textures.
-		mFbo.init(mWidth, mHeight, 2);
+		// Initialize fbo textures.
+		initFbo();
+		// Initialize grain and vignette lookup textures.
+		initLookupTextures();
+	}
 
-		// Bind background texture and clear it. This is the only time we do
-		// this, later on it'll be only overdrawn with background renderer.
-		mFbo.bind();
-		mFbo.bindTexture(0);
-		GLES20.glClearColor(0, 0, 0, 1);
-		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-	}
-
-	@Override
-	public void onSurfaceCreated(GL10 unused, EGLConfig config) {
-		// Check if shader compiler is supported.
-		GLES20.glGetBooleanv(GLES20.GL_SHADER_COMPILER,
-				mShaderCompilerSupported, 0);
-
-		// If not, show user an error message and return immediately.
-		if (mShaderCompilerSupported[0] == false) {
-			Handler handler = new Handler(mContext.getMainLooper());
-			handler.post(new Runnable() {
-				@Override
-				public void run() {
-					Toast.makeText(mContext, R.string.error_shader_compiler,
-							Toast.LENGTH_LONG).show();
-				}
-			});
-			return;
+	/**
+	 * Should be called once surface has been created for this renderer and
+	 * once shared context has been recreated, with context current.
+	 */
+	public void onSurfaceCreated() {
+		// Shared objects are initialized once per context.
+		mRenderContext.init();
+		// Per surface objects of previous context, if any, went away with it.
+		// Their handles may be in use by other renderers already.
+		mFbo = new LBFbo(mGL);
+		fg_BatchVbo.invalidate();
+		mProgramsReady = false;
+		mLookupTextures[0] = mLookupTextures[1] = -1;
+
+		// If shader compiler is not supported, switch to software rendering.
+		if (!mRenderContext.isShaderCompilerSupported()) {
+			postCpuFallback();
+		} else {
+			mFrameStats.initGpuTiming(mGL,
+					mRenderContext.getClientVersion());
 		}
-
-		// Initiate copy shader.
-		mShaderCopy.setProgram(mContext.getString(R.string.shader_copy_vs),
-				mContext.getString(R.string.shader_copy_fs));
-
-		// Initialize background shader.
-		bg_Shader.setProgram(mContext.getString(R.string.shader_background_vs),
-				mContext.getString(R.string.shader_background_fs));
-		// Initialize foreground shader.
-		fg_Shader.setProgram(mContext.getString(R.string.shader_foreground_vs),
-				mContext.getString(R.string.shader_foreground_fs));
 	}
 
 	/**
-	 * Touch event callback method.
+	 * Touch event callback method. Only queues touch samples, batched
+	 * historical ones included, which are consumed by render thread on next
+	 * frame. Can be called from main thread without locking.
 	 * 
 	 * @param me
 	 *            Current motion/touch event.
 	 */
 	public void onTouchEvent(MotionEvent me) {
-		switch (me.getAction()) {
-		// On touch down set following flag and initialize touch position start
-		// and current values.
-		case MotionEvent.ACTION_DOWN:
-			mTouchFollow = true;
-			mTouchPositions[0] = mTouchPositions[2] = me.getX() / mWidth;
-			mTouchPositions[1] = mTouchPositions[3] = 1f - (me.getY() / mHeight);
-			break;
-		// On touch move update current position only.
-		case MotionEvent.ACTION_MOVE:
-			mTouchPositions[2] = me.getX() / mWidth;
-			mTouchPositions[3] = 1f - (me.getY() / mHeight);
-			break;
-		// On touch up mark touch follow flag as false.
-		case MotionEvent.ACTION_UP:
-			mTouchFollow = false;
-			break;
+		mTouchQueue.add(me);
+	}
+
+	/**
+	 * Switches to software rendering once OpenGL rendering turns out not to
+	 * be possible, e.g. shader compiler is not supported or context can't be
+	 * created. CPU fallback callback is posted to main thread, or if it's not
+	 * available user is shown an error message. Does nothing if renderer was
+	 * created without context.
+	 */
+	public void postCpuFallback() {
+		if (mContext == null) {
+			return;
+		}
+		Handler handler = new Handler(mContext.getMainLooper());
+		if (mCpuFallback != null) {
+			handler.post(mCpuFallback);
+			return;
+		}
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(mContext, R.string.error_shader_compiler,
+						Toast.LENGTH_LONG).show();
+			}
+		});
+	}
+
+	/**
+	 * Makes sure programs current frame needs get built, touch displacement
+	 * variants included so that they are ready once touch events arrive.
+	 * 
+	 * @return True if programs for current frame are ready for use.
+	 */
+	private boolean preparePrograms() {
+		int variant = getShaderVariant()
+				& ~LBRenderContext.VARIANT_DISPLACEMENT;
+		boolean ready = bg_Shader.prepareVariant(0);
+		ready &= mShaderCopy.prepareVariant(variant);
+		ready &= fg_Shader.prepareVariant(variant);
+		variant |= LBRenderContext.VARIANT_DISPLACEMENT;
+		mShaderCopy.prepareVariant(variant);
+		fg_Shader.prepareVariant(variant);
+		return ready;
+	}
+
+	/**
+	 * Sets number of foreground boxes. Lower quality tiers render only a part
+	 * of them.
+	 * 
+	 * @param count
+	 *            Number of boxes.
+	 */
+	public synchronized void setBoxCount(int count) {
+		mBoxCount = count;
+		updateBoxCount();
+	}
+
+	/**
+	 * Sets time source for frames and touch samples, e.g. LBClockVirtual for
+	 * running animation headless or LBClockReplay for replaying recorded
+	 * frames. Should be set before first frame is rendered. Keyframes are
+	 * generated ahead in the background only for clocks following system
+	 * time, virtual and replayed frames are rendered back to back. Quality
+	 * governor is frozen to highest tier for any clock but LBClockSystem, so
+	 * that measured frame times don't change what is rendered and recorded
+	 * frames replay exactly.
+	 * 
+	 * @param clock
+	 *            Clock to use.
+	 */
+	public synchronized void setClock(LBClock clock) {
+		mClock = clock;
+		mAnimation.setPrefetch(!(clock instanceof LBClockVirtual)
+				&& !(clock instanceof LBClockReplay));
+		float renderScale = getRenderScale();
+		if (mQuality.setFrozen(!(clock instanceof LBClockSystem))) {
+			onQualityChanged(renderScale);
+		}
+	}
+
+	/**
+	 * Sets callback which is run on main thread if OpenGL rendering turns out
+	 * not to be possible. Callback is expected to release OpenGL surface and
+	 * continue rendering with onDrawFrame(Canvas, long).
+	 * 
+	 * @param cpuFallback
+	 *            Callback or null for showing an error message instead.
+	 */
+	public void setCpuFallback(Runnable cpuFallback) {
+		mCpuFallback = cpuFallback;
+	}
+
+	/**
+	 * Sets frame rate governor which is notified once a frame is rendered.
+	 * 
+	 * @param framePacer
+	 *            Frame rate governor or null.
+	 */
+	public void setFramePacer(LBFramePacer framePacer) {
+		mFramePacer = framePacer;
+	}
+
+	/**
+	 * Enables or disables grain on background and foreground boxes.
+	 * 
+	 * @param grain
+	 *            If true, grain is rendered.
+	 */
+	public void setGrain(boolean grain) {
+		mGrain = grain;
+	}
+
+	/**
+	 * Sets offscreen render scale. Background is rendered into FBO sized to
+	 * surface size multiplied with this value and upsampled into surface on
+	 * final composite pass. Touch coordinates,
+	 * border and vignette are calculated at surface resolution.
+	 * 
+	 * @param renderScale
+	 *            Render scale, e.g. 1f, 0.75f or 0.5f.
+	 */
+	public synchronized void setRenderScale(float renderScale) {
+		if (renderScale != mRenderScale) {
+			mRenderScale = renderScale;
+			// FBOs are reinitialized on next frame if they exist already.
+			mFboDirty = mWidth > 0 && mHeight > 0;
+		}
+	}
+
+	/**
+	 * Enables or disables rounded corner border vignette.
+	 * 
+	 * @param vignette
+	 *            If true, border vignette is rendered.
+	 */
+	public void setVignette(boolean vignette) {
+		mVignette = vignette;
+	}
+
+	/**
+	 * Applies quality tier to requested box count. Batch vertex array is
+	 * reallocated if it is too small to hold all boxes.
+	 */
+	private void updateBoxCount() {
+		int count = Math.max(1, Math.round(mBoxCount * mQuality.getBoxScale()));
+		mAnimation.setBoxCount(count);
+
+		// Allocate batch vertex array and store box corner coordinates into
+		// it. Corners are static and only box values are updated per frame.
+		int length = count * FG_VERTEX_COUNT * FG_VERTEX_SIZE;
+		if (length > fg_BatchArray.length) {
+			final float[] BOX_CORNERS = { -1, 1, -1, -1, 1, 1, 1, 1, -1, -1,
+					1, -1 };
+			fg_BatchArray = new float[length];
+			for (int i = 0; i < length; i += FG_VERTEX_SIZE) {
+				int corner = (i / FG_VERTEX_SIZE) % FG_VERTEX_COUNT;
+				fg_BatchArray[i + 0] = BOX_CORNERS[corner * 2 + 0];
+				fg_BatchArray[i + 1] = BOX_CORNERS[corner * 2 + 1];
+			}
+			fg_BatchBuffer = ByteBuffer.allocateDirect(length * 4)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
 		}
 	}
 
 	/**
-	 * Struct for storing box related data.
+	 * Advances animation, fades away touch displacement and selects grain
+	 * seed for current frame.
+	 * 
+	 * @param time
+	 *            System time frame is presented at in nanos.
 	 */
-	private final class StructBoxData {
-		// Box source color RGB values.
-		public final float mColorSource[] = new float[3];
-		// Box target color RGB values.
-		public final float mColorTarget[] = new float[3];
-		// Box source position values.
-		public final float mPosSource[] = new float[2];
-		// Box target position values.
-		public final float mPosTarget[] = new float[2];
-		// Box scale source and target values.
-		public float mScaleSource, mScaleTarget;
+	private void updateFrame(long time) {
+		// Take frame time and touch samples for it from clock.
+		long currentTime = mClock.nextFrame(time, mTouchQueue,
+				mTouchFrameQueue);
+
+		// Consume touch samples queued since previous frame.
+		updateTouch(currentTime);
+
+		// Advance animation, timer is stopped while following touch events.
+		mAnimation.update(currentTime, mTouchFollow);
+
+		if (!mTouchFollow && mTimeLast >= 0) {
+			// Adjust "current touch position" towards start touch position in
+			// order to hide displacement effect. Which ends once they are
+			// equal. We use interpolation for smoother transition no matter
+			// what the rendering frame rate is.
+			float t = Math.max(0f, 1f - (currentTime - mTimeLast) * 5e-9f);
+			mTouchPositions[2] = mTouchPositions[0]
+					+ (mTouchPositions[2] - mTouchPositions[0]) * t;
+			mTouchPositions[3] = mTouchPositions[1]
+					+ (mTouchPositions[3] - mTouchPositions[1]) * t;
+			// Snap to start position once displacement is below half a
+			// pixel so that shader variants without displacement are used.
+			float dx = (mTouchPositions[2] - mTouchPositions[0]) * mWidth;
+			float dy = (mTouchPositions[3] - mTouchPositions[1]) * mHeight;
+			if (Math.abs(dx) < 0.5f && Math.abs(dy) < 0.5f) {
+				mTouchPositions[2] = mTouchPositions[0];
+				mTouchPositions[3] = mTouchPositions[1];
+			}
+		}
+
+		// Store current time.
+		mTimeLast = currentTime;
+
+		// Select grain lookup row, seed changes unless touch is followed.
+		if (!mTouchFollow) {
+			mRandomSeed = ((currentTime / 80000000) % LBLookup.NOISE_SEED_COUNT)
+					+ LBLookup.NOISE_SEED_FIRST;
+		}
 	}
 
 	/**
-	 * Private fill data structure for storing source position, target position,
-	 * normal and color index. Normal is stored as {x,y} tuple and positions as
-	 * two {x,y} tuples.
+	 * Drains queued touch samples and resamples current touch position to
+	 * given frame time. Latest position is interpolated, or extrapolated for a
+	 * few millis, from last two samples. Should be called from render thread
+	 * only.
+	 * 
+	 * @param time
+	 *            Frame time in nanos.
 	 */
-	private final class StructFillData {
-		// Fill color RGB values.
-		public final float mColor[] = new float[3];
-		// Normal direction.
-		public final float mFillNormal[] = new float[2];
-		// Source and target positions.
-		public final float mFillPositions[] = new float[4];
+	private void updateTouch(long time) {
+		while (!mTouchFrameQueue.isEmpty()) {
+			int action = mTouchFrameQueue.getAction();
+			float x = mTouchFrameQueue.getX() / mWidth;
+			float y = 1f - (mTouchFrameQueue.getY() / mHeight);
+			long sampleTime = mTouchFrameQueue.getTime();
+			mTouchFrameQueue.remove();
+
+			switch (action) {
+			// On touch down set following flag and initialize touch position
+			// start and current values.
+			case MotionEvent.ACTION_DOWN:
+				mTouchFollow = true;
+				mTouchPositions[0] = mTouchPositions[2] = x;
+				mTouchPositions[1] = mTouchPositions[3] = y;
+				mTouchSampleCount = 0;
+				addTouchSample(x, y, sampleTime);
+				break;
+			case MotionEvent.ACTION_MOVE:
+				addTouchSample(x, y, sampleTime);
+				break;
+			// On touch up mark touch follow flag as false.
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				mTouchFollow = false;
+				break;
+			}
+		}
+
+		if (!mTouchFollow || mTouchSampleCount == 0) {
+			return;
+		}
+		float alpha = 1f;
+		long delta = mTouchSampleTimes[1] - mTouchSampleTimes[0];
+		if (mTouchSampleCount == 2 && delta >= RESAMPLE_MIN_DELTA
+				&& delta <= RESAMPLE_MAX_DELTA) {
+			long target = Math.min(time - RESAMPLE_LATENCY,
+					mTouchSampleTimes[1] + RESAMPLE_MAX_PREDICTION);
+			alpha = Math.max(0f, (float) (target - mTouchSampleTimes[0])
+					/ delta);
+		}
+		mTouchPositions[2] = mTouchSamples[0]
+				+ (mTouchSamples[2] - mTouchSamples[0]) * alpha;
+		mTouchPositions[3] = mTouchSamples[1]
+				+ (mTouchSamples[3] - mTouchSamples[1]) * alpha;
 	}
 
 }
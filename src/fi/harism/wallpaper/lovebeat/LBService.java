@@ -16,8 +16,23 @@
 
 package fi.harism.wallpaper.lovebeat;
 
-import android.content.Context;
-import android.opengl.GLSurfaceView;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.service.wallpaper.WallpaperService;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
@@ -27,19 +42,202 @@ import android.view.SurfaceHolder;
  */
 public final class LBService extends WallpaperService {
 
+	// Frame rate when idle. Animation advances slowly and doesn't benefit from
+	// display refresh rates.
+	private static final int FRAME_RATE = 30;
+	// Frame rate during touch interaction.
+	private static final int FRAME_RATE_INTERACTIVE =
+			LBFramePacer.FRAME_RATE_NATIVE;
+	// Name of replay file in app files directory.
+	private static final String REPLAY_FILE = "replay.bin";
+
+	// Active engines, accessed from main and binder threads.
+	private final ArrayList<WallpaperEngine> mEngines =
+			new ArrayList<WallpaperEngine>();
+	// Main thread handler, dump commands restart renderers through it.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Preview loops shared by every preview engine.
+	private LBPreviewCache mPreviewCache;
+	// Render thread and EGL context shared by every engine.
+	private LBRenderThread mRenderThread;
+
+	/**
+	 * Prints frame statistics for every active engine, e.g. 'adb shell
+	 * dumpsys activity service fi.harism.wallpaper.lovebeat'. Frames of
+	 * wallpaper engine can be recorded and replayed exactly by appending a
+	 * command; 'record' restarts renderer with new seed and starts recording
+	 * frame times and touch input, 'save' writes seed, surface size and
+	 * recorded frames into replay file and 'replay' restarts renderer
+	 * replaying them.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+		if (args != null && args.length > 0) {
+			dumpCommand(out, args[0]);
+			return;
+		}
+		synchronized (mEngines) {
+			for (WallpaperEngine engine : mEngines) {
+				engine.dumpStats(out);
+			}
+		}
+	}
+
+	/**
+	 * Helper method for running record, save and replay dump commands on
+	 * first engine which isn't a preview. Called from binder thread.
+	 */
+	private void dumpCommand(PrintWriter out, String command) {
+		WallpaperEngine engine = null;
+		synchronized (mEngines) {
+			for (WallpaperEngine e : mEngines) {
+				if (!e.isPreview()) {
+					engine = e;
+					break;
+				}
+			}
+		}
+		if (engine == null) {
+			out.println("No wallpaper engine");
+			return;
+		}
+
+		File dir = getExternalFilesDir(null);
+		File file = new File(dir != null ? dir : getFilesDir(), REPLAY_FILE);
+		try {
+			if (command.equals("record")) {
+				LBClockRecorder recorder = new LBClockRecorder(
+						new LBClockSystem());
+				engine.postRestart(System.nanoTime(), recorder);
+				out.println("Recording");
+			} else if (command.equals("save")) {
+				LBClockRecorder recorder = engine.mRecorder;
+				if (recorder == null) {
+					out.println("Not recording");
+					return;
+				}
+				byte log[] = recorder.getLog();
+				int frameCount = recorder.getFrameCount();
+				DataOutputStream os = new DataOutputStream(
+						new FileOutputStream(file));
+				try {
+					os.writeLong(engine.mSeed);
+					os.writeInt(engine.mWidth);
+					os.writeInt(engine.mHeight);
+					os.writeInt(log.length);
+					os.write(log);
+				} finally {
+					os.close();
+				}
+				out.println("Saved " + frameCount + " frames to "
+						+ file.getAbsolutePath());
+			} else if (command.equals("replay")) {
+				DataInputStream is = new DataInputStream(new FileInputStream(
+						file));
+				long seed;
+				int width, height;
+				byte log[];
+				try {
+					seed = is.readLong();
+					width = is.readInt();
+					height = is.readInt();
+					log = new byte[is.readInt()];
+					is.readFully(log);
+				} finally {
+					is.close();
+				}
+				if (width != engine.mWidth || height != engine.mHeight) {
+					out.println("Recorded at " + width + "x" + height
+							+ ", frames will differ");
+				}
+				engine.postRestart(seed, new LBClockReplay(log));
+				out.println("Replaying " + file.getAbsolutePath());
+			} else {
+				out.println("Unknown command " + command
+						+ ", expected record, save or replay");
+			}
+		} catch (IOException ex) {
+			out.println("Replay file " + file.getAbsolutePath() + ": "
+					+ ex.getMessage());
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mRenderThread = new LBRenderThread(this, new LBRenderContext(this));
+		mRenderThread.start();
+		mPreviewCache = new LBPreviewCache();
+		mPreviewCache.start();
+	}
+
 	@Override
 	public Engine onCreateEngine() {
 		return new WallpaperEngine();
 	}
 
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		mRenderThread.quit();
+		mRenderThread = null;
+		mPreviewCache.quit();
+		mPreviewCache = null;
+	}
+
 	/**
 	 * Private wallpaper engine implementation.
 	 */
 	private final class WallpaperEngine extends Engine {
 
-		// Slightly modified GLSurfaceView.
-		private WallpaperGLSurfaceView mGLSurfaceView;
+		// Software rendering thread, used if shader compiler is not
+		// supported.
+		private CpuRenderThread mCpuRenderThread;
+		// Frame rate governor.
+		private LBFramePacer mFramePacer;
+		// Clock recording frames of renderer, null if not recording.
+		private volatile LBClockRecorder mRecorder;
 		private LBRenderer mRenderer;
+		// Animation seed of renderer.
+		private volatile long mSeed;
+		// Flag for surface being created.
+		private boolean mSurfaceCreated;
+		// Render thread target of this engine, null once software rendering
+		// is used.
+		private LBRenderThread.Target mTarget;
+		// Surface size.
+		private volatile int mWidth, mHeight;
+
+		/**
+		 * Prints frame statistics for this engine.
+		 * 
+		 * @param out
+		 *            Writer to print to.
+		 */
+		public void dumpStats(PrintWriter out) {
+			CpuRenderThread cpuRenderThread = mCpuRenderThread;
+			out.println("Engine"
+					+ (isPreview() ? " (preview)" : "")
+					+ (cpuRenderThread == null ? ""
+							: cpuRenderThread.mLoop != null ? ", loop playback"
+									: ", software rendering"));
+			mRenderer.getFrameStats().dump(out, "  ");
+			out.println("  GL calls last frame: "
+					+ mRenderer.getGLIssuedCount() + " issued, "
+					+ mRenderer.getGLSkippedCount() + " skipped");
+			out.println("  quality tier: "
+					+ mRenderer.getQualityGovernor().getTier() + "/"
+					+ (LBQualityGovernor.TIER_COUNT - 1));
+			out.println("  background FBO:");
+			mRenderer.getFbo().dump(out, "    ");
+			LBFramePacer framePacer = mFramePacer;
+			if (framePacer != null) {
+				long intervals[] = new long[2];
+				framePacer.getFrameIntervals(intervals);
+				out.printf("  frame interval: %.2f ms average, %.2f ms max%n",
+						intervals[0] / 1e6, intervals[1] / 1e6);
+			}
+		}
 
 		@Override
 		public void onCreate(SurfaceHolder surfaceHolder) {
@@ -48,64 +246,292 @@ public final class LBService extends WallpaperService {
 			// android.os.Debug.waitForDebugger();
 
 			super.onCreate(surfaceHolder);
-			mRenderer = new LBRenderer(LBService.this);
-
-			mGLSurfaceView = new WallpaperGLSurfaceView(LBService.this);
-			mGLSurfaceView.setEGLContextClientVersion(2);
-			mGLSurfaceView.setRenderer(mRenderer);
-			mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
-			mGLSurfaceView.onPause();
-
+			startRenderer(System.nanoTime(), new LBClockSystem());
 			setTouchEventsEnabled(true);
+
+			synchronized (mEngines) {
+				mEngines.add(this);
+			}
 		}
 
 		@Override
 		public void onDestroy() {
 			super.onDestroy();
-			mGLSurfaceView.onDestroy();
-			mGLSurfaceView = null;
+			synchronized (mEngines) {
+				mEngines.remove(this);
+			}
+			if (mCpuRenderThread != null) {
+				mCpuRenderThread.quit();
+				mCpuRenderThread = null;
+			} else {
+				mFramePacer.onPause();
+				mFramePacer = null;
+				mRenderThread.removeTarget(mTarget);
+				mTarget = null;
+			}
 			mRenderer = null;
 		}
 
+		@Override
+		public void onSurfaceChanged(SurfaceHolder holder, int format,
+				int width, int height) {
+			super.onSurfaceChanged(holder, format, width, height);
+			mWidth = width;
+			mHeight = height;
+			if (mTarget != null) {
+				mTarget.onSurfaceChanged(width, height);
+			}
+			// Preview engines switch to playing back cached loop once it's
+			// available for this size, rendering with OpenGL until then.
+			if (isPreview()) {
+				mPreviewCache.request(width, height, new Runnable() {
+					@Override
+					public void run() {
+						LBPreviewCache.Loop loop = mRenderer == null ? null
+								: mPreviewCache.get(mWidth, mHeight);
+						if (loop != null) {
+							startCpuRendering(loop);
+						}
+					}
+				});
+			}
+		}
+
+		@Override
+		public void onSurfaceCreated(SurfaceHolder holder) {
+			super.onSurfaceCreated(holder);
+			mSurfaceCreated = true;
+			if (mTarget != null) {
+				mTarget.onSurfaceCreated(holder);
+			}
+		}
+
+		@Override
+		public void onSurfaceDestroyed(SurfaceHolder holder) {
+			super.onSurfaceDestroyed(holder);
+			mSurfaceCreated = false;
+			if (mCpuRenderThread != null) {
+				mCpuRenderThread.setPaused(true);
+			} else if (mTarget != null) {
+				mTarget.onSurfaceDestroyed();
+			}
+		}
+
 		@Override
 		public void onTouchEvent(MotionEvent me) {
 			mRenderer.onTouchEvent(me);
+			if (mFramePacer == null) {
+				return;
+			}
+			switch (me.getAction()) {
+			case MotionEvent.ACTION_DOWN:
+				mFramePacer.setInteractive(true);
+				break;
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				mFramePacer.setInteractive(false);
+				break;
+			}
 		}
 
 		@Override
 		public void onVisibilityChanged(boolean visible) {
 			super.onVisibilityChanged(visible);
-			if (visible) {
-				mGLSurfaceView.onResume();
+			if (mCpuRenderThread != null) {
+				mCpuRenderThread.setPaused(!visible);
+			} else if (visible) {
+				mTarget.setPaused(false);
+				mFramePacer.onResume();
 			} else {
-				mGLSurfaceView.onPause();
+				mFramePacer.onPause();
+				mTarget.setPaused(true);
+			}
+		}
+
+		/**
+		 * Restarts OpenGL rendering with new renderer on main thread. Does
+		 * nothing if engine has been destroyed or uses software rendering by
+		 * then.
+		 * 
+		 * @param seed
+		 *            Animation seed.
+		 * @param clock
+		 *            Clock of new renderer.
+		 */
+		public void postRestart(final long seed, final LBClock clock) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mTarget == null) {
+						return;
+					}
+					mFramePacer.onPause();
+					mRenderer.setFramePacer(null);
+					mRenderThread.removeTarget(mTarget);
+					startRenderer(seed, clock);
+					if (mSurfaceCreated) {
+						mTarget.onSurfaceCreated(getSurfaceHolder());
+						mTarget.onSurfaceChanged(mWidth, mHeight);
+					}
+					if (isVisible()) {
+						mTarget.setPaused(false);
+						mFramePacer.onResume();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Replaces OpenGL rendering with software rendering thread. Target is
+		 * removed from shared render thread first, which releases surface for
+		 * locking canvas. If software rendering is used already, given loop
+		 * replaces previous one.
+		 * 
+		 * @param loop
+		 *            Preview loop to play back, null for rendering frames.
+		 */
+		private void startCpuRendering(LBPreviewCache.Loop loop) {
+			if (mCpuRenderThread != null && loop != null) {
+				mCpuRenderThread.setLoop(loop);
 			}
+			if (mTarget == null) {
+				return;
+			}
+			mFramePacer.onPause();
+			mFramePacer = null;
+			mRenderer.setFramePacer(null);
+			mRenderThread.removeTarget(mTarget);
+			mTarget = null;
+
+			mCpuRenderThread = new CpuRenderThread(loop);
+			mCpuRenderThread.setPaused(!isVisible());
+			mCpuRenderThread.start();
+		}
+
+		/**
+		 * Creates renderer with given seed and clock and attaches it to
+		 * render thread. Target starts paused and without surface.
+		 */
+		private void startRenderer(long seed, LBClock clock) {
+			mRenderer = new LBRenderer(LBService.this,
+					mRenderThread.getRenderContext(), seed);
+			mRenderer.setClock(clock);
+			mSeed = seed;
+			mRecorder = clock instanceof LBClockRecorder
+					? (LBClockRecorder) clock : null;
+			mTarget = mRenderThread.addTarget(mRenderer);
+
+			mFramePacer = new LBFramePacer(mTarget, FRAME_RATE,
+					FRAME_RATE_INTERACTIVE);
+			mRenderer.setFramePacer(mFramePacer);
+			mRenderer.setCpuFallback(new Runnable() {
+				@Override
+				public void run() {
+					startCpuRendering(null);
+				}
+			});
 		}
 
 		/**
-		 * Lazy as I am, I din't bother using GLWallpaperService (found on
-		 * GitHub) project for wrapping OpenGL functionality into my wallpaper
-		 * service. Instead am using GLSurfaceView and trick it into hooking
-		 * into Engine provided SurfaceHolder instead of SurfaceView provided
-		 * one GLSurfaceView extends.
+		 * Software rendering thread. Renders frames at FRAME_RATE onto canvas
+		 * locked from Engine provided SurfaceHolder, or plays back preview
+		 * loop at its frame rate scaled to canvas size.
 		 */
-		private final class WallpaperGLSurfaceView extends GLSurfaceView {
-			public WallpaperGLSurfaceView(Context context) {
-				super(context);
+		private final class CpuRenderThread extends Thread {
+			// Preview loop played back, null if frames are rendered.
+			private volatile LBPreviewCache.Loop mLoop;
+			// Loop frame paint, filtered for upscaling.
+			private final Paint mLoopPaint = new Paint(
+					Paint.FILTER_BITMAP_FLAG);
+			// Loop frame destination rectangle.
+			private final Rect mLoopRect = new Rect();
+			// Flag for rendering being paused.
+			private boolean mPaused = true;
+			// Flag for thread being stopped.
+			private boolean mQuit;
+
+			public CpuRenderThread(LBPreviewCache.Loop loop) {
+				super("LBCpuRenderThread");
+				mLoop = loop;
+			}
+
+			/**
+			 * Stops thread. Returns once current frame, if any, is rendered.
+			 */
+			public synchronized void quit() {
+				mQuit = true;
+				notifyAll();
 			}
 
 			@Override
-			public SurfaceHolder getHolder() {
-				return WallpaperEngine.this.getSurfaceHolder();
+			public void run() {
+				long nextFrameTime = SystemClock.uptimeMillis();
+				while (true) {
+					// Frame is rendered holding the lock so that pausing
+					// waits for it to finish.
+					synchronized (this) {
+						while (mPaused && !mQuit) {
+							try {
+								wait();
+							} catch (InterruptedException ex) {
+								return;
+							}
+						}
+						if (mQuit) {
+							return;
+						}
+						SurfaceHolder holder = getSurfaceHolder();
+						Canvas canvas = holder.lockCanvas();
+						if (canvas != null) {
+							try {
+								LBPreviewCache.Loop loop = mLoop;
+								if (loop != null) {
+									Bitmap frame = loop.getFrame(SystemClock
+											.uptimeMillis());
+									mLoopRect.set(0, 0, canvas.getWidth(),
+											canvas.getHeight());
+									canvas.drawBitmap(frame, null, mLoopRect,
+											mLoopPaint);
+								} else {
+									mRenderer.onDrawFrame(canvas,
+											System.nanoTime());
+								}
+							} finally {
+								holder.unlockCanvasAndPost(canvas);
+							}
+						}
+					}
+
+					// Wait for next frame, starting over if we've fallen
+					// behind.
+					long time = SystemClock.uptimeMillis();
+					long frameTime = mLoop != null ? LBPreviewCache.FRAME_TIME
+							: 1000 / FRAME_RATE;
+					nextFrameTime = Math.max(nextFrameTime + frameTime, time);
+					SystemClock.sleep(nextFrameTime - time);
+				}
+			}
+
+			/**
+			 * Replaces played back preview loop.
+			 * 
+			 * @param loop
+			 *            Preview loop to play back.
+			 */
+			public void setLoop(LBPreviewCache.Loop loop) {
+				mLoop = loop;
 			}
 
 			/**
-			 * Should be called once underlying Engine is destroyed. Calling
-			 * onDetachedFromWindow() will stop rendering thread which is lost
-			 * otherwise.
+			 * Pauses or resumes rendering. Returns once current frame, if any,
+			 * is rendered.
+			 * 
+			 * @param paused
+			 *            If true, rendering is paused.
 			 */
-			public void onDestroy() {
-				super.onDetachedFromWindow();
+			public synchronized void setPaused(boolean paused) {
+				mPaused = paused;
+				notifyAll();
 			}
 		}
 	}
@@ -16,84 +16,354 @@
 
 package fi.harism.wallpaper.lovebeat;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 import android.opengl.GLES20;
-import android.util.Log;
 
 /**
- * Helper class for handling shaders.
+ * Helper class for handling shaders. Attribute and uniform handles are given
+ * as a list of names on construction and resolved into int indexed slots once
+ * program is linked. Optionally shader is built into variants from a single
+ * source by prepending preprocessor defines, selected with a bit mask key.
+ * Handles used only by some variants are marked optional, other variants may
+ * leave them out.
+ * Variants can be built on a background compiler thread sharing objects with
+ * render thread context, and loaded from program binary cache. Other methods
+ * should be called from render thread only.
  */
 public final class LBShader {
 
-	// Shader program handle.
+	// Handle ids for each variant built so far, null if not built. Guarded by
+	// this, render thread takes them into use with isReady().
+	private final int[][] mBuiltHandles;
+	// Program handles for each variant built so far, guarded by this.
+	private final int[] mBuiltPrograms;
+	// Optional program binary cache.
+	private LBProgramCache mCache;
+	// Flags for variants whose background build was cancelled, they are
+	// built on render thread instead. Guarded by this.
+	private final boolean[] mCancelled;
+	// Optional background compiler.
+	private LBShaderCompiler mCompiler;
+	// Preprocessor define names, index within this array is variant key bit.
+	private final String[] mDefineNames;
+	// Incremented once sources are set, guarded by this. Variants built for
+	// previous sources are dropped.
+	private int mGeneration;
+	// GL state all calls go through.
+	private final LBGLState mGL;
+	// Handle names, index within this array is handle slot.
+	private final String[] mHandleNames;
+	// Variant key bits per handle slot, handle may be left out from variants
+	// with none of them set. Zero for handles every variant uses.
+	private final int[] mHandleVariants;
+	// Handle ids for each slot of active variant.
+	private int[] mHandles;
+	// Flags for variants requested from background compiler, guarded by this.
+	private final boolean[] mPending;
+	// Shader program handle of active variant.
 	private int mProgram = -1;
-	// HashMap for storing uniform/attribute handles.
-	private final HashMap<String, Integer> mShaderHandleMap = new HashMap<String, Integer>();
+	// Vertex and fragment shader sources variants are built from, guarded by
+	// this.
+	private String mSourceVertex, mSourceFragment;
+	// Handle ids for each variant in use, null if not taken into use yet.
+	private final int[][] mVariantHandles;
+	// Program handles for each variant in use.
+	private final int[] mVariantPrograms;
 
 	/**
-	 * Get id for given handle name. This method checks for both attribute and
-	 * uniform handles.
+	 * Constructor for shader with given handle slots and no variants.
 	 * 
-	 * @param name
-	 *            Name of handle.
-	 * @return Id for given handle or -1 if none found.
+	 * @param gl
+	 *            GL state for current context.
+	 * @param handleNames
+	 *            Names of attributes and uniforms used, in slot order.
 	 */
-	public int getHandle(String name) {
-		if (mShaderHandleMap.containsKey(name)) {
-			return mShaderHandleMap.get(name);
+	public LBShader(LBGLState gl, String... handleNames) {
+		this(gl, new String[0], handleNames);
+	}
+
+	/**
+	 * Constructor for shader with given variant defines and handle slots.
+	 * Variant key is a bit mask where bit n set means defineNames[n] is
+	 * defined on top of shader sources.
+	 * 
+	 * @param gl
+	 *            GL state for current context.
+	 * @param defineNames
+	 *            Names of preprocessor defines, in key bit order.
+	 * @param handleNames
+	 *            Names of attributes and uniforms used, in slot order.
+	 */
+	public LBShader(LBGLState gl, String[] defineNames, String... handleNames) {
+		mGL = gl;
+		mDefineNames = defineNames;
+		mHandleNames = handleNames;
+		mHandleVariants = new int[handleNames.length];
+		mHandles = new int[handleNames.length];
+		mBuiltHandles = new int[1 << defineNames.length][];
+		mBuiltPrograms = new int[1 << defineNames.length];
+		mCancelled = new boolean[1 << defineNames.length];
+		mPending = new boolean[1 << defineNames.length];
+		mVariantHandles = new int[1 << defineNames.length][];
+		mVariantPrograms = new int[1 << defineNames.length];
+	}
+
+	/**
+	 * Builds given variant, loading it from program binary cache or compiling
+	 * and linking it, and resolves its handle slots. If program can't be
+	 * created every handle slot is -1. Variant is taken into use by render
+	 * thread once it's needed. Can be called from any thread with a context
+	 * sharing objects with render thread context current.
+	 * 
+	 * @param gl
+	 *            GL state for current context.
+	 * @param variant
+	 *            Variant key.
+	 * @param shared
+	 *            If true, program is finished before it's handed over, needed
+	 *            when building on other than render thread context.
+	 */
+	public void buildVariant(LBGLState gl, int variant, boolean shared) {
+		String sourceVertex, sourceFragment;
+		int generation;
+		synchronized (this) {
+			if (mBuiltHandles[variant] != null) {
+				mPending[variant] = false;
+				return;
+			}
+			sourceVertex = mSourceVertex;
+			sourceFragment = mSourceFragment;
+			generation = mGeneration;
+		}
+
+		// Add defines for key bits on top of both sources.
+		StringBuilder defines = new StringBuilder();
+		for (int i = 0; i < mDefineNames.length; ++i) {
+			if ((variant & (1 << i)) != 0) {
+				defines.append("#define ").append(mDefineNames[i])
+						.append('\n');
+			}
+		}
+		sourceVertex = defines + sourceVertex;
+		sourceFragment = defines + sourceFragment;
+
+		int program = 0;
+		if (mCache != null) {
+			program = mCache.load(gl, sourceVertex, sourceFragment);
+		}
+		if (program == 0) {
+			program = linkProgram(gl, sourceVertex, sourceFragment);
+			if (mCache != null) {
+				mCache.save(gl, program, sourceVertex, sourceFragment);
+			}
+		}
+		// Without a program every handle is -1, location 0 is a valid one
+		// and calls using it would hit wrong target instead of being ignored.
+		int handles[] = new int[mHandleNames.length];
+		Arrays.fill(handles, -1);
+		if (program != 0) {
+			try {
+				resolveHandles(gl, program, handles, variant);
+			} catch (RuntimeException ex) {
+				gl.glDeleteProgram(program);
+				throw ex;
+			}
+		}
+		if (shared) {
+			gl.glFinish();
+		}
+
+		synchronized (this) {
+			// Sources have been reset, program went away with old context.
+			if (generation != mGeneration) {
+				return;
+			}
+			mPending[variant] = false;
+			if (mBuiltHandles[variant] == null) {
+				mBuiltPrograms[variant] = program;
+				mBuiltHandles[variant] = handles;
+				return;
+			}
+		}
+		// Variant was built on another thread meanwhile.
+		gl.glDeleteProgram(program);
+	}
+
+	/**
+	 * Cancels background build request of given variant. Render thread builds
+	 * it itself once it's needed.
+	 * 
+	 * @param variant
+	 *            Variant key.
+	 */
+	public synchronized void cancelVariant(int variant) {
+		mCancelled[variant] = true;
+		mPending[variant] = false;
+	}
+
+	/**
+	 * Get id for given handle slot of active variant. Slots are resolved when
+	 * program is linked and this method does array lookup only. Optional
+	 * handles left out from active variant are -1.
+	 * 
+	 * @param slot
+	 *            Index of handle name given on construction.
+	 * @return Id for given handle.
+	 */
+	public int getHandle(int slot) {
+		return mHandles[slot];
+	}
+
+	/**
+	 * Checks whether given variant has been built and takes it into use if so.
+	 * 
+	 * @param variant
+	 *            Variant key.
+	 * @return True if variant can be used without building it first.
+	 */
+	public boolean isReady(int variant) {
+		if (mVariantHandles[variant] != null) {
+			return true;
 		}
-		int handle = GLES20.glGetAttribLocation(mProgram, name);
-		if (handle == -1) {
-			handle = GLES20.glGetUniformLocation(mProgram, name);
+		synchronized (this) {
+			if (mBuiltHandles[variant] == null) {
+				return false;
+			}
+			mVariantPrograms[variant] = mBuiltPrograms[variant];
+			mVariantHandles[variant] = mBuiltHandles[variant];
 		}
-		if (handle == -1) {
-			// One should never leave log messages but am not going to follow
-			// this rule. This line comes handy if you see repeating 'not found'
-			// messages on LogCat - usually for typos otherwise annoying to
-			// spot from shader code.
-			Log.d("GlslShader", "Could not get attrib location for " + name);
-		} else {
-			mShaderHandleMap.put(name, handle);
+		return true;
+	}
+
+	/**
+	 * Helper method for compiling and linking a program.
+	 * 
+	 * @param gl
+	 *            GL state for current context.
+	 * @param sourceVertex
+	 *            Vertex shader source.
+	 * @param sourceFragment
+	 *            Fragment shader source.
+	 * @return Linked program handle.
+	 */
+	private int linkProgram(LBGLState gl, String sourceVertex,
+			String sourceFragment) {
+		int vertexShader = loadShader(gl, GLES20.GL_VERTEX_SHADER,
+				sourceVertex);
+		int fragmentShader = loadShader(gl, GLES20.GL_FRAGMENT_SHADER,
+				sourceFragment);
+		int program = gl.glCreateProgram();
+		if (program != 0) {
+			gl.glAttachShader(program, vertexShader);
+			gl.glAttachShader(program, fragmentShader);
+			if (mCache != null) {
+				mCache.prepareLink(gl, program);
+			}
+			gl.glLinkProgram(program);
+			int[] linkStatus = new int[1];
+			gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+			if (linkStatus[0] != GLES20.GL_TRUE) {
+				String error = gl.glGetProgramInfoLog(program);
+				gl.glDeleteProgram(program);
+				throw new RuntimeException(error);
+			}
 		}
-		return handle;
+		return program;
 	}
 
 	/**
-	 * Get array of ids with given names. Returned array is sized to given
-	 * amount name elements.
+	 * Lists active attributes and uniforms of linked program and resolves
+	 * handle slots from them. Optional handles which are not active in given
+	 * variant are set to -1, which GL ignores for uniforms.
 	 * 
-	 * @param names
-	 *            List of handle names.
-	 * @return array of handle ids.
+	 * @param gl
+	 *            GL state for current context.
+	 * @param program
+	 *            Linked program handle.
+	 * @param handles
+	 *            Array to store handle ids into.
+	 * @param variant
+	 *            Variant key program was built for.
+	 * @throws RuntimeException
+	 *             If any of handles variant uses is not found in program.
 	 */
-	public int[] getHandles(String... names) {
-		int[] res = new int[names.length];
-		for (int i = 0; i < names.length; ++i) {
-			res[i] = getHandle(names[i]);
+	private void resolveHandles(LBGLState gl, int program, int[] handles,
+			int variant) {
+		HashMap<String, Integer> activeHandles = new HashMap<String, Integer>();
+		int[] count = new int[1];
+		int[] maxLength = new int[1];
+		int[] length = new int[1];
+		int[] size = new int[1];
+		int[] type = new int[1];
+
+		// Iterate over active attributes.
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_ATTRIBUTES, count, 0);
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH,
+				maxLength, 0);
+		byte[] name = new byte[Math.max(1, maxLength[0])];
+		for (int i = 0; i < count[0]; ++i) {
+			gl.glGetActiveAttrib(program, i, name.length, length, 0, size,
+					0, type, 0, name, 0);
+			String attrib = new String(name, 0, length[0]);
+			activeHandles.put(attrib,
+					gl.glGetAttribLocation(program, attrib));
+		}
+
+		// Iterate over active uniforms.
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+		gl.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH,
+				maxLength, 0);
+		name = new byte[Math.max(1, maxLength[0])];
+		for (int i = 0; i < count[0]; ++i) {
+			gl.glGetActiveUniform(program, i, name.length, length, 0,
+					size, 0, type, 0, name, 0);
+			String uniform = new String(name, 0, length[0]);
+			// Arrays are reported as 'name[0]', store them with plain name.
+			if (uniform.endsWith("[0]")) {
+				uniform = uniform.substring(0, uniform.length() - 3);
+			}
+			activeHandles.put(uniform,
+					gl.glGetUniformLocation(program, uniform));
+		}
+
+		// Finally map handle names into slots.
+		for (int i = 0; i < mHandleNames.length; ++i) {
+			Integer handle = activeHandles.get(mHandleNames[i]);
+			if (handle != null) {
+				handles[i] = handle;
+			} else if (mHandleVariants[i] != 0
+					&& (mHandleVariants[i] & variant) == 0) {
+				handles[i] = -1;
+			} else {
+				throw new RuntimeException("Handle not found: "
+						+ mHandleNames[i]);
+			}
 		}
-		return res;
 	}
 
 	/**
 	 * Helper method for compiling a shader.
 	 * 
+	 * @param gl
+	 *            GL state for current context.
 	 * @param shaderType
 	 *            Type of shader to compile
 	 * @param source
 	 *            String presentation for shader
 	 * @return id for compiled shader
 	 */
-	private int loadShader(int shaderType, String source) {
-		int shader = GLES20.glCreateShader(shaderType);
+	private int loadShader(LBGLState gl, int shaderType, String source) {
+		int shader = gl.glCreateShader(shaderType);
 		if (shader != 0) {
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
+			gl.glShaderSource(shader, source);
+			gl.glCompileShader(shader);
 			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
 			if (compiled[0] == 0) {
-				String error = GLES20.glGetShaderInfoLog(shader);
-				GLES20.glDeleteShader(shader);
+				String error = gl.glGetShaderInfoLog(shader);
+				gl.glDeleteShader(shader);
 				throw new RuntimeException(error);
 			}
 		}
@@ -101,10 +371,52 @@ public final class LBShader {
 	}
 
 	/**
-	 * Compiles vertex and fragment shaders and links them into a program one
-	 * can use for rendering. Once OpenGL context is lost and onSurfaceCreated
-	 * is called, there is no need to reset existing GlslShader objects but one
-	 * can simply reload shader.
+	 * Makes sure given variant gets built. Variant is requested from
+	 * background compiler if there is one, otherwise it's built right away.
+	 * 
+	 * @param variant
+	 *            Variant key.
+	 * @return True if variant is ready for use, false if it's being built in
+	 *         the background.
+	 */
+	public boolean prepareVariant(int variant) {
+		if (isReady(variant)) {
+			return true;
+		}
+		boolean request;
+		synchronized (this) {
+			if (mPending[variant]) {
+				return false;
+			}
+			request = mCompiler != null && !mCancelled[variant];
+			mPending[variant] = request;
+		}
+		// Compiler lock is never taken holding shader lock.
+		if (request && mCompiler.request(this, variant)) {
+			return false;
+		}
+		cancelVariant(variant);
+		buildVariant(mGL, variant, false);
+		return isReady(variant);
+	}
+
+	/**
+	 * Sets background compiler variants are requested from.
+	 * 
+	 * @param compiler
+	 *            Compiler thread, or null for building variants on render
+	 *            thread.
+	 */
+	public void setCompiler(LBShaderCompiler compiler) {
+		mCompiler = compiler;
+	}
+
+	/**
+	 * Sets vertex and fragment shader sources one can use for rendering. Once
+	 * OpenGL context is lost and onSurfaceCreated is called, there is no need
+	 * to reset existing LBShader objects but one can simply reload shader.
+	 * Variants are compiled lazily once they are first used and cached for
+	 * the lifetime of context.
 	 * 
 	 * @param vertexSource
 	 *            String presentation for vertex shader
@@ -112,31 +424,74 @@ public final class LBShader {
 	 *            String presentation for fragment shader
 	 */
 	public void setProgram(String vertexSource, String fragmentSource) {
-		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-		int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER,
-				fragmentSource);
-		int program = GLES20.glCreateProgram();
-		if (program != 0) {
-			GLES20.glAttachShader(program, vertexShader);
-			GLES20.glAttachShader(program, fragmentShader);
-			GLES20.glLinkProgram(program);
-			int[] linkStatus = new int[1];
-			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-			if (linkStatus[0] != GLES20.GL_TRUE) {
-				String error = GLES20.glGetProgramInfoLog(program);
-				GLES20.glDeleteProgram(program);
-				throw new RuntimeException(error);
+		synchronized (this) {
+			mSourceVertex = vertexSource;
+			mSourceFragment = fragmentSource;
+			++mGeneration;
+			// Programs belong to previous context, if any.
+			Arrays.fill(mBuiltHandles, null);
+			Arrays.fill(mCancelled, false);
+			Arrays.fill(mPending, false);
+		}
+		Arrays.fill(mVariantHandles, null);
+		mProgram = -1;
+	}
+
+	/**
+	 * Marks given handles optional. They are used only by variants with any
+	 * of given key bits set and may be left out from others. Should be called
+	 * before any variant is built.
+	 * 
+	 * @param variantMask
+	 *            Variant key bits of variants using handles.
+	 * @param handleNames
+	 *            Names of handles given on construction.
+	 * @throws RuntimeException
+	 *             If any of handle names wasn't given on construction.
+	 */
+	public void setOptional(int variantMask, String... handleNames) {
+		for (String handleName : handleNames) {
+			int slot = Arrays.asList(mHandleNames).indexOf(handleName);
+			if (slot < 0) {
+				throw new RuntimeException("Unknown handle: " + handleName);
 			}
+			mHandleVariants[slot] = variantMask;
 		}
-		mProgram = program;
-		mShaderHandleMap.clear();
 	}
 
 	/**
-	 * Activates this shader program.
+	 * Sets program binary cache variants are loaded from and stored into.
+	 * Should be called before any variant is built.
+	 * 
+	 * @param cache
+	 *            Program binary cache, or null.
+	 */
+	public void setProgramCache(LBProgramCache cache) {
+		mCache = cache;
+	}
+
+	/**
+	 * Activates default variant of this shader program.
 	 */
 	public void useProgram() {
-		GLES20.glUseProgram(mProgram);
+		useProgram(0);
+	}
+
+	/**
+	 * Activates given variant of this shader program, building it first if
+	 * it is used for the first time and isn't ready yet.
+	 * 
+	 * @param variant
+	 *            Variant key.
+	 */
+	public void useProgram(int variant) {
+		if (!isReady(variant)) {
+			buildVariant(mGL, variant, false);
+			isReady(variant);
+		}
+		mProgram = mVariantPrograms[variant];
+		mHandles = mVariantHandles[variant];
+		mGL.glUseProgram(mProgram);
 	}
 
 }
@@ -0,0 +1,191 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import java.util.ArrayList;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+
+/**
+ * Worker thread building shader program variants in the background. Owns an
+ * EGL context sharing objects with render thread context, programs linked
+ * here are finished with glFinish before they are handed over so that render
+ * thread sees them complete. Should be stopped before shared context is
+ * destroyed. Requests which can't be served, e.g. because shared context
+ * could not be created or compilation failed, are cancelled and render thread
+ * builds them itself.
+ */
+public final class LBShaderCompiler extends Thread {
+
+	// Client version of shared context, compiler context must match it.
+	private final int mEglClientVersion;
+	// EGL config and display shared with render thread.
+	private final EGLConfig mEglConfig;
+	private final EGLDisplay mEglDisplay;
+	// Render thread context objects are shared with.
+	private final EGLContext mEglShareContext;
+	// Flag for thread being stopped, or not accepting requests anymore.
+	private boolean mQuit;
+	// Requested shaders and variants, modified holding the lock.
+	private final ArrayList<LBShader> mRequestShaders =
+			new ArrayList<LBShader>();
+	private final ArrayList<Integer> mRequestVariants =
+			new ArrayList<Integer>();
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param display
+	 *            Initialized EGL display.
+	 * @param config
+	 *            EGL config shared context was created with.
+	 * @param shareContext
+	 *            Context programs are shared with.
+	 * @param clientVersion
+	 *            EGL_CONTEXT_CLIENT_VERSION shared context was created with.
+	 */
+	public LBShaderCompiler(EGLDisplay display, EGLConfig config,
+			EGLContext shareContext, int clientVersion) {
+		super("LBShaderCompiler");
+		mEglClientVersion = clientVersion;
+		mEglDisplay = display;
+		mEglConfig = config;
+		mEglShareContext = shareContext;
+	}
+
+	/**
+	 * Cancels requests which haven't been served.
+	 */
+	private void cancelRequests() {
+		ArrayList<LBShader> shaders;
+		ArrayList<Integer> variants;
+		synchronized (this) {
+			mQuit = true;
+			shaders = new ArrayList<LBShader>(mRequestShaders);
+			variants = new ArrayList<Integer>(mRequestVariants);
+			mRequestShaders.clear();
+			mRequestVariants.clear();
+		}
+		// Shader locks are never taken holding the lock.
+		for (int i = 0; i < shaders.size(); ++i) {
+			shaders.get(i).cancelVariant(variants.get(i));
+		}
+	}
+
+	/**
+	 * Stops thread. Returns once thread has released its context, requests
+	 * not served by then are cancelled.
+	 */
+	public void quit() {
+		synchronized (this) {
+			mQuit = true;
+			notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Requests given variant to be built. Requests are served in order.
+	 *
+	 * @param shader
+	 *            Shader to build variant of.
+	 * @param variant
+	 *            Variant key.
+	 * @return False if thread doesn't accept requests anymore.
+	 */
+	public synchronized boolean request(LBShader shader, int variant) {
+		if (mQuit) {
+			return false;
+		}
+		mRequestShaders.add(shader);
+		mRequestVariants.add(variant);
+		notifyAll();
+		return true;
+	}
+
+	@Override
+	public void run() {
+		final int CONTEXT_ATTRIBS[] = { EGL14.EGL_CONTEXT_CLIENT_VERSION,
+				mEglClientVersion, EGL14.EGL_NONE };
+		EGLContext context = EGL14.eglCreateContext(mEglDisplay, mEglConfig,
+				mEglShareContext, CONTEXT_ATTRIBS, 0);
+		if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+			cancelRequests();
+			return;
+		}
+		final int PBUFFER_ATTRIBS[] = { EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT,
+				1, EGL14.EGL_NONE };
+		EGLSurface pbuffer = EGL14.eglCreatePbufferSurface(mEglDisplay,
+				mEglConfig, PBUFFER_ATTRIBS, 0);
+		if (pbuffer == null
+				|| pbuffer == EGL14.EGL_NO_SURFACE
+				|| !EGL14.eglMakeCurrent(mEglDisplay, pbuffer, pbuffer,
+						context)) {
+			if (pbuffer != null && pbuffer != EGL14.EGL_NO_SURFACE) {
+				EGL14.eglDestroySurface(mEglDisplay, pbuffer);
+			}
+			EGL14.eglDestroyContext(mEglDisplay, context);
+			cancelRequests();
+			return;
+		}
+
+		// Shadowed state is per context, programs are shared.
+		LBGLState gl = new LBGLState();
+		try {
+			while (true) {
+				LBShader shader;
+				int variant;
+				synchronized (this) {
+					while (!mQuit && mRequestShaders.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+							mQuit = true;
+						}
+					}
+					if (mQuit) {
+						break;
+					}
+					shader = mRequestShaders.remove(0);
+					variant = mRequestVariants.remove(0);
+				}
+				try {
+					shader.buildVariant(gl, variant, true);
+				} catch (RuntimeException ex) {
+					// Render thread builds variant again and reports error.
+					shader.cancelVariant(variant);
+				}
+			}
+		} finally {
+			cancelRequests();
+			EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE,
+					EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+			EGL14.eglDestroySurface(mEglDisplay, pbuffer);
+			EGL14.eglDestroyContext(mEglDisplay, context);
+			EGL14.eglReleaseThread();
+		}
+	}
+
+}
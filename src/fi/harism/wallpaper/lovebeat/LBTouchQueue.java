@@ -0,0 +1,162 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat;
+
+import android.view.MotionEvent;
+
+/**
+ * Preallocated single producer, single consumer ring buffer of touch samples.
+ * Main thread adds motion events, batched historical samples included, and
+ * render thread drains them without locking or allocating. Head index is
+ * written by producer only and tail index by consumer only, both being
+ * volatile publishes sample values written before them to the other thread.
+ */
+public final class LBTouchQueue {
+
+	// Number of samples, power of two.
+	private static final int CAPACITY = 256;
+	// Mask for wrapping indices into sample arrays.
+	private static final int MASK = CAPACITY - 1;
+
+	// Sample actions.
+	private final int mActions[] = new int[CAPACITY];
+	// Index of next sample to be written, written by producer only.
+	private volatile int mHead;
+	// Index of next sample to be read, written by consumer only.
+	private volatile int mTail;
+	// Sample times in nanos.
+	private final long mTimes[] = new long[CAPACITY];
+	// Sample positions in pixels.
+	private final float mX[] = new float[CAPACITY];
+	private final float mY[] = new float[CAPACITY];
+
+	/**
+	 * Adds given motion event, historical samples first. Only primary pointer
+	 * down, move, up and cancel actions are queued. Samples which don't fit
+	 * in are dropped. Should be called from producer thread only.
+	 *
+	 * @param me
+	 *            Motion event.
+	 */
+	public void add(MotionEvent me) {
+		int action = me.getActionMasked();
+		switch (action) {
+		case MotionEvent.ACTION_MOVE:
+			for (int i = 0; i < me.getHistorySize(); ++i) {
+				add(action, me.getHistoricalX(i), me.getHistoricalY(i),
+						me.getHistoricalEventTime(i) * 1000000);
+			}
+			add(action, me.getX(), me.getY(), me.getEventTime() * 1000000);
+			break;
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL:
+			add(action, me.getX(), me.getY(), me.getEventTime() * 1000000);
+			break;
+		}
+	}
+
+	/**
+	 * Adds single sample unless queue is full. Should be called from
+	 * producer thread only.
+	 *
+	 * @param action
+	 *            MotionEvent action.
+	 * @param x
+	 *            X coordinate in pixels.
+	 * @param y
+	 *            Y coordinate in pixels.
+	 * @param time
+	 *            Sample time in nanos.
+	 */
+	public void add(int action, float x, float y, long time) {
+		int head = mHead;
+		if (head - mTail >= CAPACITY) {
+			return;
+		}
+		int index = head & MASK;
+		mActions[index] = action;
+		mX[index] = x;
+		mY[index] = y;
+		mTimes[index] = time;
+		// Publish sample.
+		mHead = head + 1;
+	}
+
+	/**
+	 * Removes every sample. Should be called from consumer thread only.
+	 */
+	public void clear() {
+		mTail = mHead;
+	}
+
+	/**
+	 * Getter for action of oldest sample. Should be called from consumer
+	 * thread only, queue must not be empty.
+	 *
+	 * @return MotionEvent action.
+	 */
+	public int getAction() {
+		return mActions[mTail & MASK];
+	}
+
+	/**
+	 * Getter for time of oldest sample.
+	 *
+	 * @return Sample time in nanos, uptime nanos for motion events.
+	 */
+	public long getTime() {
+		return mTimes[mTail & MASK];
+	}
+
+	/**
+	 * Getter for x coordinate of oldest sample.
+	 *
+	 * @return X coordinate in pixels.
+	 */
+	public float getX() {
+		return mX[mTail & MASK];
+	}
+
+	/**
+	 * Getter for y coordinate of oldest sample.
+	 *
+	 * @return Y coordinate in pixels.
+	 */
+	public float getY() {
+		return mY[mTail & MASK];
+	}
+
+	/**
+	 * Checks whether there are samples to read. Should be called from
+	 * consumer thread only.
+	 *
+	 * @return True if queue is empty.
+	 */
+	public boolean isEmpty() {
+		return mTail == mHead;
+	}
+
+	/**
+	 * Removes oldest sample, freeing its slot for producer. Should be called
+	 * from consumer thread only, queue must not be empty.
+	 */
+	public void remove() {
+		mTail = mTail + 1;
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat.tests;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import fi.harism.wallpaper.lovebeat.LBClock;
+import fi.harism.wallpaper.lovebeat.LBClockRecorder;
+import fi.harism.wallpaper.lovebeat.LBClockReplay;
+import fi.harism.wallpaper.lovebeat.LBGLNull;
+import fi.harism.wallpaper.lovebeat.LBGLRecorder;
+import fi.harism.wallpaper.lovebeat.LBRenderContext;
+import fi.harism.wallpaper.lovebeat.LBRenderer;
+import fi.harism.wallpaper.lovebeat.LBTouchQueue;
+
+/**
+ * Record and replay test for renderer clocks. Frames rendered on a replayed
+ * clock must issue same GL commands as recorded ones, frame by frame, even
+ * if frame costs measured while replaying differ.
+ */
+public final class LBClockReplayTest extends TestCase {
+
+	// Number of frames rendered, enough for quality governor to fill its
+	// window a couple of times.
+	private static final int FRAME_COUNT = 180;
+	// Frame interval in nanos.
+	private static final long FRAME_INTERVAL = 1000000000L / 60;
+	// Animation seed.
+	private static final long SEED = 0x4C6F7665L;
+
+	/**
+	 * Helper method for creating renderer with every GL call going through
+	 * given recorder. Surface is created and sized, no frame is rendered.
+	 */
+	private static LBRenderer createRenderer(LBGLRecorder recorder,
+			LBClock clock) {
+		// LBGLNull accepts any source.
+		LBRenderContext renderContext = new LBRenderContext(null,
+				new String[] { "", "", "", "", "", "" });
+		renderContext.getGLState().setBackend(recorder);
+		LBRenderer renderer = new LBRenderer(null, renderContext, SEED);
+		renderer.setClock(clock);
+		renderer.onSurfaceCreated();
+		renderer.onSurfaceChanged(480, 800);
+		return renderer;
+	}
+
+	/**
+	 * Helper method for rendering frames. Returns GL commands of every frame
+	 * as a log. Each frame is reported to renderer as taking given time.
+	 */
+	private static byte[][] renderFrames(LBClock clock, long frameTime) {
+		LBGLRecorder recorder = new LBGLRecorder(new LBGLNull());
+		LBRenderer renderer = createRenderer(recorder, clock);
+		byte logs[][] = new byte[FRAME_COUNT][];
+		for (int i = 0; i < FRAME_COUNT; ++i) {
+			recorder.beginFrame();
+			renderer.onDrawFrame(0);
+			logs[i] = recorder.getLog();
+			renderer.onFrameRendered(frameTime, FRAME_INTERVAL);
+		}
+		return logs;
+	}
+
+	/**
+	 * Records frames with a drag gesture and frame costs over budget, and
+	 * replays them with frame costs well within budget.
+	 */
+	public void testReplayFrames() {
+		LBClockRecorder clock = new LBClockRecorder(new GestureClock());
+		byte recorded[][] = renderFrames(clock, FRAME_INTERVAL * 2);
+		assertEquals(FRAME_COUNT, clock.getFrameCount());
+		assertFalse(Arrays.equals(recorded[0], recorded[FRAME_COUNT - 1]));
+
+		LBClockReplay replay = new LBClockReplay(clock.getLog());
+		byte replayed[][] = renderFrames(replay, FRAME_INTERVAL / 4);
+		assertTrue(replay.isFinished());
+		for (int i = 0; i < FRAME_COUNT; ++i) {
+			assertTrue("Frame " + i + " differs",
+					Arrays.equals(recorded[i], replayed[i]));
+		}
+	}
+
+	/**
+	 * Clock advancing at fixed interval, ignoring system time, with a drag
+	 * gesture through middle of the frames.
+	 */
+	private static final class GestureClock implements LBClock {
+		// Number of frames so far.
+		private int mFrame;
+
+		@Override
+		public long nextFrame(long time, LBTouchQueue touches,
+				LBTouchQueue frameTouches) {
+			long frameTime = mFrame * FRAME_INTERVAL;
+			int start = FRAME_COUNT / 4, end = FRAME_COUNT * 3 / 4;
+			if (mFrame >= start && mFrame <= end) {
+				// Actions down, up and move.
+				int action = mFrame == start ? 0 : mFrame == end ? 1 : 2;
+				float t = (mFrame - start) / (float) (end - start);
+				frameTouches.add(action, 100 + 200 * t, 400 - 100 * t,
+						frameTime);
+			}
+			++mFrame;
+			return frameTime;
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat.tests;
+
+import junit.framework.TestCase;
+import fi.harism.wallpaper.lovebeat.LBAnimation;
+import fi.harism.wallpaper.lovebeat.LBCpuRenderer;
+
+/**
+ * Golden image test for software renderer. Frame is compared as a thumbnail
+ * of block averages, so that last bit differences of Math functions between
+ * runtimes don't fail it while changes in what is drawn do.
+ */
+public final class LBCpuRendererTest extends TestCase {
+
+	// Block averages of golden frame, rows top first, RGB.
+	private static final int GOLDEN[] = {
+			0x7C7C7C, 0xD9D9D9, 0xE3E3E3, 0xE3E3E3, 0xE3E3E3, 0xE3E3E3,
+			0xDADADA, 0x848484, 0xB9B9B9, 0xC2C2C2, 0xCFCFCF, 0xD2D2D2,
+			0xD2D2D2, 0xD2D2D2, 0xD2D2D2, 0xCACACA, 0xC3C3C3, 0xC3C3C3,
+			0xC4C4C4, 0xD0D0D0, 0xD4D4D4, 0xD4D4D4, 0xD4D4D4, 0xD4D4D4,
+			0xC5C5C5, 0xC5C5C5, 0xC5C5C5, 0xC5C5C5, 0xCCCCCC, 0xD6D6D6,
+			0xD7D7D7, 0xD7D7D7, 0xD1D1D1, 0xD1D1D1, 0xD1D1D1, 0xD1D1D1,
+			0xD1D1D1, 0xD8D8D8, 0xE4E4E4, 0xE4E4E4, 0xC9C9C9, 0xC9C9C9,
+			0xC9C9C9, 0xC9C9C9, 0xC9C9C9, 0xC9C9C9, 0xD5D5D5, 0xDBDBDB,
+			0xC4C4C4, 0xCCCCCC, 0xCCCCCC, 0xCCCCCC, 0xCCCCCC, 0xCCCCCC,
+			0xCDCDCD, 0xD3D3D3, 0x757575, 0xC2C2C2, 0xCACACA, 0xCACACA,
+			0xCACACA, 0xCACACA, 0xC2C2C2, 0x767676 };
+	// Allowed difference per color channel.
+	private static final int TOLERANCE = 4;
+	// Animation seed.
+	private static final long SEED = 0x4C6F7665L;
+	// Frame size in pixels, and thumbnail block size.
+	private static final int SIZE = 64, BLOCK_SIZE = 8;
+
+	/**
+	 * Helper method for rendering golden frame as block averages. Frames are
+	 * rendered from start so that background bands have been swept.
+	 */
+	private static int[] renderThumbnail() {
+		LBAnimation animation = new LBAnimation(SEED);
+		LBCpuRenderer renderer = new LBCpuRenderer();
+		renderer.setSize(SIZE, SIZE);
+		// Touch start and current position apart for some displacement.
+		float touchPositions[] = { 0.4f, 0.5f, 0.6f, 0.5f };
+		long endTime = LBAnimation.TICK_TIME * 3 / 2;
+		for (long time = 0; time <= endTime; time += 100) {
+			animation.update(time * 1000000, false);
+			renderer.render(animation, touchPositions, 0);
+		}
+
+		int pixels[] = renderer.getPixels();
+		int blocks = SIZE / BLOCK_SIZE;
+		int thumbnail[] = new int[blocks * blocks];
+		for (int i = 0; i < thumbnail.length; ++i) {
+			int bx = (i % blocks) * BLOCK_SIZE, by = (i / blocks) * BLOCK_SIZE;
+			int r = 0, g = 0, b = 0;
+			for (int y = by; y < by + BLOCK_SIZE; ++y) {
+				for (int x = bx; x < bx + BLOCK_SIZE; ++x) {
+					int pixel = pixels[y * SIZE + x];
+					r += (pixel >> 16) & 0xFF;
+					g += (pixel >> 8) & 0xFF;
+					b += pixel & 0xFF;
+				}
+			}
+			int n = BLOCK_SIZE * BLOCK_SIZE;
+			thumbnail[i] = (r / n) << 16 | (g / n) << 8 | b / n;
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Renders fixed seed and time and compares against golden frame.
+	 */
+	public void testGoldenImage() {
+		int thumbnail[] = renderThumbnail();
+		assertEquals(GOLDEN.length, thumbnail.length);
+		for (int i = 0; i < thumbnail.length; ++i) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				int expected = (GOLDEN[i] >> shift) & 0xFF;
+				int actual = (thumbnail[i] >> shift) & 0xFF;
+				if (Math.abs(expected - actual) > TOLERANCE) {
+					fail("Block " + i + " differs, expected "
+							+ Integer.toHexString(GOLDEN[i]) + " got "
+							+ Integer.toHexString(thumbnail[i]));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat.tests;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import fi.harism.wallpaper.lovebeat.LBClockVirtual;
+import fi.harism.wallpaper.lovebeat.LBGL;
+import fi.harism.wallpaper.lovebeat.LBGLNull;
+import fi.harism.wallpaper.lovebeat.LBGLRecorder;
+import fi.harism.wallpaper.lovebeat.LBRenderContext;
+import fi.harism.wallpaper.lovebeat.LBRenderer;
+
+/**
+ * Record, print and replay tests for GL command recorder. Replaying a log
+ * into another recorder must reproduce it byte by byte.
+ */
+public final class LBGLRecorderTest extends TestCase {
+
+	/**
+	 * Helper method for asserting that replaying given recorder's log
+	 * reproduces it and that printed log has one line per call.
+	 */
+	private static void assertReplay(LBGLRecorder recorder) {
+		byte log[] = recorder.getLog();
+		LBGLRecorder replayed = new LBGLRecorder(new LBGLNull());
+		LBGLRecorder.replay(log, replayed);
+		assertTrue(Arrays.equals(log, replayed.getLog()));
+		assertEquals(recorder.getCallCount(), replayed.getCallCount());
+
+		String printed = print(log);
+		assertEquals(printed, print(replayed.getLog()));
+		String lines[] = printed.split("\n");
+		assertEquals(recorder.getCallCount(), lines.length);
+		for (String line : lines) {
+			assertTrue(line, line.startsWith("gl"));
+		}
+	}
+
+	/**
+	 * Helper method for printing log into a string.
+	 */
+	private static String print(byte[] log) {
+		StringWriter out = new StringWriter();
+		PrintWriter writer = new PrintWriter(out);
+		LBGLRecorder.print(log, writer);
+		writer.flush();
+		return out.toString().replace("\r\n", "\n");
+	}
+
+	/**
+	 * Records every LBGL method once, with arguments of every type, so that
+	 * every opcode goes through print and replay.
+	 */
+	public void testEveryCommand() throws Exception {
+		LBGLRecorder recorder = new LBGLRecorder(new LBGLNull());
+		Method methods[] = LBGL.class.getMethods();
+		for (int i = 0; i < methods.length; ++i) {
+			Class<?> types[] = methods[i].getParameterTypes();
+			Object args[] = new Object[types.length];
+			for (int j = 0; j < types.length; ++j) {
+				// Counts and offsets of 1 stay within 8 element arrays.
+				if (types[j] == int.class) {
+					args[j] = 1;
+				} else if (types[j] == float.class) {
+					args[j] = i + j * 0.5f;
+				} else if (types[j] == boolean.class) {
+					args[j] = (i & 1) != 0;
+				} else if (types[j] == String.class) {
+					args[j] = "s" + i + "\nline";
+				} else if (types[j] == int[].class) {
+					int values[] = new int[8];
+					Arrays.fill(values, i);
+					args[j] = values;
+				} else if (types[j] == float[].class) {
+					float values[] = new float[8];
+					Arrays.fill(values, i * 0.25f);
+					args[j] = values;
+				} else if (types[j] == boolean[].class) {
+					args[j] = new boolean[8];
+				}
+			}
+			methods[i].invoke(recorder, args);
+		}
+		assertEquals(methods.length, recorder.getCallCount());
+		assertReplay(recorder);
+	}
+
+	/**
+	 * Records surface setup and a few frames of renderer running headless.
+	 */
+	public void testRendererFrames() {
+		LBGLRecorder recorder = new LBGLRecorder(new LBGLNull());
+		LBRenderContext renderContext = new LBRenderContext(null,
+				new String[] { "", "", "", "", "", "" });
+		renderContext.getGLState().setBackend(recorder);
+		LBRenderer renderer = new LBRenderer(null, renderContext, 1);
+		renderer.setClock(new LBClockVirtual(0, 1000000000L / 60));
+		renderer.onSurfaceCreated();
+		renderer.onSurfaceChanged(480, 800);
+		for (int i = 0; i < 5; ++i) {
+			renderer.onDrawFrame(0);
+		}
+		assertTrue(recorder.getCallCount("glDrawArrays") > 0);
+		assertReplay(recorder);
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat.tests;
+
+import junit.framework.TestCase;
+import fi.harism.wallpaper.lovebeat.LBLookup;
+
+/**
+ * Compares grain and vignette lookup tables against per pixel formulas
+ * composite shader used before they were baked. Formulas are written out
+ * here as they were in GLSL, texels must match them at texel centers within
+ * one 8-bit step.
+ */
+public final class LBLookupTest extends TestCase {
+
+	// Surface sizes tables are generated for.
+	private static final int SIZES[][] = { { 480, 800 }, { 720, 1280 },
+			{ 1080, 1920 }, { 1440, 3200 } };
+	// Allowed difference in 8-bit steps.
+	private static final int TOLERANCE = 1;
+
+	/**
+	 * Helper method for asserting texel value against [0, 1] reference.
+	 */
+	private static void assertTexel(String message, double expected,
+			byte texel) {
+		int expectedByte = (int) Math.round(expected * 255);
+		int actual = texel & 0xFF;
+		if (Math.abs(expectedByte - actual) > TOLERANCE) {
+			fail(message + ", expected " + expectedByte + " got " + actual);
+		}
+	}
+
+	/**
+	 * GLSL fract(x).
+	 */
+	private static double fract(double x) {
+		return x - Math.floor(x);
+	}
+
+	/**
+	 * GLSL mod(x, y).
+	 */
+	private static float mod(float x, float y) {
+		return x - y * (float) Math.floor(x / y);
+	}
+
+	/**
+	 * Grain coefficient as composite shader calculated it for texture y
+	 * coordinate and uRandom. Evaluated in double precision, sin based hash
+	 * amplifies float rounding so that no GPU evaluates it exactly either.
+	 */
+	private static double oldNoise(float y, double random) {
+		double v = y * 8.0 + random;
+		double rand = fract(Math.sin(v * 12.9898 + v * 78.233) * 43758.5453);
+		return 0.73 + (1.0 - 0.73) * rand;
+	}
+
+	/**
+	 * Vignette coefficient as composite shader calculated it for pixel
+	 * position, normalized distance from center.
+	 */
+	private static float oldVignette(float pixelPos) {
+		final float sqrt2 = 1.4143f;
+		final float borderWidth = 1.2f;
+		final float borderMaxLenInv = 1f / (sqrt2 - borderWidth);
+		if (pixelPos <= borderWidth) {
+			return 1f;
+		}
+		float shade = (pixelPos - borderWidth) * borderMaxLenInv;
+		float shadeMain = mod(shade * 6f, 6f);
+		float shadeBool = mod(shadeMain, 2f);
+		if (Math.max(0.15f, Math.min(1f, shadeBool)) == shadeBool) {
+			return 0.2f;
+		} else if (Math.max(1.15f, Math.min(2f, shadeBool)) == shadeBool) {
+			return 1f - (float) Math.sqrt(shadeMain * 0.1f);
+		} else {
+			return (1f - (float) Math.sqrt(shadeMain * 0.1f)) * 0.7f;
+		}
+	}
+
+	/**
+	 * Every grain texel against hash at its texture y coordinate. Rows are
+	 * selected with seeds renderer passed as uRandom.
+	 */
+	public void testNoise() {
+		for (int size[] : SIZES) {
+			int width = size[1];
+			byte noise[] = new byte[width * LBLookup.NOISE_SEED_COUNT];
+			LBLookup.genNoise(noise, width);
+			for (int row = 0; row < LBLookup.NOISE_SEED_COUNT; ++row) {
+				int seed = LBLookup.NOISE_SEED_FIRST + row;
+				for (int x = 0; x < width; ++x) {
+					// Texture coordinate is a float varying in shader.
+					float y = (x + 0.5f) / width;
+					assertTexel("Noise " + width + " seed " + seed + " x "
+							+ x, oldNoise(y, seed), noise[row * width + x]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every vignette texel against rounded corners at pixel position of its
+	 * center. Texel is looked up with same coordinate composite shader
+	 * calculates from uVignette.
+	 */
+	public void testVignette() {
+		for (int size[] : SIZES) {
+			int width = LBLookup.getVignetteWidth(size[0], size[1]);
+			byte vignette[] = new byte[width];
+			LBLookup.genVignette(vignette, width);
+			float scale = (width - 1) / (float) width, offset = 1f / width;
+
+			// Pixel inside border maps to first texel.
+			int inside = (int) Math.max(0f, (LBLookup.shade(0.5f) * scale
+					+ offset) * width);
+			assertTexel("Vignette " + width + " inside", oldVignette(0.5f),
+					vignette[inside]);
+
+			for (int x = 1; x < width; ++x) {
+				float shade = (x - 0.5f) / (width - 1);
+				float pixelPos = 1.2f + shade * (1.4143f - 1.2f);
+				int index = (int) ((LBLookup.shade(pixelPos) * scale + offset)
+						* width);
+				assertEquals(x, index);
+				assertTexel("Vignette " + width + " x " + x,
+						oldVignette(pixelPos), vignette[index]);
+			}
+		}
+	}
+
+}
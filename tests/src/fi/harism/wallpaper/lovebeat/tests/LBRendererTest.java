@@ -0,0 +1,79 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.wallpaper.lovebeat.tests;
+
+import junit.framework.TestCase;
+import fi.harism.wallpaper.lovebeat.LBClockVirtual;
+import fi.harism.wallpaper.lovebeat.LBGLNull;
+import fi.harism.wallpaper.lovebeat.LBGLRecorder;
+import fi.harism.wallpaper.lovebeat.LBRenderContext;
+import fi.harism.wallpaper.lovebeat.LBRenderer;
+
+/**
+ * Renderer tests run headless against LBGLNull, with every GL call recorded.
+ */
+public final class LBRendererTest extends TestCase {
+
+	// Frame interval in nanos.
+	private static final long FRAME_INTERVAL = 1000000000L / 60;
+	// Animation seed.
+	private static final long SEED = 0x4C6F7665L;
+
+	/**
+	 * Helper method for creating renderer with every GL call going through
+	 * given recorder. Surface is created and sized, no frame is rendered.
+	 */
+	private static LBRenderer createRenderer(LBGLRecorder recorder,
+			int boxCount) {
+		// LBGLNull accepts any source.
+		LBRenderContext renderContext = new LBRenderContext(null,
+				new String[] { "", "", "", "", "", "" });
+		renderContext.getGLState().setBackend(recorder);
+		LBRenderer renderer = new LBRenderer(null, renderContext, SEED);
+		renderer.setClock(new LBClockVirtual(0, FRAME_INTERVAL));
+		renderer.setBoxCount(boxCount);
+		renderer.onSurfaceCreated();
+		renderer.onSurfaceChanged(720, 1280);
+		return renderer;
+	}
+
+	/**
+	 * Helper method for counting draw calls of one frame once renderer has
+	 * settled.
+	 */
+	private static int getDrawCalls(int boxCount) {
+		LBGLRecorder recorder = new LBGLRecorder(new LBGLNull());
+		LBRenderer renderer = createRenderer(recorder, boxCount);
+		for (int i = 0; i < 10; ++i) {
+			renderer.onDrawFrame(0);
+		}
+		recorder.beginFrame();
+		renderer.onDrawFrame(0);
+		return recorder.getCallCount("glDrawArrays");
+	}
+
+	/**
+	 * Foreground boxes are batched, draw calls per frame must not depend on
+	 * box count.
+	 */
+	public void testDrawCallsIndependentOfBoxCount() {
+		int drawCalls = getDrawCalls(16);
+		assertTrue(drawCalls > 0);
+		assertEquals(drawCalls, getDrawCalls(4096));
+	}
+
+}